@@ -0,0 +1,844 @@
+package TFTPServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TFTP client for moving many files at once, e.g. to stage images or to put load on a server.
+ *
+ * Each transfer asks for the block size (RFC 2348), the window size (RFC 7440) and the transfer size (RFC 2349).
+ * Options the server does not acknowledge fall back to plain RFC 1350: 512 byte blocks, one block per ACK. A server
+ * that refuses the options with an error is asked again without them. Downloads are written and uploads read with a
+ * FileChannel. The retransmission timeout follows the measured round trip time (RFC 6298, without samples from
+ * retransmitted packets) and backs off on timeouts.
+ *
+ * The manifest lists one transfer per line, "get remote-name local-file" or "put local-file remote-name". Empty lines
+ * and lines starting with # are skipped.
+ */
+public class BulkTFTPClient {
+
+    static final int RRQ = 1;
+    static final int WRQ = 2;
+    static final int DATA = 3;
+    static final int ACK = 4;
+    static final int ERROR = 5;
+    static final int OACK = 6;
+
+    static final int ERROR_UNKNOWN_TID = 5;
+    static final int ERROR_OPTIONS_REFUSED = 8;
+
+    static final int DEFAULT_BLOCK_SIZE = 512;
+    static final int MAX_BLOCK_SIZE = 65464;
+
+    private final InetSocketAddress server_;
+    private int blockSize_ = 1468;
+    private int windowSize_ = 16;
+    private int concurrency_ = 4;
+    private int initialTimeout_ = 1000;
+    private int minTimeout_ = 100;
+    private int maxTimeout_ = 10000;
+    private int maxRetries_ = 5;
+
+    public BulkTFTPClient(String host, int port) throws IOException {
+        server_ = new InetSocketAddress(InetAddress.getByName(host), port);
+    }
+
+    /**
+     * Set the block size to ask for, 8 - 65464. Default 1468, which fills an Ethernet frame.
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 8 || blockSize > MAX_BLOCK_SIZE) {
+            throw new RuntimeException("Invalid Value");
+        }
+        blockSize_ = blockSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize_;
+    }
+
+    /**
+     * Set the number of blocks to ask for per ACK, 1 - 65535. Default 16.
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize < 1 || windowSize > 65535) {
+            throw new RuntimeException("Invalid Value");
+        }
+        windowSize_ = windowSize;
+    }
+
+    public int getWindowSize() {
+        return windowSize_;
+    }
+
+    /**
+     * Set the number of transfers run at the same time by run(). Default 4.
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        concurrency_ = concurrency;
+    }
+
+    public int getConcurrency() {
+        return concurrency_;
+    }
+
+    /**
+     * Set the retransmission timeout used until the first round trip is measured, in milliseconds. Default 1000.
+     */
+    public void setInitialTimeout(int initialTimeout) {
+        if (initialTimeout < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        initialTimeout_ = initialTimeout;
+    }
+
+    public int getInitialTimeout() {
+        return initialTimeout_;
+    }
+
+    /**
+     * Set the bounds of the retransmission timeout, in milliseconds. Default 100 - 10000.
+     */
+    public void setTimeoutBounds(int minTimeout, int maxTimeout) {
+        if (minTimeout < 1 || maxTimeout < minTimeout) {
+            throw new RuntimeException("Invalid Value");
+        }
+        minTimeout_ = minTimeout;
+        maxTimeout_ = maxTimeout;
+    }
+
+    /**
+     * Set the number of timeouts in a row after which a transfer fails. Default 5.
+     */
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new RuntimeException("Invalid Value");
+        }
+        maxRetries_ = maxRetries;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries_;
+    }
+
+    /**
+     * Read a manifest, see the class description.
+     */
+    public static List<Entry> readManifest(File manifest) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts.length != 3 || !(parts[0].equals("get") || parts[0].equals("put"))) {
+                    throw new IOException(manifest + ":" + lineNumber + ": expected \"get remote local\" or \"put local remote\"");
+                }
+                if (parts[0].equals("get")) {
+                    entries.add(new Entry(true, parts[1], new File(parts[2])));
+                } else {
+                    entries.add(new Entry(false, parts[2], new File(parts[1])));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Run all transfers, concurrency at a time.
+     * @return The results in the order of the entries
+     */
+    public List<Result> run(List<Entry> entries) throws InterruptedException {
+        final AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency_, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TFTPBulkClient-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final Entry entry : entries) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return transfer(entry);
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<Result>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // transfer() reports failures in the result
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run one transfer. Never throws, failures are reported in the result.
+     */
+    public Result transfer(Entry entry) {
+        Result result = new Result(entry);
+        long start = System.nanoTime();
+        try {
+            try {
+                transfer(entry, result, true);
+            } catch (ServerError e) {
+                if (e.code_ != ERROR_OPTIONS_REFUSED) {
+                    throw e;
+                }
+                result.bytes_ = 0;
+                result.blockSize_ = DEFAULT_BLOCK_SIZE;
+                result.windowSize_ = 1;
+                transfer(entry, result, false);
+            }
+        } catch (IOException e) {
+            result.error_ = e;
+        }
+        result.micros_ = (System.nanoTime() - start) / 1000;
+        return result;
+    }
+
+    private void transfer(Entry entry, Result result, boolean withOptions) throws IOException {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        if (withOptions) {
+            if (blockSize_ != DEFAULT_BLOCK_SIZE) {
+                options.put("blksize", Integer.toString(blockSize_));
+            }
+            if (windowSize_ != 1) {
+                options.put("windowsize", Integer.toString(windowSize_));
+            }
+        }
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            if (entry.download_) {
+                if (withOptions) {
+                    options.put("tsize", "0");
+                }
+                download(socket, entry, options, result);
+            } else {
+                FileChannel channel = FileChannel.open(entry.localFile_.toPath(), StandardOpenOption.READ);
+                try {
+                    if (withOptions) {
+                        options.put("tsize", Long.toString(channel.size()));
+                    }
+                    upload(socket, channel, entry, options, result);
+                } finally {
+                    channel.close();
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void download(DatagramSocket socket, Entry entry, Map<String, String> options, Result result) throws IOException {
+        Exchange exchange = new Exchange(socket, result);
+        byte[] request = request(RRQ, entry.remoteName_, options);
+        exchange.send(request, server_);
+
+        FileChannel channel = FileChannel.open(entry.localFile_.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        boolean complete = false;
+        try {
+            byte[] lastAck = null;
+            long expected = 1;
+            int inWindow = 0;
+            boolean gapReported = false;
+            long size = -1;
+            while (true) {
+                DatagramPacket packet = exchange.receive();
+                if (packet == null) {
+                    // lost in either direction - repeat what we sent last
+                    exchange.resend(lastAck != null ? lastAck : request);
+                    inWindow = 0;
+                    continue;
+                }
+                byte[] data = packet.getData();
+                int length = packet.getLength();
+                int opcode = unsigned16(data, 0);
+                if (opcode == ERROR) {
+                    throw serverError(data, length);
+                }
+                if (opcode == OACK && expected == 1) {
+                    Map<String, String> accepted = parseOptions(data, 2, length);
+                    applyOptions(accepted, options, result);
+                    if (accepted.containsKey("tsize")) {
+                        size = parseLong(accepted.get("tsize"), -1);
+                    }
+                    lastAck = ack(0);
+                    exchange.send(lastAck);
+                    continue;
+                }
+                if (opcode != DATA || length < 4) {
+                    continue;
+                }
+                if (unsigned16(data, 2) != (expected & 0xFFFF)) {
+                    // a duplicate or a gap in the window: acknowledge what we have, the server continues from there
+                    if (!gapReported && expected > 1) {
+                        lastAck = ack((int) (expected - 1));
+                        exchange.send(lastAck);
+                        gapReported = true;
+                        inWindow = 0;
+                    }
+                    continue;
+                }
+                gapReported = false;
+                int n = length - 4;
+                ByteBuffer buffer = ByteBuffer.wrap(data, 4, n);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                result.bytes_ += n;
+                boolean last = n < result.blockSize_;
+                inWindow++;
+                if (last || inWindow >= result.windowSize_) {
+                    lastAck = ack((int) expected);
+                    exchange.send(lastAck);
+                    inWindow = 0;
+                }
+                expected++;
+                if (last) {
+                    break;
+                }
+            }
+            if (size >= 0 && size != result.bytes_) {
+                throw new IOException("Received " + result.bytes_ + " bytes, the server announced " + size);
+            }
+            complete = true;
+        } finally {
+            channel.close();
+            if (!complete) {
+                Files.deleteIfExists(entry.localFile_.toPath());
+            }
+        }
+    }
+
+    private void upload(DatagramSocket socket, FileChannel channel, Entry entry, Map<String, String> options, Result result)
+            throws IOException {
+        Exchange exchange = new Exchange(socket, result);
+        byte[] request = request(WRQ, entry.remoteName_, options);
+        exchange.send(request, server_);
+
+        while (true) {
+            DatagramPacket packet = exchange.receive();
+            if (packet == null) {
+                exchange.resend(request);
+                continue;
+            }
+            byte[] data = packet.getData();
+            int opcode = unsigned16(data, 0);
+            if (opcode == ERROR) {
+                throw serverError(data, packet.getLength());
+            }
+            if (opcode == OACK) {
+                applyOptions(parseOptions(data, 2, packet.getLength()), options, result);
+                break;
+            }
+            if (opcode == ACK && packet.getLength() >= 4 && unsigned16(data, 2) == 0) {
+                break;
+            }
+        }
+
+        int blockSize = result.blockSize_;
+        long size = channel.size();
+        // the last block is shorter than blockSize, possibly empty
+        long lastBlock = size / blockSize + 1;
+        byte[] block = new byte[blockSize + 4];
+        long base = 1;
+        boolean resend = false;
+        while (base <= lastBlock) {
+            long end = Math.min(base + result.windowSize_ - 1, lastBlock);
+            for (long b = base; b <= end; b++) {
+                long position = (b - 1) * blockSize;
+                int n = (int) Math.min(blockSize, size - position);
+                ByteBuffer buffer = ByteBuffer.wrap(block, 4, n);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position() - 4) < 0) {
+                        throw new IOException(entry.localFile_ + " changed during the upload");
+                    }
+                }
+                block[0] = 0;
+                block[1] = DATA;
+                block[2] = (byte) (b >> 8);
+                block[3] = (byte) b;
+                if (resend) {
+                    exchange.resend(block, n + 4);
+                } else {
+                    exchange.send(block, n + 4);
+                }
+            }
+            resend = false;
+
+            while (true) {
+                DatagramPacket packet = exchange.receive();
+                if (packet == null) {
+                    resend = true;
+                    break;
+                }
+                byte[] data = packet.getData();
+                int opcode = unsigned16(data, 0);
+                if (opcode == ERROR) {
+                    throw serverError(data, packet.getLength());
+                }
+                if (opcode != ACK || packet.getLength() < 4) {
+                    continue;
+                }
+                int acked = unsigned16(data, 2);
+                long match = -1;
+                for (long b = base; b <= end; b++) {
+                    if ((b & 0xFFFF) == acked) {
+                        match = b;
+                    }
+                }
+                // an ACK of an earlier block is a duplicate, answering it would double the traffic from here on
+                if (match >= 0) {
+                    result.bytes_ += Math.min(size, match * blockSize) - Math.min(size, (base - 1) * blockSize);
+                    base = match + 1;
+                    break;
+                }
+            }
+        }
+    }
+
+    private void applyOptions(Map<String, String> accepted, Map<String, String> requested, Result result) throws IOException {
+        for (String name : accepted.keySet()) {
+            if (!requested.containsKey(name)) {
+                throw new IOException("The server acknowledged option " + name + " which was not requested");
+            }
+        }
+        if (accepted.containsKey("blksize")) {
+            long blockSize = parseLong(accepted.get("blksize"), -1);
+            if (blockSize < 8 || blockSize > Long.parseLong(requested.get("blksize"))) {
+                throw new IOException("Invalid block size from server: " + accepted.get("blksize"));
+            }
+            result.blockSize_ = (int) blockSize;
+        }
+        if (accepted.containsKey("windowsize")) {
+            long windowSize = parseLong(accepted.get("windowsize"), -1);
+            if (windowSize < 1 || windowSize > Long.parseLong(requested.get("windowsize"))) {
+                throw new IOException("Invalid window size from server: " + accepted.get("windowsize"));
+            }
+            result.windowSize_ = (int) windowSize;
+        }
+    }
+
+    /*
+     * Sends and receives the packets of one transfer and keeps its retransmission timeout.
+     */
+    private class Exchange {
+        private final DatagramSocket socket_;
+        private final Result result_;
+        private final byte[] buffer_ = new byte[MAX_BLOCK_SIZE + 4];
+        private SocketAddress peer_ = null;
+        private SocketAddress destination_ = null;
+        private double smoothedRtt_ = -1;
+        private double rttVariation_ = 0;
+        private int timeout_ = initialTimeout_;
+        private int backoff_ = 1;
+        private int timeouts_ = 0;
+        private long sentAt_ = 0;
+        private boolean sampling_ = true;
+
+        Exchange(DatagramSocket socket, Result result) {
+            socket_ = socket;
+            result_ = result;
+        }
+
+        void send(byte[] packet, SocketAddress destination) throws IOException {
+            destination_ = destination;
+            send(packet, packet.length);
+        }
+
+        void send(byte[] packet) throws IOException {
+            send(packet, packet.length);
+        }
+
+        void send(byte[] packet, int length) throws IOException {
+            socket_.send(new DatagramPacket(packet, length, peer_ != null ? peer_ : destination_));
+            sentAt_ = System.nanoTime();
+            sampling_ = true;
+        }
+
+        /*
+         * Send again after a timeout. The answer is not used as a sample, it may belong to the first send.
+         */
+        void resend(byte[] packet) throws IOException {
+            resend(packet, packet.length);
+        }
+
+        void resend(byte[] packet, int length) throws IOException {
+            send(packet, length);
+            sampling_ = false;
+            result_.retransmits_++;
+        }
+
+        /**
+         * The next packet from the peer, or null on timeout. Fails after maxRetries timeouts in a row.
+         */
+        DatagramPacket receive() throws IOException {
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(buffer_, buffer_.length);
+                socket_.setSoTimeout(Math.min(maxTimeout_, timeout_ * backoff_));
+                try {
+                    socket_.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    if (++timeouts_ > maxRetries_) {
+                        throw new IOException("Timed out after " + maxRetries_ + " retries");
+                    }
+                    backoff_ = Math.min(backoff_ * 2, 64);
+                    return null;
+                }
+                if (peer_ == null) {
+                    // the server answers from a new port, which identifies the transfer from here on
+                    if (!packet.getAddress().equals(server_.getAddress())) {
+                        continue;
+                    }
+                    peer_ = packet.getSocketAddress();
+                } else if (!peer_.equals(packet.getSocketAddress())) {
+                    byte[] error = error(ERROR_UNKNOWN_TID, "Unknown transfer ID");
+                    socket_.send(new DatagramPacket(error, error.length, packet.getSocketAddress()));
+                    continue;
+                }
+                timeouts_ = 0;
+                if (sampling_) {
+                    sample((System.nanoTime() - sentAt_) / 1000000.0);
+                    sampling_ = false;
+                }
+                return packet;
+            }
+        }
+
+        /*
+         * RFC 6298
+         */
+        private void sample(double rtt) {
+            if (smoothedRtt_ < 0) {
+                smoothedRtt_ = rtt;
+                rttVariation_ = rtt / 2;
+            } else {
+                rttVariation_ = 0.75 * rttVariation_ + 0.25 * Math.abs(smoothedRtt_ - rtt);
+                smoothedRtt_ = 0.875 * smoothedRtt_ + 0.125 * rtt;
+            }
+            timeout_ = (int) Math.max(minTimeout_, Math.min(maxTimeout_, Math.ceil(smoothedRtt_ + 4 * rttVariation_)));
+            backoff_ = 1;
+            result_.timeout_ = timeout_;
+        }
+    }
+
+    static byte[] request(int opcode, String fileName, Map<String, String> options) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(fileName).append('\0').append("octet").append('\0');
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            sb.append(option.getKey()).append('\0').append(option.getValue()).append('\0');
+        }
+        byte[] strings = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        byte[] packet = new byte[strings.length + 2];
+        packet[1] = (byte) opcode;
+        System.arraycopy(strings, 0, packet, 2, strings.length);
+        return packet;
+    }
+
+    static byte[] ack(int block) {
+        return new byte[]{0, ACK, (byte) (block >> 8), (byte) block};
+    }
+
+    static byte[] error(int code, String message) {
+        byte[] text = message.getBytes(StandardCharsets.US_ASCII);
+        byte[] packet = new byte[text.length + 5];
+        packet[1] = ERROR;
+        packet[2] = (byte) (code >> 8);
+        packet[3] = (byte) code;
+        System.arraycopy(text, 0, packet, 4, text.length);
+        return packet;
+    }
+
+    static int unsigned16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    /*
+     * Name and value pairs of zero terminated strings, names in lower case.
+     */
+    static Map<String, String> parseOptions(byte[] data, int offset, int end) {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        int pos = offset;
+        while (pos < end) {
+            int nameEnd = indexOfZero(data, pos, end);
+            int valueEnd = indexOfZero(data, nameEnd + 1, end);
+            if (valueEnd >= end) {
+                break;
+            }
+            options.put(new String(data, pos, nameEnd - pos, StandardCharsets.US_ASCII).toLowerCase(Locale.ROOT),
+                    new String(data, nameEnd + 1, valueEnd - nameEnd - 1, StandardCharsets.US_ASCII));
+            pos = valueEnd + 1;
+        }
+        return options;
+    }
+
+    private static int indexOfZero(byte[] data, int pos, int end) {
+        while (pos < end && data[pos] != 0) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static ServerError serverError(byte[] data, int length) {
+        int code = length >= 4 ? unsigned16(data, 2) : 0;
+        String message = length > 4 ? new String(data, 4, indexOfZero(data, 4, length) - 4, StandardCharsets.US_ASCII) : "";
+        return new ServerError(code, message);
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * An error packet from the server.
+     */
+    public static class ServerError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int code_;
+
+        ServerError(int code, String message) {
+            super("Error " + code + " from server: " + message);
+            code_ = code;
+        }
+
+        public int getCode() {
+            return code_;
+        }
+    }
+
+    /**
+     * One line of the manifest.
+     */
+    public static class Entry {
+        private final boolean download_;
+        private final String remoteName_;
+        private final File localFile_;
+
+        /**
+         * @param download True to get the file from the server, false to put it there
+         */
+        public Entry(boolean download, String remoteName, File localFile) {
+            download_ = download;
+            remoteName_ = remoteName;
+            localFile_ = localFile;
+        }
+
+        public boolean isDownload() {
+            return download_;
+        }
+
+        public String getRemoteName() {
+            return remoteName_;
+        }
+
+        public File getLocalFile() {
+            return localFile_;
+        }
+
+        @Override
+        public String toString() {
+            return (download_ ? "get " + remoteName_ + " " + localFile_ : "put " + localFile_ + " " + remoteName_);
+        }
+    }
+
+    /**
+     * The outcome of one transfer.
+     */
+    public static class Result {
+        private final Entry entry_;
+        private long bytes_ = 0;
+        private long micros_ = 0;
+        private long retransmits_ = 0;
+        private int blockSize_ = DEFAULT_BLOCK_SIZE;
+        private int windowSize_ = 1;
+        private int timeout_;
+        private IOException error_ = null;
+
+        Result(Entry entry) {
+            entry_ = entry;
+        }
+
+        public Entry getEntry() {
+            return entry_;
+        }
+
+        public boolean isSuccess() {
+            return error_ == null;
+        }
+
+        /**
+         * Null if the transfer succeeded.
+         */
+        public IOException getError() {
+            return error_;
+        }
+
+        public long getBytes() {
+            return bytes_;
+        }
+
+        public long getMicros() {
+            return micros_;
+        }
+
+        public long getRetransmits() {
+            return retransmits_;
+        }
+
+        /**
+         * The block size agreed with the server.
+         */
+        public int getBlockSize() {
+            return blockSize_;
+        }
+
+        /**
+         * The window size agreed with the server.
+         */
+        public int getWindowSize() {
+            return windowSize_;
+        }
+
+        /**
+         * The retransmission timeout at the end of the transfer in milliseconds, 0 if no round trip was measured.
+         */
+        public int getTimeout() {
+            return timeout_;
+        }
+
+        /**
+         * Bytes per second.
+         */
+        public double getThroughput() {
+            return micros_ > 0 ? bytes_ * 1000000.0 / micros_ : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: %s, %d bytes in %.3f s, %.1f KB/s, blksize %d, windowsize %d, %d retransmits",
+                    entry_, error_ == null ? "ok" : error_.getMessage(), bytes_, micros_ / 1000000.0,
+                    getThroughput() / 1024, blockSize_, windowSize_, retransmits_);
+        }
+    }
+
+    /**
+     * Print one line per transfer and the totals.
+     * @param wallMicros The time all transfers took together
+     */
+    public static void report(List<Result> results, long wallMicros, PrintStream out) {
+        long bytes = 0;
+        long retransmits = 0;
+        int failed = 0;
+        for (Result result : results) {
+            out.println(result);
+            bytes += result.bytes_;
+            retransmits += result.retransmits_;
+            if (!result.isSuccess()) {
+                failed++;
+            }
+        }
+        out.println(String.format(Locale.ROOT, "%d transfers, %d failed, %d bytes in %.3f s, %.1f KB/s, %d retransmits",
+                results.size(), failed, bytes, wallMicros / 1000000.0, wallMicros > 0 ? bytes * 1000000.0 / wallMicros / 1024 : 0,
+                retransmits));
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            usage();
+            return;
+        }
+        try {
+            BulkTFTPClient client = new BulkTFTPClient(args[0], Integer.parseInt(args[1]));
+            for (int i = 3; i + 1 < args.length; i += 2) {
+                int value = Integer.parseInt(args[i + 1]);
+                if (args[i].equals("-b")) {
+                    client.setBlockSize(value);
+                } else if (args[i].equals("-w")) {
+                    client.setWindowSize(value);
+                } else if (args[i].equals("-c")) {
+                    client.setConcurrency(value);
+                } else if (args[i].equals("-t")) {
+                    client.setInitialTimeout(value);
+                } else if (args[i].equals("-r")) {
+                    client.setMaxRetries(value);
+                } else {
+                    usage();
+                    return;
+                }
+            }
+            List<Entry> entries = readManifest(new File(args[2]));
+            long start = System.nanoTime();
+            List<Result> results = client.run(entries);
+            report(results, (System.nanoTime() - start) / 1000, System.out);
+            for (Result result : results) {
+                if (!result.isSuccess()) {
+                    System.exit(1);
+                }
+            }
+        } catch (Exception e) {
+            System.err.printf("Failed to run transfers : %s\n", e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    public static void usage() {
+        System.out.println("Usage: BulkTFTPClient <host> <port> <manifest> [-b blksize] [-w windowsize] [-c concurrency]"
+                + " [-t initial timeout ms] [-r retries]");
+    }
+}
@@ -0,0 +1,325 @@
+package com.horstmeier.java.tftp;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes one JSON line per finished transfer: time, client, file, direction, mode, options, bytes, blocks,
+ * retransmits, duration and outcome.
+ *
+ * Transfers hand their entries to a bounded ring buffer without taking a lock. A background thread drains it and
+ * writes the lines in batches, flushing once per batch. If the writer falls behind and the ring is full, entries
+ * are dropped and counted instead of blocking the transfer; see {@link #getDropped()}. Every entry passed to
+ * log() is either written or counted as dropped, also when the log is closed meanwhile.
+ */
+public class AccessLog implements Closeable {
+
+    private static final int MAX_BATCH = 256;
+
+    private final Logger log = Logger.getLogger(AccessLog.class);
+
+    private final Writer out_;
+    private final int mask_;
+    private final AtomicReferenceArray<Entry> entries_;
+    private final AtomicLongArray sequences_;
+    private final AtomicLong tail_ = new AtomicLong();
+    private final AtomicInteger logging_ = new AtomicInteger();
+    private long head_ = 0;
+    private final LongAdder dropped_ = new LongAdder();
+    private final AtomicLong written_ = new AtomicLong();
+    private final long flushIntervalNanos_;
+    private final Thread writer_;
+    private volatile boolean closed_ = false;
+    // set by close() once no more entries can be queued
+    private volatile boolean lastDrain_ = false;
+
+    /**
+     * Append to a file.
+     * @param capacity Max entries waiting to be written, rounded up to a power of two
+     */
+    public AccessLog(File file, int capacity) throws IOException {
+        this(new FileOutputStream(file, true), capacity, 100);
+    }
+
+    /**
+     * @param out Receives the lines, closed by close()
+     * @param capacity Max entries waiting to be written, rounded up to a power of two. Min 2.
+     * @param flushIntervalMillis Max time an entry waits for the writer when there is little traffic. Min 1.
+     */
+    public AccessLog(OutputStream out, int capacity, int flushIntervalMillis) {
+        if (capacity < 2 || capacity > (1 << 30) || flushIntervalMillis < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        out_ = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536);
+        mask_ = size - 1;
+        entries_ = new AtomicReferenceArray<Entry>(size);
+        sequences_ = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences_.set(i, i);
+        }
+        flushIntervalNanos_ = flushIntervalMillis * 1000000L;
+        writer_ = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "TFTPAccessLog");
+        writer_.setDaemon(true);
+        writer_.start();
+    }
+
+    /**
+     * Queue an entry. Never blocks.
+     * @return False if the entry was dropped because the writer is behind or the log is closed
+     */
+    public boolean log(Entry entry) {
+        logging_.incrementAndGet();
+        try {
+            if (closed_) {
+                dropped_.increment();
+                return false;
+            }
+            return offer(entry);
+        } finally {
+            logging_.decrementAndGet();
+        }
+    }
+
+    private boolean offer(Entry entry) {
+        long position;
+        while (true) {
+            position = tail_.get();
+            long sequence = sequences_.get((int) position & mask_);
+            if (sequence == position) {
+                if (tail_.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // the slot still holds an entry from the previous round - full
+                dropped_.increment();
+                return false;
+            }
+        }
+        int index = (int) position & mask_;
+        entries_.set(index, entry);
+        sequences_.set(index, position + 1);
+        if (position - head_ > mask_ / 2) {
+            // wake the writer early when the ring fills up (head_ is read racy, it's only a hint)
+            LockSupport.unpark(writer_);
+        }
+        return true;
+    }
+
+    /**
+     * Entries dropped because the ring was full, the log was closed or writing failed.
+     */
+    public long getDropped() {
+        return dropped_.sum();
+    }
+
+    /**
+     * Entries written so far.
+     */
+    public long getWritten() {
+        return written_.get();
+    }
+
+    /**
+     * Write the queued entries and close the output.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed_) {
+            return;
+        }
+        closed_ = true;
+        // log() calls that got past the check before are about to queue their entries, the final drain must see them
+        while (logging_.get() != 0) {
+            Thread.yield();
+        }
+        lastDrain_ = true;
+        LockSupport.unpark(writer_);
+        // the output must not be closed under the writer
+        boolean interrupted = false;
+        while (writer_.isAlive()) {
+            try {
+                writer_.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        out_.close();
+    }
+
+    private Entry poll() {
+        int index = (int) head_ & mask_;
+        if (sequences_.get(index) != head_ + 1) {
+            return null;
+        }
+        Entry entry = entries_.get(index);
+        entries_.set(index, null);
+        sequences_.set(index, head_ + mask_ + 1);
+        head_++;
+        return entry;
+    }
+
+    private void drain() {
+        StringBuilder sb = new StringBuilder(MAX_BATCH * 256);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        while (true) {
+            boolean last = lastDrain_;
+            int count = 0;
+            Entry entry;
+            while (count < MAX_BATCH && (entry = poll()) != null) {
+                entry.appendJson(sb, format);
+                sb.append('\n');
+                count++;
+            }
+            if (count > 0) {
+                try {
+                    out_.append(sb);
+                    out_.flush();
+                    written_.addAndGet(count);
+                } catch (IOException e) {
+                    dropped_.add(count);
+                    log.warn("Writing the access log failed.", e);
+                }
+                sb.setLength(0);
+                if (count == MAX_BATCH) {
+                    continue;
+                }
+            }
+            if (last) {
+                return;
+            }
+            LockSupport.parkNanos(this, flushIntervalNanos_);
+        }
+    }
+
+    /**
+     * The record of one transfer.
+     */
+    public static class Entry {
+        private final long timeMillis_;
+        private final String client_;
+        private final String file_;
+        private final boolean read_;
+        private final String mode_;
+        private final Map<String, String> options_;
+        private final long bytes_;
+        private final long blocks_;
+        private final long retransmits_;
+        private final long durationMicros_;
+        private final String outcome_;
+
+        /**
+         * @param timeMillis When the transfer started
+         * @param outcome "ok", "failed" or "aborted"
+         */
+        public Entry(long timeMillis, String client, String file, boolean read, String mode, Map<String, String> options,
+                     long bytes, long blocks, long retransmits, long durationMicros, String outcome) {
+            timeMillis_ = timeMillis;
+            client_ = client;
+            file_ = file;
+            read_ = read;
+            mode_ = mode;
+            options_ = options;
+            bytes_ = bytes;
+            blocks_ = blocks;
+            retransmits_ = retransmits;
+            durationMicros_ = durationMicros;
+            outcome_ = outcome;
+        }
+
+        void appendJson(StringBuilder sb, SimpleDateFormat format) {
+            sb.append("{\"time\":\"").append(format.format(new Date(timeMillis_))).append('"');
+            sb.append(",\"client\":");
+            appendString(sb, client_);
+            sb.append(",\"file\":");
+            appendString(sb, file_);
+            sb.append(",\"direction\":\"").append(read_ ? "read" : "write").append('"');
+            sb.append(",\"mode\":");
+            appendString(sb, mode_);
+            sb.append(",\"options\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> option : options_.entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendString(sb, option.getKey());
+                sb.append(':');
+                appendString(sb, option.getValue());
+            }
+            sb.append('}');
+            sb.append(",\"bytes\":").append(bytes_);
+            sb.append(",\"blocks\":").append(blocks_);
+            sb.append(",\"retransmits\":").append(retransmits_);
+            sb.append(",\"duration_ms\":").append(durationMicros_ / 1000).append('.')
+                    .append(String.format(Locale.ROOT, "%03d", durationMicros_ % 1000));
+            sb.append(",\"outcome\":");
+            appendString(sb, outcome_);
+            sb.append('}');
+        }
+
+        private static void appendString(StringBuilder sb, String value) {
+            if (value == null) {
+                sb.append("null");
+                return;
+            }
+            sb.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    case '\r':
+                        sb.append("\\r");
+                        break;
+                    case '\t':
+                        sb.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+            sb.append('"');
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.horstmeier.java.tftp;
+
+import org.apache.commons.net.tftp.TFTPPacket;
+import org.apache.commons.net.tftp.TFTPReadRequestPacket;
+import org.apache.commons.net.tftp.TFTPWriteRequestPacket;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether a packet received on the server port may start a new transfer.
+ *
+ * Three checks are applied: the packet must be a read or write request (received while the server is not
+ * draining), the number of transfers in flight must stay below a global cap and the source address must not
+ * exceed its request rate. The global cap is checked first, so a request rejected by it does not use up a
+ * token of its source. Rejected packets are counted by reason and never cause a transfer to be created.
+ *
+ * The per-source rate limit is a token bucket implemented as a generic cell rate algorithm: each source
+ * only stores the theoretical arrival time of its next request, which is updated with a CAS loop. The
+ * table of sources is bounded; when it is full, sources whose bucket has refilled completely are purged.
+ * All methods are safe to call from several threads without locking.
+ */
+public class AdmissionController {
+
+    public enum DropReason {
+        /** The packet was not a RRQ or WRQ. */
+        NOT_A_REQUEST,
+        /** The server is draining and does not accept new transfers. */
+        DRAINING,
+        /** The source address exceeded its request rate. */
+        RATE_LIMITED,
+        /** Too many distinct source addresses are being tracked. */
+        SOURCE_TABLE_FULL,
+        /** The maximum number of concurrent transfers has been reached. */
+        TOO_MANY_TRANSFERS,
+        /** The packet could not be parsed. */
+        MALFORMED
+    }
+
+    private final ConcurrentHashMap<InetAddress, AtomicLong> sources_ = new ConcurrentHashMap<InetAddress, AtomicLong>();
+    private final AtomicInteger inFlight_ = new AtomicInteger();
+    private final AtomicLong lastPurge_ = new AtomicLong();
+    private final LongAdder[] drops_;
+
+    private volatile int maxInFlight_ = 512;
+    private volatile int maxSources_ = 10000;
+    private volatile long intervalNanos_ = 0;
+    private volatile long burstNanos_ = 0;
+    private volatile boolean draining_ = false;
+
+    public AdmissionController() {
+        drops_ = new LongAdder[DropReason.values().length];
+        for (int i = 0; i < drops_.length; i++) {
+            drops_[i] = new LongAdder();
+        }
+        lastPurge_.set(System.nanoTime() - Long.MAX_VALUE / 2);
+    }
+
+    /**
+     * Check whether the packet may start a new transfer. If true is returned, the caller owns one in-flight
+     * slot and must call {@link #release()} once the transfer is finished.
+     */
+    public boolean admit(TFTPPacket packet) {
+        if (!(packet instanceof TFTPReadRequestPacket) && !(packet instanceof TFTPWriteRequestPacket)) {
+            return drop(DropReason.NOT_A_REQUEST);
+        }
+        if (draining_) {
+            return drop(DropReason.DRAINING);
+        }
+
+        int max = maxInFlight_;
+        while (true) {
+            int current = inFlight_.get();
+            if (current >= max) {
+                return drop(DropReason.TOO_MANY_TRANSFERS);
+            }
+            if (inFlight_.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+
+        long interval = intervalNanos_;
+        if (interval > 0) {
+            DropReason reason = checkRate(packet.getAddress(), interval);
+            if (reason != null) {
+                inFlight_.decrementAndGet();
+                return drop(reason);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count a datagram received on the server port that is no valid TFTP packet.
+     */
+    public void dropMalformed() {
+        drop(DropReason.MALFORMED);
+    }
+
+    /**
+     * Return the in-flight slot obtained by a successful call to {@link #admit(TFTPPacket)}.
+     */
+    public void release() {
+        inFlight_.decrementAndGet();
+    }
+
+    /**
+     * Number of transfers that are currently admitted.
+     */
+    public int getInFlight() {
+        return inFlight_.get();
+    }
+
+    /**
+     * Number of packets dropped for the given reason since the server was started.
+     */
+    public long getDropCount(DropReason reason) {
+        return drops_[reason.ordinal()].sum();
+    }
+
+    /**
+     * Number of source addresses currently tracked by the rate limiter.
+     */
+    public int getTrackedSources() {
+        return sources_.size();
+    }
+
+    /**
+     * While draining, all new requests are dropped. Transfers that were already admitted are not affected.
+     */
+    public void setDraining(boolean draining) {
+        draining_ = draining;
+    }
+
+    public boolean isDraining() {
+        return draining_;
+    }
+
+    /**
+     * Set the max number of concurrent transfers. Default 512. Min 1.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        maxInFlight_ = maxInFlight;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight_;
+    }
+
+    /**
+     * Set the per-source request rate. A source may send up to burst requests at once and is then limited to
+     * requestsPerSecond. A rate of 0 disables the per-source limit, which is the default.
+     *
+     * @param requestsPerSecond Sustained number of requests per second and source address
+     * @param burst Number of requests a source may send back-to-back. Min 1.
+     */
+    public void setRateLimit(double requestsPerSecond, int burst) {
+        if (requestsPerSecond < 0 || burst < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        if (requestsPerSecond == 0) {
+            intervalNanos_ = 0;
+            sources_.clear();
+            return;
+        }
+        long interval = Math.max(1, (long) (1000000000L / requestsPerSecond));
+        burstNanos_ = interval * (burst - 1);
+        intervalNanos_ = interval;
+    }
+
+    /**
+     * Set the max number of source addresses tracked by the rate limiter. Default 10000. Min 1.
+     */
+    public void setMaxSources(int maxSources) {
+        if (maxSources < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        maxSources_ = maxSources;
+    }
+
+    public int getMaxSources() {
+        return maxSources_;
+    }
+
+    private boolean drop(DropReason reason) {
+        drops_[reason.ordinal()].increment();
+        return false;
+    }
+
+    private DropReason checkRate(InetAddress address, long interval) {
+        long now = System.nanoTime();
+        AtomicLong tat = sources_.get(address);
+        if (tat == null) {
+            if (sources_.size() >= maxSources_ && !purge(now)) {
+                return DropReason.SOURCE_TABLE_FULL;
+            }
+            AtomicLong created = new AtomicLong(now + interval);
+            tat = sources_.putIfAbsent(address, created);
+            if (tat == null) {
+                return null;
+            }
+        }
+
+        long burst = burstNanos_;
+        while (true) {
+            long current = tat.get();
+            long start = current - now > 0 ? current : now;
+            if (start - now > burst) {
+                return DropReason.RATE_LIMITED;
+            }
+            if (tat.compareAndSet(current, start + interval)) {
+                return null;
+            }
+        }
+    }
+
+    /*
+     * Remove all sources whose bucket is full again. Only one thread purges at a time and at most once per
+     * interval, so a flood of new addresses cannot turn every packet into a table scan.
+     * Returns true if there is room for a new source afterwards.
+     */
+    private boolean purge(long now) {
+        long last = lastPurge_.get();
+        long minDelay = Math.max(intervalNanos_, 1000000L);
+        if (now - last < minDelay || !lastPurge_.compareAndSet(last, now)) {
+            return sources_.size() < maxSources_;
+        }
+        for (Iterator<AtomicLong> it = sources_.values().iterator(); it.hasNext(); ) {
+            if (it.next().get() - now <= 0) {
+                it.remove();
+            }
+        }
+        return sources_.size() < maxSources_;
+    }
+}
@@ -0,0 +1,152 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IAsyncFileMapper;
+import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import com.horstmeier.java.tftp.interfaces.IRequestAwareFileMapper;
+import com.horstmeier.java.tftp.interfaces.IUploadStream;
+import com.horstmeier.java.tftp.interfaces.RequestContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Makes a blocking {@link IFileNameMapper} usable as an {@link IAsyncFileMapper}. The blocking calls run on an
+ * executor, by default a shared pool of daemon threads. Mappers implementing {@link IRequestAwareFileMapper} get the
+ * request context.
+ *
+ * Cancelling a future interrupts the open if it is running and discards the stream if it finishes anyway.
+ */
+public class AsyncFileMapperAdapter implements IAsyncFileMapper {
+
+    private static final ExecutorService SHARED_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count_ = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TFTPMapperOpen-" + count_.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final IFileNameMapper mapper_;
+    private final ExecutorService executor_;
+
+    /**
+     * Open files on the shared executor.
+     */
+    public AsyncFileMapperAdapter(IFileNameMapper mapper) {
+        this(mapper, SHARED_EXECUTOR);
+    }
+
+    /**
+     * @param executor Runs the blocking calls. Null runs them in the calling thread, the futures are done on return
+     */
+    public AsyncFileMapperAdapter(IFileNameMapper mapper, ExecutorService executor) {
+        mapper_ = mapper;
+        executor_ = executor;
+    }
+
+    public IFileNameMapper getMapper() {
+        return mapper_;
+    }
+
+    @Override
+    public CompletableFuture<InputStream> openInputStream(final RequestContext context) {
+        return submit(new Opener<InputStream>() {
+            @Override
+            public InputStream open() throws IOException {
+                return mapper_ instanceof IRequestAwareFileMapper
+                        ? ((IRequestAwareFileMapper) mapper_).openInputStream(context.getFileName(), context)
+                        : mapper_.openInputStream(context.getFileName());
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<OutputStream> openOutputStream(final RequestContext context) {
+        return submit(new Opener<OutputStream>() {
+            @Override
+            public OutputStream open() throws IOException {
+                return mapper_ instanceof IRequestAwareFileMapper
+                        ? ((IRequestAwareFileMapper) mapper_).openOutputStream(context.getFileName(), context)
+                        : mapper_.openOutputStream(context.getFileName());
+            }
+        });
+    }
+
+    @Override
+    public boolean canRead() {
+        return mapper_.canRead();
+    }
+
+    @Override
+    public boolean canWrite() {
+        return mapper_.canWrite();
+    }
+
+    private interface Opener<T extends Closeable> {
+        T open() throws IOException;
+    }
+
+    private <T extends Closeable> CompletableFuture<T> submit(final Opener<T> opener) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                if (result.isDone()) {
+                    return;
+                }
+                T stream;
+                try {
+                    stream = opener.open();
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                if (!result.complete(stream) && stream != null) {
+                    // cancelled meanwhile, nobody else will close it
+                    discard(stream);
+                }
+            }
+        };
+        if (executor_ == null) {
+            task.run();
+            return result;
+        }
+        final Future<?> running = executor_.submit(task);
+        result.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T stream, Throwable e) {
+                if (result.isCancelled()) {
+                    running.cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    /*
+     * Close a stream nobody will use. Uploads are aborted, closing them would publish an empty file.
+     */
+    private static void discard(Closeable stream) {
+        try {
+            if (stream instanceof IUploadStream) {
+                ((IUploadStream) stream).abort();
+            } else {
+                stream.close();
+            }
+        } catch (IOException e) {
+            // noop
+        }
+    }
+}
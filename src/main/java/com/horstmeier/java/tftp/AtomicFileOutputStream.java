@@ -0,0 +1,124 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IUploadStream;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes an upload to a temporary file next to the target and renames it to the target name once the upload is
+ * complete. Readers never see a partial file, and an aborted upload leaves nothing behind.
+ *
+ * The data is synced before the rename by a {@link GroupCommitter}, which batches the syncs of concurrent uploads.
+ */
+class AtomicFileOutputStream extends FileOutputStream implements IUploadStream {
+
+    private final File target_;
+    private final File temp_;
+    private final GroupCommitter committer_;
+    private boolean closed_ = false;
+    private boolean committed_ = false;
+
+    AtomicFileOutputStream(File target, GroupCommitter committer) throws FileNotFoundException {
+        this(target, tempFileFor(target), committer);
+    }
+
+    private AtomicFileOutputStream(File target, File temp, GroupCommitter committer) throws FileNotFoundException {
+        super(temp);
+        target_ = target;
+        temp_ = temp;
+        committer_ = committer;
+    }
+
+    private static File tempFileFor(File target) {
+        return new File(target.getParentFile(), "." + target.getName() + "."
+                + Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE) + ".part");
+    }
+
+    /**
+     * Fails if the file system does not have enough usable space for the file and extends the temporary file to
+     * the announced size, so its length is set once instead of with every block. The file is truncated to the
+     * bytes actually written when it is committed.
+     */
+    @Override
+    public void preallocate(long size) throws IOException {
+        if (size <= 0) {
+            return;
+        }
+        long usable = temp_.getUsableSpace();
+        if (usable > 0 && size > usable) {
+            throw new IOException("Not enough space for " + size + " bytes, " + usable + " available.");
+        }
+        getChannel().write(ByteBuffer.allocate(1), size - 1);
+    }
+
+    /**
+     * Sync the data and rename the temporary file to the target. Blocks until the group commit is done.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed_) {
+            return;
+        }
+        closed_ = true;
+        try {
+            FileChannel channel = getChannel();
+            channel.truncate(channel.position());
+            committer_.commit(this);
+            committed_ = true;
+        } finally {
+            if (!committed_) {
+                discard();
+            }
+        }
+    }
+
+    @Override
+    public void abort() {
+        if (committed_) {
+            return;
+        }
+        closed_ = true;
+        discard();
+    }
+
+    File getTarget() {
+        return target_;
+    }
+
+    /*
+     * The commit steps, called by the GroupCommitter.
+     */
+    void sync() throws IOException {
+        getChannel().force(false);
+    }
+
+    void closeFile() throws IOException {
+        super.close();
+    }
+
+    void rename() throws IOException {
+        try {
+            Files.move(temp_.toPath(), target_.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp_.toPath(), target_.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void discard() {
+        try {
+            super.close();
+        } catch (IOException e) {
+            // noop
+        }
+        temp_.delete();
+    }
+}
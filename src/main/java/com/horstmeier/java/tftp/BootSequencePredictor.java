@@ -0,0 +1,242 @@
+package com.horstmeier.java.tftp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Learns in which order clients request files and predicts the next ones.
+ *
+ * Network boot clients request their files in a fixed order, e.g. pxelinux.0, ldlinux.c32, pxelinux.cfg/...,
+ * vmlinuz, initrd. For every file the predictor counts which file the same client (by IP address) requested next
+ * within the window. A successor is predicted once it was seen often enough and followed the file in at least the
+ * configured share of the cases. Predictions are chained: after pxelinux.0 the predictor also names the likely
+ * successors of ldlinux.c32, up to the max depth.
+ *
+ * Predicted files that were prefetched for a client (see {@link #prefetched(String, String)}) are remembered until
+ * the window expires, so a later request can be counted as a hit. Every prefetch yields at most one hit. Memory is
+ * bounded: the least recently used files and clients are forgotten, and every file keeps only its
+ * most frequent successors.
+ */
+public class BootSequencePredictor {
+
+    private static final int MAX_FILES = 4096;
+    private static final int MAX_CLIENTS = 4096;
+    private static final int MAX_SUCCESSORS = 16;
+
+    private final Map<String, Successors> successors_ = new LinkedHashMap<String, Successors>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Successors> eldest) {
+            return size() > MAX_FILES;
+        }
+    };
+    private final Map<String, ClientState> clients_ = new LinkedHashMap<String, ClientState>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ClientState> eldest) {
+            return size() > MAX_CLIENTS;
+        }
+    };
+
+    private int maxDepth_ = 4;
+    private int minCount_ = 2;
+    private double minConfidence_ = 0.5;
+    private long windowMillis_ = 60000;
+
+    /**
+     * Set how many files are predicted ahead of a request. Default 4. 0 disables predictions, learning goes on.
+     */
+    public synchronized void setMaxDepth(int depth) {
+        if (depth < 0) {
+            throw new RuntimeException("Invalid Value");
+        }
+        maxDepth_ = depth;
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth_;
+    }
+
+    /**
+     * Set how often a successor must have been seen before it is predicted. Default 2. Min 1.
+     */
+    public synchronized void setMinCount(int count) {
+        if (count < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        minCount_ = count;
+    }
+
+    public synchronized int getMinCount() {
+        return minCount_;
+    }
+
+    /**
+     * Set the share of the cases in which a successor must have followed the file to be predicted. Default 0.5.
+     */
+    public synchronized void setMinConfidence(double confidence) {
+        if (confidence <= 0 || confidence > 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        minConfidence_ = confidence;
+    }
+
+    public synchronized double getMinConfidence() {
+        return minConfidence_;
+    }
+
+    /**
+     * Set the max time between two requests of a client that still counts as a sequence, in milliseconds. It is
+     * also the time a prediction waits for its hit. Default 60000.
+     */
+    public synchronized void setWindowMillis(long windowMillis) {
+        if (windowMillis < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        windowMillis_ = windowMillis;
+    }
+
+    public synchronized long getWindowMillis() {
+        return windowMillis_;
+    }
+
+    /**
+     * Learn from a read request.
+     * @param client Identifies the client, e.g. its IP address
+     * @return True if the file was prefetched for this client
+     */
+    public boolean recordRead(String client, String fileName) {
+        return recordRead(client, fileName, System.currentTimeMillis());
+    }
+
+    synchronized boolean recordRead(String client, String fileName, long now) {
+        ClientState state = clients_.get(client);
+        if (state == null) {
+            state = new ClientState();
+            clients_.put(client, state);
+        }
+        Long expires = state.pending_.remove(fileName);
+        boolean hit = expires != null && expires >= now;
+
+        if (state.lastFile_ != null && now - state.lastMillis_ <= windowMillis_ && !state.lastFile_.equals(fileName)) {
+            Successors successors = successors_.get(state.lastFile_);
+            if (successors == null) {
+                successors = new Successors();
+                successors_.put(state.lastFile_, successors);
+            }
+            successors.add(fileName);
+        }
+        state.lastFile_ = fileName;
+        state.lastMillis_ = now;
+        return hit;
+    }
+
+    /**
+     * The files the client will likely request after this one, most likely first.
+     */
+    public List<String> predict(String client, String fileName) {
+        return predict(client, fileName, System.currentTimeMillis());
+    }
+
+    synchronized List<String> predict(String client, String fileName, long now) {
+        List<String> predicted = new ArrayList<String>(maxDepth_);
+        String current = fileName;
+        while (predicted.size() < maxDepth_) {
+            Successors successors = successors_.get(current);
+            String next = successors == null ? null : successors.mostLikely(minCount_, minConfidence_);
+            if (next == null || next.equals(fileName) || predicted.contains(next)) {
+                break;
+            }
+            predicted.add(next);
+            current = next;
+        }
+        return predicted;
+    }
+
+    /**
+     * Remember that a predicted file was prefetched for the client, so its request counts as a hit.
+     */
+    public void prefetched(String client, String fileName) {
+        prefetched(client, fileName, System.currentTimeMillis());
+    }
+
+    synchronized void prefetched(String client, String fileName, long now) {
+        ClientState state = clients_.get(client);
+        if (state == null) {
+            state = new ClientState();
+            clients_.put(client, state);
+        }
+        state.expire(now);
+        state.pending_.put(fileName, now + windowMillis_);
+    }
+
+    /**
+     * Forget everything learned.
+     */
+    public synchronized void clear() {
+        successors_.clear();
+        clients_.clear();
+    }
+
+    private static class ClientState {
+        private String lastFile_;
+        private long lastMillis_;
+        private final Map<String, Long> pending_ = new HashMap<String, Long>();
+
+        void expire(long now) {
+            for (Iterator<Long> it = pending_.values().iterator(); it.hasNext(); ) {
+                if (it.next() < now) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /*
+     * The successors of a file and how often they were seen.
+     */
+    private static class Successors {
+        private final Map<String, int[]> counts_ = new HashMap<String, int[]>();
+        private int total_;
+
+        void add(String fileName) {
+            int[] count = counts_.get(fileName);
+            if (count == null) {
+                if (counts_.size() >= MAX_SUCCESSORS) {
+                    evictRarest();
+                }
+                count = new int[1];
+                counts_.put(fileName, count);
+            }
+            count[0]++;
+            total_++;
+        }
+
+        private void evictRarest() {
+            String rarest = null;
+            int min = Integer.MAX_VALUE;
+            for (Map.Entry<String, int[]> entry : counts_.entrySet()) {
+                if (entry.getValue()[0] < min) {
+                    min = entry.getValue()[0];
+                    rarest = entry.getKey();
+                }
+            }
+            counts_.remove(rarest);
+            total_ -= min;
+        }
+
+        String mostLikely(int minCount, double minConfidence) {
+            String best = null;
+            int max = 0;
+            for (Map.Entry<String, int[]> entry : counts_.entrySet()) {
+                if (entry.getValue()[0] > max) {
+                    max = entry.getValue()[0];
+                    best = entry.getKey();
+                }
+            }
+            return max >= minCount && max >= minConfidence * total_ ? best : null;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IContentInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Passes a stream through and keeps a copy of everything read. When the stream was read to the end, the copy is put
+ * into a {@link ContentCache}. Content larger than the max entry size of the cache, or streams that are not read
+ * completely, are not cached.
+ *
+ * Readers that stop at the known size never see the end of the stream, so close() completes the copy too, if the
+ * known length was read or the stream has no more data.
+ */
+class CachingInputStream extends FilterInputStream implements IContentInfo {
+
+    private final ContentCache cache_;
+    private final String key_;
+    private final long length_;
+    private ByteArrayOutputStream copy_;
+
+    /**
+     * @param key The cache key, also reported as content version
+     * @param length The length of the content if known, -1 otherwise
+     */
+    CachingInputStream(InputStream in, ContentCache cache, String key, long length) {
+        super(in);
+        cache_ = cache;
+        key_ = key;
+        length_ = length;
+        int max = cache.getMaxEntryBytes();
+        if (length <= max) {
+            copy_ = new ByteArrayOutputStream(length >= 0 ? (int) length : Math.min(max, 65536));
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            complete();
+        } else if (copy_ != null) {
+            copy_.write(b);
+            checkSize();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n < 0) {
+            complete();
+        } else if (copy_ != null) {
+            copy_.write(b, off, n);
+            checkSize();
+        }
+        return n;
+    }
+
+    /**
+     * Skipped content is not copied, so the stream is not cached any more.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        copy_ = null;
+        return in.skip(n);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (copy_ != null && isAtEnd()) {
+                complete();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length_;
+    }
+
+    @Override
+    public String getContentVersion() {
+        return key_;
+    }
+
+    private void checkSize() {
+        if (copy_.size() > cache_.getMaxEntryBytes()) {
+            copy_ = null;
+        }
+    }
+
+    private boolean isAtEnd() {
+        if (length_ >= 0) {
+            return copy_.size() == length_;
+        }
+        try {
+            return in.read() < 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void complete() {
+        if (copy_ != null) {
+            cache_.put(key_, copy_.toByteArray());
+            copy_ = null;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IContentInfo;
+import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import com.horstmeier.java.tftp.interfaces.IUploadStream;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores files compressed and serves them decompressed.
+ *
+ * A request for foo.bin is served from foo.bin.gz if the wrapped mapper has it, otherwise from foo.bin. The data is
+ * decompressed while it is sent. Recently decompressed files are kept in a {@link ContentCache}, so repeated
+ * downloads of hot images don't decompress them again. Only content whose stream identifies its version (see
+ * {@link IContentInfo}) can be cached.
+ *
+ * Uploads can be compressed on write. They are stored as foo.bin.gz then. Since the compressed file is preferred,
+ * an uncompressed upload does not replace a compressed file of the same name.
+ *
+ * A name without a compressed file is remembered for a few seconds (see {@link #setMissExpiryMillis(long)}), so
+ * requests for plain files don't look for the .gz file every time. A compressed file added meanwhile by other means
+ * is served once the entry has expired.
+ */
+public class CompressedFileMapper implements IFileNameMapper {
+
+    private static final String SUFFIX = ".gz";
+    private static final int BUFFER_SIZE = 65536;
+    private static final int MAX_MISSES = 10000;
+
+    private final IFileNameMapper mapper_;
+    private final ContentCache cache_ = new ContentCache(128 * 1024 * 1024, 32 * 1024 * 1024);
+    private final ConcurrentHashMap<String, Long> misses_ = new ConcurrentHashMap<String, Long>();
+    private volatile boolean compressUploads_ = false;
+    private volatile long missExpiryMillis_ = 5000;
+
+    public CompressedFileMapper(IFileNameMapper mapper) {
+        mapper_ = mapper;
+    }
+
+    /**
+     * The cache of decompressed files. Default 128 MB, files up to 32 MB.
+     */
+    public ContentCache getCache() {
+        return cache_;
+    }
+
+    /**
+     * Store uploads compressed. Default false.
+     */
+    public void setCompressUploads(boolean compressUploads) {
+        compressUploads_ = compressUploads;
+    }
+
+    public boolean isCompressUploads() {
+        return compressUploads_;
+    }
+
+    /**
+     * How long a name without a compressed file is remembered. Default 5000 ms, 0 looks for the .gz file every time.
+     */
+    public void setMissExpiryMillis(long missExpiryMillis) {
+        if (missExpiryMillis < 0) {
+            throw new RuntimeException("Invalid Value");
+        }
+        missExpiryMillis_ = missExpiryMillis;
+    }
+
+    public long getMissExpiryMillis() {
+        return missExpiryMillis_;
+    }
+
+    @Override
+    public InputStream openInputStream(String fileName) throws IOException {
+        InputStream compressed = isKnownMiss(fileName) ? null : openIfExists(fileName + SUFFIX);
+        if (compressed == null) {
+            rememberMiss(fileName);
+            return mapper_.openInputStream(fileName);
+        }
+
+        String version = compressed instanceof IContentInfo ? ((IContentInfo) compressed).getContentVersion() : null;
+        if (version == null) {
+            try {
+                return new GZIPInputStream(compressed, BUFFER_SIZE);
+            } catch (IOException e) {
+                compressed.close();
+                throw e;
+            }
+        }
+        String key = "gunzip\0" + version;
+        byte[] content = cache_.get(key);
+        if (content != null) {
+            compressed.close();
+            return new ContentInputStream(content, key);
+        }
+        try {
+            return new CachingInputStream(new GZIPInputStream(compressed, BUFFER_SIZE), cache_, key, -1);
+        } catch (IOException e) {
+            compressed.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public OutputStream openOutputStream(String fileName) throws IOException {
+        if (!compressUploads_) {
+            return mapper_.openOutputStream(fileName);
+        }
+        OutputStream out = mapper_.openOutputStream(fileName + SUFFIX);
+        misses_.remove(fileName);
+        return out == null ? null : new CompressingUploadStream(out, fileName);
+    }
+
+    @Override
+    public boolean canRead() {
+        return mapper_.canRead();
+    }
+
+    @Override
+    public boolean canWrite() {
+        return mapper_.canWrite();
+    }
+
+    private boolean isKnownMiss(String fileName) {
+        Long time = misses_.get(fileName);
+        if (time == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - time < missExpiryMillis_) {
+            return true;
+        }
+        misses_.remove(fileName, time);
+        return false;
+    }
+
+    private void rememberMiss(String fileName) {
+        if (missExpiryMillis_ == 0 || misses_.containsKey(fileName)) {
+            return;
+        }
+        if (misses_.size() >= MAX_MISSES) {
+            misses_.clear();
+        }
+        misses_.put(fileName, System.currentTimeMillis());
+    }
+
+    /*
+     * The stream of the wrapped mapper, null if it does not have the file.
+     */
+    private InputStream openIfExists(String fileName) throws IOException {
+        try {
+            return mapper_.openInputStream(fileName);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Compresses an upload and passes abort() on, so an aborted upload is discarded by the wrapped mapper. A miss
+     * remembered while the upload was running is dropped on close.
+     */
+    private class CompressingUploadStream extends GZIPOutputStream implements IUploadStream {
+
+        private final String fileName_;
+
+        CompressingUploadStream(OutputStream out, String fileName) throws IOException {
+            super(out, BUFFER_SIZE);
+            fileName_ = fileName;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                misses_.remove(fileName_);
+            }
+        }
+
+        /**
+         * The compressed size is not known in advance, nothing is reserved.
+         */
+        @Override
+        public void preallocate(long size) {
+        }
+
+        @Override
+        public void abort() {
+            def.end();
+            if (out instanceof IUploadStream) {
+                ((IUploadStream) out).abort();
+            } else {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // noop
+                }
+            }
+        }
+    }
+}
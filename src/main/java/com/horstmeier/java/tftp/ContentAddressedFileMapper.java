@@ -0,0 +1,430 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IContentInfo;
+import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import com.horstmeier.java.tftp.interfaces.IUploadStream;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stores files by content. Every distinct content is stored once as a blob named by its SHA-256 hash, and file
+ * names are mapped to hashes. Identical kernels or initrds uploaded under many names take the disk space and the
+ * page cache of one file, and caches keyed by content version (see {@link IContentInfo}) hold them once.
+ *
+ * The store directory contains
+ * <ul>
+ *     <li>blobs/xx/&lt;hash&gt; - the content, xx being the first two hex digits of the hash</li>
+ *     <li>index - an append-only journal of "hash name" lines, the last line for a name wins</li>
+ *     <li>tmp - uploads in progress, cleared when the mapper is created</li>
+ * </ul>
+ * The index is loaded when the mapper is created and rewritten then if it holds many overwritten entries. Blobs
+ * no name refers to any more are not removed.
+ *
+ * Names are stored with '/' as separator and without leading separators, so "/boot/x" and "boot\x" find the
+ * entry "boot/x", as they find the same file with a DefaultFileMapper.
+ */
+public class ContentAddressedFileMapper implements IFileNameMapper, Closeable {
+
+    private static final Logger log = Logger.getLogger(ContentAddressedFileMapper.class);
+
+    private static final int HASH_LENGTH = 64;
+
+    private final File blobDirectory_;
+    private final File tempDirectory_;
+    private final File indexFile_;
+    private final Mode mode_;
+    private final ConcurrentHashMap<String, String> index_ = new ConcurrentHashMap<String, String>();
+    private FileChannel journal_;
+    private long indexLength_ = 0;
+
+    public ContentAddressedFileMapper(File storeDirectory, Mode mode) throws IOException {
+        File store = storeDirectory.getCanonicalFile();
+        blobDirectory_ = new File(store, "blobs");
+        tempDirectory_ = new File(store, "tmp");
+        indexFile_ = new File(store, "index");
+        mode_ = mode;
+        Files.createDirectories(blobDirectory_.toPath());
+        Files.createDirectories(tempDirectory_.toPath());
+        // left over by uploads that were interrupted by a crash
+        File[] leftOvers = tempDirectory_.listFiles();
+        if (leftOvers != null) {
+            for (File leftOver : leftOvers) {
+                leftOver.delete();
+            }
+        }
+
+        int lines = loadIndex();
+        if (lines > 2 * index_.size() + 1000) {
+            compactIndex();
+        }
+        journal_ = FileChannel.open(indexFile_.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (journal_.size() > indexLength_) {
+            // drop a torn last line, so the next line does not get appended to it
+            journal_.truncate(indexLength_);
+        }
+        log.debug("Loaded content index with " + index_.size() + " names from " + indexFile_ + ".");
+    }
+
+    @Override
+    public InputStream openInputStream(String fileName) throws IOException {
+        if (mode_ == Mode.PUT_ONLY) {
+            throw new IOException("Reading is not allowed.");
+        }
+        String hash = index_.get(normalize(fileName));
+        if (hash == null) {
+            throw new FileNotFoundException(fileName);
+        }
+        return new BlobInputStream(blobFile(hash), hash);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String fileName) throws IOException {
+        if (mode_ == Mode.GET_ONLY) {
+            throw new IOException("Writing is not allowed");
+        }
+        return new BlobOutputStream(fileName);
+    }
+
+    @Override
+    public boolean canRead() {
+        return mode_ != Mode.PUT_ONLY;
+    }
+
+    @Override
+    public boolean canWrite() {
+        return mode_ != Mode.GET_ONLY;
+    }
+
+    /**
+     * The hash of the content stored for the name, null if the name is unknown.
+     */
+    public String getHash(String fileName) {
+        return index_.get(normalize(fileName));
+    }
+
+    /**
+     * The number of names in the index.
+     */
+    public int getNameCount() {
+        return index_.size();
+    }
+
+    /**
+     * Add all files below a directory, e.g. the root of a DefaultFileMapper, under their path relative to it with
+     * '/' as separator. Existing names are replaced.
+     * @return The number of files added
+     */
+    public int importTree(File directory) throws IOException {
+        return importTree(directory.getCanonicalFile(), directory.getCanonicalFile());
+    }
+
+    private int importTree(File root, File directory) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File child : children) {
+            if (Files.isSymbolicLink(child.toPath())) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                count += importTree(root, child);
+            } else if (child.isFile()) {
+                String name = root.toPath().relativize(child.toPath()).toString().replace(File.separatorChar, '/');
+                OutputStream os = new BlobOutputStream(name);
+                try {
+                    Files.copy(child.toPath(), os);
+                } catch (IOException e) {
+                    ((IUploadStream) os).abort();
+                    throw e;
+                }
+                os.close();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (journal_ != null) {
+            journal_.close();
+            journal_ = null;
+        }
+    }
+
+    /*
+     * '/' as separator, no leading separators.
+     */
+    private static String normalize(String name) {
+        String normalized = name.replace('\\', '/');
+        int start = 0;
+        while (start < normalized.length() && normalized.charAt(start) == '/') {
+            start++;
+        }
+        return normalized.substring(start);
+    }
+
+    private File blobFile(String hash) {
+        return new File(new File(blobDirectory_, hash.substring(0, 2)), hash);
+    }
+
+    /*
+     * Read the journal, a torn last line (e.g. after a crash) or malformed lines are skipped.
+     * Returns the number of valid lines.
+     */
+    private int loadIndex() throws IOException {
+        if (!indexFile_.exists()) {
+            return 0;
+        }
+        int lines = 0;
+        byte[] content = Files.readAllBytes(indexFile_.toPath());
+        int start = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == '\n') {
+                String line = new String(content, start, i - start, StandardCharsets.UTF_8);
+                start = i + 1;
+                int space = line.indexOf(' ');
+                if (space != HASH_LENGTH || !isHash(line.substring(0, space))) {
+                    log.warn("Ignoring malformed line in content index " + indexFile_ + ": " + line);
+                    continue;
+                }
+                String name;
+                try {
+                    name = URLDecoder.decode(line.substring(space + 1), "UTF-8");
+                } catch (IllegalArgumentException e) {
+                    log.warn("Ignoring malformed line in content index " + indexFile_ + ": " + line);
+                    continue;
+                }
+                index_.put(normalize(name), line.substring(0, space));
+                lines++;
+            }
+        }
+        indexLength_ = start;
+        return lines;
+    }
+
+    private static boolean isHash(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String journalLine(String name, String hash) throws UnsupportedEncodingException {
+        return hash + ' ' + URLEncoder.encode(name, "UTF-8") + '\n';
+    }
+
+    /*
+     * Replace the journal by one line per name.
+     */
+    private void compactIndex() throws IOException {
+        Path temp = new File(tempDirectory_, "index." + ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE)).toPath();
+        StringBuilder sb = new StringBuilder(index_.size() * 100);
+        for (Map.Entry<String, String> entry : index_.entrySet()) {
+            sb.append(journalLine(entry.getKey(), entry.getValue()));
+        }
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer buffer = StandardCharsets.UTF_8.encode(sb.toString());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+        move(temp, indexFile_.toPath());
+        indexLength_ = Files.size(indexFile_.toPath());
+        log.info("Compacted content index " + indexFile_ + " to " + index_.size() + " names.");
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /*
+     * Make a move into the directory durable. Not every platform can open a directory (e.g. Windows), there the
+     * move is left to the file system.
+     */
+    private static void syncDirectory(File directory) {
+        try {
+            FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.debug("Can't sync directory " + directory + ".", e);
+        }
+    }
+
+    /*
+     * Make the name point to the hash, durable before the upload is acknowledged.
+     */
+    private synchronized void record(String name, String hash) throws IOException {
+        if (journal_ == null) {
+            throw new IOException("Content store is closed.");
+        }
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(journalLine(name, hash));
+        while (buffer.hasRemaining()) {
+            journal_.write(buffer);
+        }
+        journal_.force(false);
+        index_.put(name, hash);
+    }
+
+    /*
+     * A blob, identified by its hash - every name with the same content has the same content version.
+     */
+    private static class BlobInputStream extends FileInputStream implements IContentInfo {
+        private final String hash_;
+        private final long length_;
+
+        BlobInputStream(File blob, String hash) throws FileNotFoundException {
+            super(blob);
+            hash_ = hash;
+            length_ = blob.length();
+        }
+
+        @Override
+        public long getContentLength() {
+            return length_;
+        }
+
+        @Override
+        public String getContentVersion() {
+            return "sha256:" + hash_;
+        }
+    }
+
+    /*
+     * Writes an upload to a temporary file while hashing it. On close the file becomes the blob for its hash -
+     * or is dropped if that blob exists already - and the name is recorded in the index.
+     */
+    private class BlobOutputStream extends OutputStream implements IUploadStream {
+        private final String name_;
+        private final File temp_;
+        private final FileOutputStream out_;
+        private final MessageDigest digest_;
+        private boolean closed_ = false;
+        private boolean stored_ = false;
+
+        BlobOutputStream(String name) throws IOException {
+            name_ = normalize(name);
+            temp_ = new File(tempDirectory_, Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE) + ".part");
+            try {
+                digest_ = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 is not available.", e);
+            }
+            out_ = new FileOutputStream(temp_);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            digest_.update((byte) b);
+            out_.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            digest_.update(b, off, len);
+            out_.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed_) {
+                return;
+            }
+            closed_ = true;
+            try {
+                String hash = toHex(digest_.digest());
+                File blob = blobFile(hash);
+                if (blob.exists()) {
+                    out_.close();
+                    temp_.delete();
+                } else {
+                    out_.getChannel().force(false);
+                    out_.close();
+                    File directory = blob.getParentFile();
+                    if (!directory.isDirectory()) {
+                        Files.createDirectories(directory.toPath());
+                        syncDirectory(blobDirectory_);
+                    }
+                    try {
+                        Files.move(temp_.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    } catch (FileAlreadyExistsException e) {
+                        // stored by a concurrent upload meanwhile
+                        temp_.delete();
+                    }
+                    // the blob must survive a crash before the name referring to it is recorded
+                    syncDirectory(directory);
+                }
+                record(name_, hash);
+                stored_ = true;
+            } finally {
+                if (!stored_) {
+                    abort();
+                }
+            }
+        }
+
+        @Override
+        public void preallocate(long size) throws IOException {
+            long usable = tempDirectory_.getUsableSpace();
+            if (usable > 0 && size > usable) {
+                throw new IOException("Not enough space for " + size + " bytes, " + usable + " available.");
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (stored_) {
+                return;
+            }
+            closed_ = true;
+            try {
+                out_.close();
+            } catch (IOException e) {
+                // noop
+            }
+            temp_.delete();
+        }
+
+        private String toHex(byte[] bytes) {
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        }
+    }
+}
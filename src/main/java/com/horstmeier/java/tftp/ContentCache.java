@@ -0,0 +1,121 @@
+package com.horstmeier.java.tftp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded in-memory cache for file content, least recently used entries are evicted first. The size is bounded
+ * by the total number of bytes held.
+ *
+ * Keys must identify the content, see {@link com.horstmeier.java.tftp.interfaces.IContentInfo#getContentVersion()}.
+ * Entries are never invalidated - a changed file gets a new key, and the stale entry ages out.
+ */
+public class ContentCache {
+
+    private final LinkedHashMap<String, byte[]> entries_ = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+    private long maxBytes_;
+    private int maxEntryBytes_;
+    private long bytes_ = 0;
+    private final LongAdder hits_ = new LongAdder();
+    private final LongAdder misses_ = new LongAdder();
+
+    /**
+     * @param maxBytes Max number of bytes held by all entries
+     * @param maxEntryBytes Max size of a single entry, larger content is not cached
+     */
+    public ContentCache(long maxBytes, int maxEntryBytes) {
+        setMaxBytes(maxBytes);
+        setMaxEntryBytes(maxEntryBytes);
+    }
+
+    /**
+     * The cached content, or null. Counts a hit or a miss.
+     */
+    public synchronized byte[] get(String key) {
+        byte[] content = entries_.get(key);
+        if (content == null) {
+            misses_.increment();
+        } else {
+            hits_.increment();
+        }
+        return content;
+    }
+
+    /**
+     * Cache the content, unless it is larger than the max entry size. The caller must not modify it afterwards.
+     */
+    public synchronized void put(String key, byte[] content) {
+        if (content.length > maxEntryBytes_ || content.length > maxBytes_) {
+            return;
+        }
+        byte[] previous = entries_.put(key, content);
+        if (previous != null) {
+            bytes_ -= previous.length;
+        }
+        bytes_ += content.length;
+        evict();
+    }
+
+    public synchronized void clear() {
+        entries_.clear();
+        bytes_ = 0;
+    }
+
+    /**
+     * Set the max number of bytes held by the cache. Min 0, 0 disables the cache.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new RuntimeException("Invalid Value");
+        }
+        maxBytes_ = maxBytes;
+        evict();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes_;
+    }
+
+    /**
+     * Set the max size of a single entry in bytes. Min 0.
+     */
+    public synchronized void setMaxEntryBytes(int maxEntryBytes) {
+        if (maxEntryBytes < 0) {
+            throw new RuntimeException("Invalid Value");
+        }
+        maxEntryBytes_ = maxEntryBytes;
+    }
+
+    public synchronized int getMaxEntryBytes() {
+        return maxEntryBytes_;
+    }
+
+    /**
+     * The number of bytes currently held.
+     */
+    public synchronized long getBytes() {
+        return bytes_;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries_.size();
+    }
+
+    public long getHits() {
+        return hits_.sum();
+    }
+
+    public long getMisses() {
+        return misses_.sum();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, byte[]>> it = entries_.entrySet().iterator();
+        while (bytes_ > maxBytes_ && it.hasNext()) {
+            bytes_ -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IContentInfo;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Serves content held in memory, e.g. from a {@link ContentCache}. The length is known, so it can be announced
+ * with the tsize option.
+ */
+public class ContentInputStream extends ByteArrayInputStream implements IContentInfo {
+
+    private final String version_;
+
+    /**
+     * @param version Identifies the content for caches, null if it must not be cached
+     */
+    public ContentInputStream(byte[] content, String version) {
+        super(content);
+        version_ = version;
+    }
+
+    @Override
+    public long getContentLength() {
+        return count;
+    }
+
+    @Override
+    public String getContentVersion() {
+        return version_;
+    }
+}
@@ -1,23 +1,63 @@
 package com.horstmeier.java.tftp;
 
 import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import com.horstmeier.java.tftp.interfaces.IWarmable;
+import org.apache.log4j.Logger;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * The DefaultFileMapper emulates the previous behaviour of the TFTP server.
+ *
+ * Resolved paths are cached, so repeated requests for the same name cost no file system metadata calls. The
+ * cache watches the directories involved and forgets paths as soon as entries are created or deleted there.
+ *
+ * Uploads are written to a temporary file in the target directory and renamed to the target name once they are
+ * complete and synced, see {@link AtomicFileOutputStream}. The syncs of concurrent uploads are batched.
+ *
+ * Before the server accepts requests, the read directory is scanned in parallel into a {@link FileTreeIndex}, which
+ * can be persisted to make the scan of a large unchanged tree cheap. The index is kept and watched (see
+ * {@link WatchedFileTree}): requests for names it knows not to exist fail without touching the file system, which
+ * is most of what a PXE client asks for first. Configured hot files are read once, so they are in the page cache
+ * and their paths are resolved when the first clients arrive.
  */
-public class DefaultFileMapper implements IFileNameMapper {
+public class DefaultFileMapper implements IFileNameMapper, IWarmable, Closeable {
 
+    private static final Logger log = Logger.getLogger(DefaultFileMapper.class);
 
+    private static final int PATH_CACHE_SIZE = 10000;
+    private static final int DEFAULT_COMMIT_WINDOW = 2;
+    private static final int MAX_WATCHED_DIRECTORIES = 10000;
 
     private final File serverReadDirectory_;
     private final File serverWriteDirectory_;
+    private final Path readRoot_;
+    private final Path writeRoot_;
     private final Mode mode_;
+    private final ResolvedPathCache pathCache_ = new ResolvedPathCache(PATH_CACHE_SIZE);
+    private final GroupCommitter committer_ = new GroupCommitter(DEFAULT_COMMIT_WINDOW);
+    private File indexSnapshot_;
+    private String[] preloadPatterns_ = new String[0];
+    private volatile WatchedFileTree tree_;
 
     public DefaultFileMapper(File serverReadDirectory, File serverWriteDirectory, Mode mode) throws IOException {
         serverReadDirectory_ = serverReadDirectory.getCanonicalFile();
         serverWriteDirectory_ = serverWriteDirectory.getCanonicalFile();
+        readRoot_ = serverReadDirectory_.toPath();
+        writeRoot_ = serverWriteDirectory_.toPath();
         mode_ = mode;
     }
 
@@ -27,8 +67,12 @@ public class DefaultFileMapper implements IFileNameMapper {
         if (mode_ == Mode.PUT_ONLY) {
             throw new IOException("Reading is not allowed.");
         }
-        File f = buildSafeFile(serverReadDirectory_, fileName, false);
-        return new FileInputStream(f);
+        File f = buildSafeFile(serverReadDirectory_, readRoot_, fileName, false);
+        WatchedFileTree tree = tree_;
+        if (tree != null && tree.isMissing(f.toPath())) {
+            throw new FileNotFoundException(f.getPath());
+        }
+        return VersionedFileInputStream.open(f);
     }
 
     @Override
@@ -36,8 +80,157 @@ public class DefaultFileMapper implements IFileNameMapper {
         if (mode_ == Mode.GET_ONLY) {
             throw new IOException("Writing is not allowed");
         }
-        File f = buildSafeFile(serverWriteDirectory_, fileName, true);
-        return new FileOutputStream(f);
+        File f = buildSafeFile(serverWriteDirectory_, writeRoot_, fileName, true);
+        WatchedFileTree tree = tree_;
+        if (tree != null) {
+            // don't wait for the watch event, the file may be requested as soon as the upload is acknowledged
+            tree.forget(f.toPath().getParent());
+        }
+        return new AtomicFileOutputStream(f, committer_);
+    }
+
+    /**
+     * Set how long a completed upload waits for others to be synced together with it, in milliseconds. Uploads
+     * completed while a batch is synced are always batched. Default 2. Min 0.
+     */
+    public void setGroupCommitWindow(int millis) {
+        if (millis < 0) {
+            throw new RuntimeException("Invalid Value");
+        }
+        committer_.setWindowMillis(millis);
+    }
+
+    public int getGroupCommitWindow() {
+        return committer_.getWindowMillis();
+    }
+
+    /**
+     * Keep the index of the read directory in this file. It is loaded at startup and only directories changed since are listed again;
+     * the new index is written back afterwards. Default null, no snapshot.
+     */
+    public void setIndexSnapshot(File indexSnapshot) {
+        indexSnapshot_ = indexSnapshot;
+    }
+
+    public File getIndexSnapshot() {
+        return indexSnapshot_;
+    }
+
+    /**
+     * Glob patterns (see {@link FileSystems#getDefault()}.getPathMatcher) of files relative to the read directory
+     * that are read once at startup, e.g. "pxelinux.0" or "boot/**". Default none.
+     */
+    public void setPreloadPatterns(String... patterns) {
+        preloadPatterns_ = patterns.clone();
+    }
+
+    public String[] getPreloadPatterns() {
+        return preloadPatterns_.clone();
+    }
+
+    /**
+     * The index of the read directory built by {@link #warmUp()}, null before.
+     */
+    public FileTreeIndex getIndex() {
+        WatchedFileTree tree = tree_;
+        return tree == null ? null : tree.getIndex();
+    }
+
+    /**
+     * Scan the read directory into the index used for requests, and read the files matching the preload patterns.
+     * A second call replaces the index.
+     */
+    @Override
+    public void warmUp() throws IOException {
+        if (mode_ == Mode.PUT_ONLY) {
+            return;
+        }
+        long started = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+        try {
+            FileTreeIndex previous = null;
+            if (indexSnapshot_ != null) {
+                try {
+                    previous = FileTreeIndex.load(indexSnapshot_);
+                } catch (IOException e) {
+                    log.warn("Can't read index snapshot " + indexSnapshot_ + ", scanning the whole tree.", e);
+                }
+            }
+            WatchedFileTree tree = WatchedFileTree.scan(readRoot_, previous, pool, MAX_WATCHED_DIRECTORIES);
+            WatchedFileTree old;
+            synchronized (this) {
+                old = tree_;
+                tree_ = tree;
+            }
+            if (old != null) {
+                old.close();
+            }
+            FileTreeIndex index = tree.getIndex();
+            if (indexSnapshot_ != null) {
+                index.save(indexSnapshot_);
+            }
+            long bytes = preloadPatterns_.length == 0 ? 0 : preload(index, pool);
+            log.info("Indexed " + index.getFileCount() + " files in " + index.getDirectoryCount() + " directories of "
+                    + readRoot_ + " (" + tree.getKnownDirectoryCount() + " watched) and preloaded " + bytes
+                    + " bytes in " + (System.currentTimeMillis() - started) + " ms.");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * Read all files matching the preload patterns in parallel. Returns the number of bytes read.
+     */
+    private long preload(FileTreeIndex index, ForkJoinPool pool) throws IOException {
+        List<PathMatcher> matchers = new ArrayList<PathMatcher>(preloadPatterns_.length);
+        for (String pattern : preloadPatterns_) {
+            matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+        }
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (final String name : index.getNames()) {
+            Path relative = Paths.get(name);
+            for (PathMatcher matcher : matchers) {
+                if (matcher.matches(relative)) {
+                    results.add(pool.submit(new Callable<Long>() {
+                        public Long call() throws IOException {
+                            return preloadFile(name);
+                        }
+                    }));
+                    break;
+                }
+            }
+        }
+        long bytes = 0;
+        for (Future<Long> result : results) {
+            try {
+                bytes += result.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while preloading files.");
+            } catch (ExecutionException e) {
+                log.debug("Preloading failed.", e.getCause());
+            }
+        }
+        return bytes;
+    }
+
+    /*
+     * Resolve the name through the path cache and read the file, so it is in the page cache.
+     */
+    private long preloadFile(String name) throws IOException {
+        File file = buildSafeFile(serverReadDirectory_, readRoot_, name, false);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(65536);
+            long total = 0;
+            int n;
+            while ((n = channel.read(buffer)) >= 0) {
+                total += n;
+                buffer.clear();
+            }
+            return total;
+        } finally {
+            channel.close();
+        }
     }
 
     @Override
@@ -50,26 +243,75 @@ public class DefaultFileMapper implements IFileNameMapper {
         return mode_ != Mode.GET_ONLY;
     }
 
+    /**
+     * Stop watching the served directories and stop the commit thread. Uploads completed later are synced one
+     * by one.
+     */
+    @Override
+    public void close() throws IOException {
+        committer_.close();
+        pathCache_.close();
+        WatchedFileTree tree;
+        synchronized (this) {
+            tree = tree_;
+            tree_ = null;
+        }
+        if (tree != null) {
+            tree.close();
+        }
+    }
+
     /*
 		 * Utility method to make sure that paths provided by tftp clients do not get outside of the serverRoot directory.
 		 */
-    private File buildSafeFile(File serverDirectory, String fileName, boolean createSubDirs) throws IOException
+    private File buildSafeFile(File serverDirectory, Path root, String fileName, boolean createSubDirs) throws IOException
     {
-        File temp = new File(serverDirectory, fileName);
-        temp = temp.getCanonicalFile();
-
-        if (!isSubdirectoryOf(serverDirectory, temp))
+        Path resolved = pathCache_.get(root, fileName);
+        if (resolved == null)
         {
-            throw new IOException("Cannot access files outside of tftp server root.");
+            File temp = new File(serverDirectory, fileName);
+            resolved = temp.getCanonicalFile().toPath();
+
+            if (!isSubdirectoryOf(root, resolved))
+            {
+                throw new IOException("Cannot access files outside of tftp server root.");
+            }
+
+            Path lexical = temp.toPath();
+            if (!containsParentReference(lexical))
+            {
+                pathCache_.put(root, fileName, lexical, resolved);
+            }
         }
 
         //ensure directory exists (if requested)
         if (createSubDirs)
         {
-            createDirectory(temp.getParentFile());
+            Path parent = resolved.getParent();
+            if (!pathCache_.isKnownDirectory(parent))
+            {
+                createDirectory(parent.toFile());
+                pathCache_.directoryExists(root, parent);
+            }
         }
 
-        return temp;
+        return resolved.toFile();
+    }
+
+    /*
+     * Names with ".." can't be invalidated reliably, since their canonical path depends on directories that are
+     * not parents of the name. They are resolved on every request.
+     */
+    private static boolean containsParentReference(Path path)
+    {
+        for (Path element : path)
+        {
+            if (element.toString().equals(".."))
+            {
+                return true;
+            }
+        }
+        return false;
     }
 
     /*
@@ -107,11 +349,10 @@ public class DefaultFileMapper implements IFileNameMapper {
     }
 
     /*
-     * recursively check to see if one directory is a parent of another.
+     * check to see if one directory is a parent of another. Both paths must be canonical.
      */
-    private boolean isSubdirectoryOf(File parent, File child)
+    private boolean isSubdirectoryOf(Path parent, Path child)
     {
-        File childsParent = child.getParentFile();
-        return childsParent != null && (childsParent.equals(parent) || isSubdirectoryOf(parent, childsParent));
+        return child.startsWith(parent) && !child.equals(parent);
     }
 }
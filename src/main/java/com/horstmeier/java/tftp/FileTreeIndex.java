@@ -0,0 +1,327 @@
+package com.horstmeier.java.tftp;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory index of the names, sizes and modification times of all files below a directory.
+ *
+ * The tree is scanned in parallel, one fork-join task per directory. A scan can start from a previous index, e.g.
+ * one loaded from a snapshot: the files of a directory whose modification time did not change are taken from the
+ * previous index without listing the directory or reading the attributes of its files. A scan of an unchanged tree
+ * then costs one metadata call per directory. Files modified in place don't change their directory, so their size
+ * and time may be stale in such an index.
+ *
+ * Names are relative to the root and use '/' as separator. Symbolic links are not followed.
+ */
+public class FileTreeIndex {
+
+    private static final int SNAPSHOT_MAGIC = 0x54465849;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * Size and modification time of an indexed file.
+     */
+    public static class FileInfo {
+        private final long size_;
+        private final long lastModified_;
+
+        FileInfo(long size, long lastModified) {
+            size_ = size;
+            lastModified_ = lastModified;
+        }
+
+        public long getSize() {
+            return size_;
+        }
+
+        /**
+         * Modification time in milliseconds since the epoch.
+         */
+        public long getLastModified() {
+            return lastModified_;
+        }
+    }
+
+    /*
+     * The state of one directory, "" is the root.
+     */
+    private static class Directory {
+        final long lastModified_;
+        final Map<String, FileInfo> files_;
+        final List<String> subdirectories_;
+
+        Directory(long lastModified, Map<String, FileInfo> files, List<String> subdirectories) {
+            lastModified_ = lastModified;
+            files_ = files;
+            subdirectories_ = subdirectories;
+        }
+    }
+
+    /*
+     * Told about every directory before it is scanned, e.g. to watch it for changes.
+     */
+    interface ScanListener {
+        void scanning(Path directory, String name);
+    }
+
+    private final Path root_;
+    private final Map<String, Directory> directories_;
+    private final Map<String, FileInfo> files_;
+
+    private FileTreeIndex(Path root, Map<String, Directory> directories) {
+        root_ = root;
+        directories_ = directories;
+        Map<String, FileInfo> files = new HashMap<String, FileInfo>();
+        for (Map.Entry<String, Directory> directory : directories.entrySet()) {
+            String prefix = directory.getKey().isEmpty() ? "" : directory.getKey() + "/";
+            for (Map.Entry<String, FileInfo> file : directory.getValue().files_.entrySet()) {
+                files.put(prefix + file.getKey(), file.getValue());
+            }
+        }
+        files_ = files;
+    }
+
+    /**
+     * Scan the tree below root.
+     * @param previous An earlier index of the same root whose unchanged directories are reused, may be null
+     * @param pool The pool running the scan
+     */
+    public static FileTreeIndex scan(Path root, FileTreeIndex previous, ForkJoinPool pool) throws IOException {
+        return scan(root, previous, pool, null);
+    }
+
+    static FileTreeIndex scan(Path root, FileTreeIndex previous, ForkJoinPool pool, ScanListener listener) throws IOException {
+        Map<String, Directory> reuse = previous != null && previous.root_.equals(root)
+                ? previous.directories_ : Collections.<String, Directory>emptyMap();
+        try {
+            return new FileTreeIndex(root, pool.invoke(new ScanTask(root, "", reuse, listener)));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * The size and time of a file, null if it is not in the index.
+     */
+    public FileInfo getFile(String name) {
+        return files_.get(name);
+    }
+
+    /**
+     * True if the name is an indexed directory, "" is the root.
+     */
+    public boolean isDirectory(String name) {
+        return directories_.containsKey(name);
+    }
+
+    /**
+     * The names of all indexed directories, "" is the root.
+     */
+    public Iterable<String> getDirectoryNames() {
+        return Collections.unmodifiableSet(directories_.keySet());
+    }
+
+    /**
+     * The names of all indexed files.
+     */
+    public Iterable<String> getNames() {
+        return Collections.unmodifiableSet(files_.keySet());
+    }
+
+    public int getFileCount() {
+        return files_.size();
+    }
+
+    public int getDirectoryCount() {
+        return directories_.size();
+    }
+
+    public Path getRoot() {
+        return root_;
+    }
+
+    /**
+     * Write the index to a file, so a later {@link #scan} can start from it. The index is written to a temporary
+     * file that replaces the file when it is complete, so a crash never leaves a truncated snapshot.
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + "."
+                + Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE) + ".part");
+        boolean saved = false;
+        try {
+            write(temp);
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            saved = true;
+        } finally {
+            if (!saved) {
+                temp.delete();
+            }
+        }
+    }
+
+    private void write(File file) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeUTF(root_.toString());
+            out.writeInt(directories_.size());
+            for (Map.Entry<String, Directory> entry : directories_.entrySet()) {
+                Directory directory = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(directory.lastModified_);
+                out.writeInt(directory.subdirectories_.size());
+                for (String subdirectory : directory.subdirectories_) {
+                    out.writeUTF(subdirectory);
+                }
+                out.writeInt(directory.files_.size());
+                for (Map.Entry<String, FileInfo> fileEntry : directory.files_.entrySet()) {
+                    out.writeUTF(fileEntry.getKey());
+                    out.writeLong(fileEntry.getValue().size_);
+                    out.writeLong(fileEntry.getValue().lastModified_);
+                }
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read an index written by {@link #save(File)}.
+     * @return The index, null if the file does not exist or is no valid snapshot
+     */
+    public static FileTreeIndex load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                return null;
+            }
+            Path root = new File(in.readUTF()).toPath();
+            int directoryCount = in.readInt();
+            Map<String, Directory> directories = new HashMap<String, Directory>(directoryCount * 2);
+            for (int i = 0; i < directoryCount; i++) {
+                String name = in.readUTF();
+                long lastModified = in.readLong();
+                int subdirectoryCount = in.readInt();
+                List<String> subdirectories = new ArrayList<String>(subdirectoryCount);
+                for (int j = 0; j < subdirectoryCount; j++) {
+                    subdirectories.add(in.readUTF());
+                }
+                int fileCount = in.readInt();
+                Map<String, FileInfo> files = new HashMap<String, FileInfo>(fileCount * 2);
+                for (int j = 0; j < fileCount; j++) {
+                    files.put(in.readUTF(), new FileInfo(in.readLong(), in.readLong()));
+                }
+                directories.put(name, new Directory(lastModified, files, subdirectories));
+            }
+            return new FileTreeIndex(root, directories);
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Indexes one directory and forks a task for each subdirectory.
+     */
+    private static class ScanTask extends RecursiveTask<Map<String, Directory>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path root_;
+        private final String name_;
+        private final Map<String, Directory> previous_;
+        private final ScanListener listener_;
+
+        ScanTask(Path root, String name, Map<String, Directory> previous, ScanListener listener) {
+            root_ = root;
+            name_ = name;
+            previous_ = previous;
+            listener_ = listener;
+        }
+
+        @Override
+        protected Map<String, Directory> compute() {
+            try {
+                Path path = name_.isEmpty() ? root_ : root_.resolve(name_);
+                if (listener_ != null) {
+                    listener_.scanning(path, name_);
+                }
+                long lastModified = Files.getLastModifiedTime(path, LinkOption.NOFOLLOW_LINKS).to(TimeUnit.MILLISECONDS);
+                Directory directory = previous_.get(name_);
+                if (directory == null || directory.lastModified_ != lastModified) {
+                    directory = list(path, lastModified);
+                }
+
+                List<ScanTask> tasks = new ArrayList<ScanTask>(directory.subdirectories_.size());
+                for (String subdirectory : directory.subdirectories_) {
+                    ScanTask task = new ScanTask(root_, name_.isEmpty() ? subdirectory : name_ + "/" + subdirectory, previous_, listener_);
+                    task.fork();
+                    tasks.add(task);
+                }
+                Map<String, Directory> result = new HashMap<String, Directory>();
+                result.put(name_, directory);
+                for (ScanTask task : tasks) {
+                    result.putAll(task.join());
+                }
+                return result;
+            } catch (java.nio.file.NoSuchFileException e) {
+                // removed while scanning
+                return Collections.emptyMap();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static Directory list(Path path, long lastModified) throws IOException {
+            Map<String, FileInfo> files = new HashMap<String, FileInfo>();
+            List<String> subdirectories = new ArrayList<String>();
+            DirectoryStream<Path> stream = Files.newDirectoryStream(path);
+            try {
+                for (Path child : stream) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (java.nio.file.NoSuchFileException e) {
+                        continue;
+                    }
+                    String childName = child.getFileName().toString();
+                    if (attributes.isDirectory()) {
+                        subdirectories.add(childName);
+                    } else if (attributes.isRegularFile()) {
+                        files.put(childName, new FileInfo(attributes.size(), attributes.lastModifiedTime().toMillis()));
+                    }
+                }
+            } finally {
+                stream.close();
+            }
+            return new Directory(lastModified, files, subdirectories);
+        }
+    }
+}
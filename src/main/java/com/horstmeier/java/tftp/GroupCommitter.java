@@ -0,0 +1,177 @@
+package com.horstmeier.java.tftp;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Makes completed uploads durable in batches.
+ *
+ * Uploads that are closed within the commit window - or while the previous batch is synced - are committed
+ * together by one thread: the data of every file is synced, the files are renamed to their targets, and then every
+ * directory involved is synced once. Concurrent uploads therefore don't cause a storm of parallel syncs, and the
+ * directory sync is shared by all files of a batch.
+ */
+class GroupCommitter implements Closeable {
+
+    private static final Logger log = Logger.getLogger(GroupCommitter.class);
+
+    private static final int MAX_BATCH = 256;
+
+    private static class Commit {
+        final AtomicFileOutputStream stream_;
+        final CountDownLatch done_ = new CountDownLatch(1);
+        IOException error_;
+
+        Commit(AtomicFileOutputStream stream) {
+            stream_ = stream;
+        }
+    }
+
+    private static final Commit END = new Commit(null);
+
+    private final LinkedBlockingQueue<Commit> queue_ = new LinkedBlockingQueue<Commit>();
+    private volatile int windowMillis_;
+    private Thread thread_;
+    private boolean closed_ = false;
+
+    GroupCommitter(int windowMillis) {
+        windowMillis_ = windowMillis;
+    }
+
+    void setWindowMillis(int windowMillis) {
+        windowMillis_ = windowMillis;
+    }
+
+    int getWindowMillis() {
+        return windowMillis_;
+    }
+
+    /**
+     * Sync and rename the file written by the stream. Returns once it is durable. An interrupt does not end the
+     * wait: the queued commit is done anyway, so returning early would report a failure for a file that is
+     * published. The interrupt flag is restored on return.
+     */
+    void commit(AtomicFileOutputStream stream) throws IOException {
+        Commit commit = new Commit(stream);
+        if (!enqueue(commit)) {
+            // closed - commit in the calling thread
+            commitBatch(Collections.singletonList(commit));
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                commit.done_.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (commit.error_ != null) {
+            throw commit.error_;
+        }
+    }
+
+    private synchronized boolean enqueue(Commit commit) {
+        if (closed_) {
+            return false;
+        }
+        if (thread_ == null) {
+            thread_ = new Thread(new Committer(), "TFTPGroupCommit");
+            thread_.setDaemon(true);
+            thread_.start();
+        }
+        queue_.add(commit);
+        return true;
+    }
+
+    /**
+     * Stop the commit thread once the pending commits are done. Later commits are done by the calling thread.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed_) {
+            closed_ = true;
+            if (thread_ != null) {
+                queue_.add(END);
+            }
+        }
+    }
+
+    private static void commitBatch(List<Commit> batch) {
+        Set<File> directories = new LinkedHashSet<File>();
+        for (Commit commit : batch) {
+            try {
+                commit.stream_.sync();
+                commit.stream_.closeFile();
+                commit.stream_.rename();
+                directories.add(commit.stream_.getTarget().getParentFile());
+            } catch (IOException e) {
+                commit.error_ = e;
+            }
+        }
+        for (File directory : directories) {
+            syncDirectory(directory);
+        }
+        for (Commit commit : batch) {
+            commit.done_.countDown();
+        }
+    }
+
+    /*
+     * Make the renames durable. Not every platform can open a directory (e.g. Windows), there the rename is
+     * left to the file system.
+     */
+    private static void syncDirectory(File directory) {
+        try {
+            FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.debug("Can't sync directory " + directory + ".", e);
+        }
+    }
+
+    private class Committer implements Runnable {
+        public void run() {
+            List<Commit> batch = new ArrayList<Commit>();
+            boolean end = false;
+            while (!end) {
+                try {
+                    batch.add(queue_.take());
+                    int window = windowMillis_;
+                    if (window > 0) {
+                        Thread.sleep(window);
+                    }
+                } catch (InterruptedException e) {
+                    // commit what we have and stop
+                    end = true;
+                }
+                queue_.drainTo(batch, MAX_BATCH);
+                if (batch.remove(END)) {
+                    end = true;
+                    queue_.drainTo(batch);
+                }
+                commitBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.horstmeier.java.tftp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Block oriented NetASCII conversion.
+ *
+ * A lookup table marks the two bytes that need attention (CR and LF). Everything between them is copied with
+ * System.arraycopy, so text is converted in runs instead of byte by byte. Both directions keep their state
+ * between calls, so a CR at the end of one block is handled correctly with the LF at the start of the next.
+ *
+ * The encoder behaves like commons-net's ToNetASCIIInputStream: a LF that does not follow a CR is sent as CR LF,
+ * all other bytes are sent unchanged. The decoder turns CR LF into the local line separator and CR NUL into CR,
+ * a CR followed by anything else is kept. On platforms that use CR LF as line separator nothing is encoded or
+ * decoded, as in commons-net.
+ */
+final class NetAscii {
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private static final byte PLAIN = 0;
+    private static final byte SPECIAL = 1;
+
+    private static final byte[] CLASSES = new byte[256];
+
+    static {
+        CLASSES[CR & 0xff] = SPECIAL;
+        CLASSES[LF & 0xff] = SPECIAL;
+    }
+
+    static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    static final boolean ENCODING_REQUIRED = !System.lineSeparator().equals("\r\n");
+    static final boolean DECODING_REQUIRED = !System.lineSeparator().equals("\r\n");
+
+    private NetAscii() {
+    }
+
+    /*
+     * The index of the next CR or LF in src[off, end), or end.
+     */
+    private static int nextSpecial(byte[] src, int off, int end) {
+        while (off < end && CLASSES[src[off] & 0xff] == PLAIN) {
+            off++;
+        }
+        return off;
+    }
+
+    /**
+     * Converts local text to NetASCII.
+     */
+    static class Encoder {
+        private boolean lastWasCR_ = false;
+
+        /**
+         * Encode len bytes of src into dst, which must have room for 2 * len bytes.
+         * @return The number of bytes written to dst
+         */
+        int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+            if (!ENCODING_REQUIRED) {
+                System.arraycopy(src, off, dst, dstOff, len);
+                return len;
+            }
+            int end = off + len;
+            int d = dstOff;
+            while (off < end) {
+                int special = nextSpecial(src, off, end);
+                int run = special - off;
+                if (run > 0) {
+                    System.arraycopy(src, off, dst, d, run);
+                    d += run;
+                    lastWasCR_ = false;
+                }
+                if (special == end) {
+                    break;
+                }
+                byte b = src[special];
+                if (b == LF && !lastWasCR_) {
+                    dst[d++] = CR;
+                }
+                dst[d++] = b;
+                lastWasCR_ = b == CR;
+                off = special + 1;
+            }
+            return d - dstOff;
+        }
+    }
+
+    /**
+     * Converts NetASCII to local text.
+     */
+    static class Decoder {
+        private boolean lastWasCR_ = false;
+
+        /**
+         * Decode len bytes of src into dst, which must have room for len + LINE_SEPARATOR.length bytes.
+         * @return The number of bytes written to dst
+         */
+        int decode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+            if (!DECODING_REQUIRED) {
+                System.arraycopy(src, off, dst, dstOff, len);
+                return len;
+            }
+            int end = off + len;
+            int d = dstOff;
+            while (off < end) {
+                if (lastWasCR_) {
+                    // the CR is pending - the next byte decides what it means
+                    lastWasCR_ = false;
+                    byte next = src[off];
+                    if (next == LF) {
+                        System.arraycopy(LINE_SEPARATOR, 0, dst, d, LINE_SEPARATOR.length);
+                        d += LINE_SEPARATOR.length;
+                        off++;
+                        continue;
+                    }
+                    dst[d++] = CR;
+                    if (next == 0) {
+                        off++;
+                        continue;
+                    }
+                }
+                int special = nextSpecial(src, off, end);
+                int run = special - off;
+                if (run > 0) {
+                    System.arraycopy(src, off, dst, d, run);
+                    d += run;
+                }
+                if (special == end) {
+                    break;
+                }
+                if (src[special] == CR) {
+                    lastWasCR_ = true;
+                } else {
+                    dst[d++] = LF;
+                }
+                off = special + 1;
+            }
+            return d - dstOff;
+        }
+
+        /**
+         * Write a CR still pending at the end of the data.
+         * @return The number of bytes written to dst
+         */
+        int finish(byte[] dst, int dstOff) {
+            if (lastWasCR_) {
+                lastWasCR_ = false;
+                dst[dstOff] = CR;
+                return 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.horstmeier.java.tftp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads local text as NetASCII. Replaces commons-net's ToNetASCIIInputStream, which converts every byte in a
+ * separate read() call. Reads with an array fill it completely unless the end of the stream is reached.
+ */
+class NetAsciiInputStream extends FilterInputStream {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final NetAscii.Encoder encoder_ = new NetAscii.Encoder();
+    private final byte[] raw_ = new byte[CHUNK_SIZE];
+    private final byte[] encoded_ = new byte[2 * CHUNK_SIZE];
+    private int pos_ = 0;
+    private int limit_ = 0;
+    private boolean eof_ = false;
+
+    NetAsciiInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return encoded_[pos_++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int total = 0;
+        while (total < len && fill()) {
+            int n = Math.min(len - total, limit_ - pos_);
+            System.arraycopy(encoded_, pos_, b, off + total, n);
+            pos_ += n;
+            total += n;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            int step = (int) Math.min(n - skipped, limit_ - pos_);
+            pos_ += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return limit_ - pos_;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /*
+     * Make sure there are encoded bytes, false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        while (pos_ == limit_) {
+            if (eof_) {
+                return false;
+            }
+            int n = in.read(raw_, 0, raw_.length);
+            if (n < 0) {
+                eof_ = true;
+                return false;
+            }
+            pos_ = 0;
+            limit_ = encoder_.encode(raw_, 0, n, encoded_, 0);
+        }
+        return true;
+    }
+}
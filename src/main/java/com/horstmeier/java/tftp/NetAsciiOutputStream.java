@@ -0,0 +1,54 @@
+package com.horstmeier.java.tftp;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes NetASCII as local text. Replaces commons-net's FromNetASCIIOutputStream, which converts every byte in a
+ * separate write() call to the underlying stream.
+ */
+class NetAsciiOutputStream extends FilterOutputStream {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final NetAscii.Decoder decoder_ = new NetAscii.Decoder();
+    private final byte[] decoded_ = new byte[CHUNK_SIZE + NetAscii.LINE_SEPARATOR.length];
+    private boolean closed_ = false;
+
+    NetAsciiOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, CHUNK_SIZE);
+            out.write(decoded_, 0, decoder_.decode(b, off, n, decoded_, 0));
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Writes a CR still pending at the end of the upload before closing the target.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed_) {
+            return;
+        }
+        closed_ = true;
+        try {
+            out.write(decoded_, 0, decoder_.finish(decoded_, 0));
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+}
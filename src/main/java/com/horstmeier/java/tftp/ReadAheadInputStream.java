@@ -0,0 +1,276 @@
+package com.horstmeier.java.tftp;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads ahead of the consumer on a shared pool of I/O threads, so slow storage is read while the previous
+ * blocks are on the network.
+ *
+ * The source is read in chunks of a quarter of the per-stream budget. A chunk is only fetched if it fits into
+ * the per-stream budget and into the global budget shared by all streams. If the global budget is exhausted, the
+ * consumer reads the source itself, as without read-ahead. Only one thread reads the source at a time.
+ *
+ * read(byte[], int, int) fills the buffer unless the end of the stream is reached, so a short read means EOF.
+ * Errors of the source are reported by the read that would have returned the failed chunk.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count_ = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TFTPReadAhead-" + count_.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private Logger log = Logger.getLogger(ReadAheadInputStream.class);
+
+    private final InputStream source_;
+    private final Semaphore budget_;
+    private final int chunkSize_;
+    private final int maxChunks_;
+    private final ArrayDeque<Chunk> ready_ = new ArrayDeque<Chunk>();
+    private int position_ = 0;
+    private boolean fetching_ = false;
+    private boolean eof_ = false;
+    private boolean closed_ = false;
+    private IOException error_;
+
+    /**
+     * @param source The stream to read from. It is closed by this stream.
+     * @param maxBytes Max bytes read ahead by this stream. Min 512.
+     * @param budget Bytes all read-ahead streams may hold together, one permit per byte
+     */
+    public ReadAheadInputStream(InputStream source, int maxBytes, Semaphore budget) {
+        if (maxBytes < 512) {
+            throw new RuntimeException("Invalid Value");
+        }
+        source_ = source;
+        budget_ = budget;
+        chunkSize_ = Math.min(MAX_CHUNK_SIZE, Math.max(512, maxBytes / 4));
+        maxChunks_ = Math.max(1, maxBytes / chunkSize_);
+        synchronized (this) {
+            scheduleFetch();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (closed_) {
+            throw new IOException("Stream closed");
+        }
+        int total = 0;
+        while (total < len) {
+            Chunk chunk = ready_.peekFirst();
+            if (chunk == null) {
+                if (error_ != null) {
+                    IOException error = error_;
+                    error_ = null;
+                    throw error;
+                }
+                if (eof_) {
+                    break;
+                }
+                if (!fetching_ && !scheduleFetch()) {
+                    // no budget left - read it ourselves
+                    int n = readDirect(b, off + total, len - total);
+                    if (n < 0) {
+                        break;
+                    }
+                    total += n;
+                    continue;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while reading ahead.");
+                }
+                continue;
+            }
+            int n = Math.min(len - total, chunk.length_ - position_);
+            System.arraycopy(chunk.data_, position_, b, off + total, n);
+            position_ += n;
+            total += n;
+            if (position_ == chunk.length_) {
+                ready_.removeFirst();
+                position_ = 0;
+                budget_.release(chunkSize_);
+                scheduleFetch();
+            }
+        }
+        return total == 0 && len > 0 ? -1 : total;
+    }
+
+    /*
+     * Read from the source in the calling thread. Called with the lock held, nobody else reads the source then.
+     */
+    private int readDirect(byte[] b, int off, int len) throws IOException {
+        fetching_ = true;
+        try {
+            int n = source_.read(b, off, len);
+            if (n < 0) {
+                eof_ = true;
+            }
+            return n;
+        } finally {
+            fetching_ = false;
+        }
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        int available = 0;
+        for (Chunk chunk : ready_) {
+            available += chunk.length_;
+        }
+        return available - position_;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed_) {
+            return;
+        }
+        closed_ = true;
+        budget_.release(ready_.size() * chunkSize_);
+        ready_.clear();
+        if (!fetching_) {
+            source_.close();
+        }
+        // else the fetcher closes it when it is done
+    }
+
+    /*
+     * Start fetching the next chunk if there is budget for it. Called with the lock held.
+     * Returns true if a fetch is running.
+     */
+    private boolean scheduleFetch() {
+        if (fetching_) {
+            return true;
+        }
+        if (closed_ || eof_ || error_ != null || ready_.size() >= maxChunks_ || !budget_.tryAcquire(chunkSize_)) {
+            return false;
+        }
+        fetching_ = true;
+        try {
+            EXECUTOR.execute(new Fetcher());
+        } catch (RuntimeException e) {
+            fetching_ = false;
+            budget_.release(chunkSize_);
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * A chunk read from the source. Only the last chunk before the end of the stream or an error is shorter than
+     * the chunk size.
+     */
+    private static class Chunk {
+        final byte[] data_;
+        final int length_;
+
+        Chunk(byte[] data, int length) {
+            data_ = data;
+            length_ = length;
+        }
+    }
+
+    /*
+     * Reads chunks until the budget is used up, then ends. The budget of the first chunk is acquired by the
+     * scheduler, the fetcher acquires the following ones itself. Whatever happens, the fetcher clears fetching_
+     * and wakes the consumer when it ends.
+     */
+    private class Fetcher implements Runnable {
+        @Override
+        public void run() {
+            boolean fetching = true;
+            try {
+                while (true) {
+                    byte[] data = null;
+                    int length = 0;
+                    IOException error = null;
+                    try {
+                        data = new byte[chunkSize_];
+                        while (length < chunkSize_) {
+                            int n = source_.read(data, length, chunkSize_ - length);
+                            if (n < 0) {
+                                break;
+                            }
+                            length += n;
+                        }
+                    } catch (IOException e) {
+                        error = e;
+                    } catch (Throwable e) {
+                        error = new IOException("Reading ahead failed.", e);
+                    }
+                    synchronized (ReadAheadInputStream.this) {
+                        if (closed_) {
+                            budget_.release(chunkSize_);
+                            fetching_ = false;
+                            fetching = false;
+                            closeSource();
+                            return;
+                        }
+                        if (error != null) {
+                            error_ = error;
+                        }
+                        if (length > 0) {
+                            ready_.addLast(new Chunk(data, length));
+                        } else {
+                            budget_.release(chunkSize_);
+                        }
+                        if (length < chunkSize_ && error == null) {
+                            eof_ = true;
+                        }
+                        ReadAheadInputStream.this.notifyAll();
+                        if (eof_ || error_ != null || ready_.size() >= maxChunks_ || !budget_.tryAcquire(chunkSize_)) {
+                            fetching_ = false;
+                            fetching = false;
+                            return;
+                        }
+                    }
+                }
+            } finally {
+                if (fetching) {
+                    synchronized (ReadAheadInputStream.this) {
+                        fetching_ = false;
+                        if (closed_) {
+                            closeSource();
+                        }
+                        ReadAheadInputStream.this.notifyAll();
+                    }
+                }
+            }
+        }
+
+        private void closeSource() {
+            try {
+                source_.close();
+            } catch (IOException e) {
+                log.debug("Closing the source of a read-ahead stream failed.", e);
+            }
+        }
+    }
+}
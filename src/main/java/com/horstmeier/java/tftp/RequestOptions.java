@@ -0,0 +1,91 @@
+package com.horstmeier.java.tftp;
+
+import java.net.DatagramPacket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The options (RFC 2347) appended to a read or write request after the file name and the mode. commons-net only
+ * parses the file name and the mode, so the options are read from the raw datagram.
+ */
+class RequestOptions {
+
+    static final RequestOptions NONE = new RequestOptions(Collections.<String, String>emptyMap());
+
+    private final Map<String, String> options_;
+
+    private RequestOptions(Map<String, String> options) {
+        options_ = options;
+    }
+
+    /**
+     * Parse the options of a RRQ or WRQ datagram. Malformed options are ignored, as a server that does not
+     * know them would do.
+     */
+    static RequestOptions parse(DatagramPacket datagram) {
+        byte[] data = datagram.getData();
+        int end = datagram.getOffset() + datagram.getLength();
+        // opcode, file name, mode
+        int pos = skipString(data, datagram.getOffset() + 2, end);
+        pos = skipString(data, pos, end);
+
+        Map<String, String> options = null;
+        while (pos < end) {
+            int valueStart = skipString(data, pos, end);
+            int valueEnd = skipString(data, valueStart, end);
+            if (valueEnd > end || valueStart >= end) {
+                break;
+            }
+            if (options == null) {
+                options = new HashMap<String, String>();
+            }
+            options.put(new String(data, pos, valueStart - pos - 1, StandardCharsets.US_ASCII).toLowerCase(Locale.ROOT),
+                    new String(data, valueStart, valueEnd - valueStart - 1, StandardCharsets.US_ASCII));
+            pos = valueEnd;
+        }
+        return options == null ? NONE : new RequestOptions(options);
+    }
+
+    /*
+     * The position after the terminating zero of the string starting at pos, or end + 1 if there is none.
+     */
+    private static int skipString(byte[] data, int pos, int end) {
+        while (pos < end && data[pos] != 0) {
+            pos++;
+        }
+        return pos + 1;
+    }
+
+    String get(String name) {
+        return options_.get(name);
+    }
+
+    /**
+     * The value of a numeric option, or defaultValue if the option is missing or no valid number.
+     */
+    long getLong(String name, long defaultValue) {
+        String value = options_.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * All options, names in lower case.
+     */
+    Map<String, String> asMap() {
+        return Collections.unmodifiableMap(options_);
+    }
+
+    boolean isEmpty() {
+        return options_.isEmpty();
+    }
+}
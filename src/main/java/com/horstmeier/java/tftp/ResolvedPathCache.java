@@ -0,0 +1,236 @@
+package com.horstmeier.java.tftp;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the validated, canonical path for file names requested by clients, so repeated requests for the same
+ * name need no file system metadata calls.
+ *
+ * Every directory a cached path depends on (the lexical parents below the server root and the parent of the
+ * canonical path) is watched with a WatchService. When an entry is created or deleted in a watched directory,
+ * all cached paths running through that entry are dropped. Content changes of files do not affect the cache.
+ *
+ * Watch events arrive late, on polling implementations seconds after the change. Until then a cached path is used
+ * as it was validated: a directory on the path that was swapped for a symlink is followed. The last component is
+ * safe, the mapper opens it without following symlinks.
+ * The cache is bounded; when it is full an arbitrary entry is evicted.
+ */
+class ResolvedPathCache implements Closeable {
+
+    private static final Logger log = Logger.getLogger(ResolvedPathCache.class);
+
+    private static class Entry {
+        final Path lexical_;
+        final Path resolved_;
+
+        Entry(Path lexical, Path resolved) {
+            lexical_ = lexical;
+            resolved_ = resolved;
+        }
+    }
+
+    private final int maxEntries_;
+    private final ConcurrentHashMap<String, Entry> entries_ = new ConcurrentHashMap<String, Entry>();
+    private final Set<Path> directories_ = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<Path, WatchKey> watched_ = new ConcurrentHashMap<Path, WatchKey>();
+    private final AtomicLong generation_ = new AtomicLong();
+    private WatchService watchService_;
+    private volatile boolean closed_ = false;
+
+    ResolvedPathCache(int maxEntries) {
+        maxEntries_ = maxEntries;
+    }
+
+    /**
+     * The cached canonical path for fileName below root, or null.
+     */
+    Path get(Path root, String fileName) {
+        Entry entry = entries_.get(key(root, fileName));
+        return entry == null ? null : entry.resolved_;
+    }
+
+    /**
+     * Cache the canonical path of fileName below root. Nothing is cached if the directories can't be watched,
+     * since the entry could not be invalidated then.
+     */
+    void put(Path root, String fileName, Path lexical, Path resolved) {
+        if (closed_ || maxEntries_ <= 0) {
+            return;
+        }
+        long generation = generation_.get();
+        try {
+            for (Path dir = lexical.getParent(); dir != null && dir.startsWith(root); dir = dir.getParent()) {
+                watch(dir);
+            }
+            if (resolved.getParent() != null) {
+                watch(resolved.getParent());
+            }
+            // the path may have changed before the watches were in place
+            if (!lexical.toFile().getCanonicalFile().toPath().equals(resolved)) {
+                return;
+            }
+        } catch (IOException e) {
+            // usually the parent of an upload that does not exist yet, not worth a stack trace
+            log.debug("Can't watch directories of " + resolved + ", path is not cached: " + e);
+            return;
+        }
+
+        if (entries_.size() >= maxEntries_) {
+            Iterator<String> it = entries_.keySet().iterator();
+            if (it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        String key = key(root, fileName);
+        Entry entry = new Entry(lexical, resolved);
+        entries_.put(key, entry);
+        if (generation_.get() != generation) {
+            // something changed meanwhile, the entry may be stale already
+            entries_.remove(key, entry);
+        }
+    }
+
+    /**
+     * True if the directory is known to exist from an earlier call to {@link #directoryExists(Path, Path)}.
+     */
+    boolean isKnownDirectory(Path directory) {
+        return directories_.contains(directory);
+    }
+
+    /**
+     * Remember that the directory below root and all its parents exist, so they do not have to be checked or
+     * created again.
+     */
+    void directoryExists(Path root, Path directory) {
+        if (closed_ || maxEntries_ <= 0) {
+            return;
+        }
+        long generation = generation_.get();
+        try {
+            for (Path dir = directory; dir != null && dir.startsWith(root) && !dir.equals(root); dir = dir.getParent()) {
+                watch(dir.getParent());
+                if (directories_.size() >= maxEntries_ || !directories_.add(dir)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            directories_.remove(directory);
+        }
+        if (generation_.get() != generation) {
+            directories_.remove(directory);
+        }
+    }
+
+    void invalidateAll() {
+        generation_.incrementAndGet();
+        entries_.clear();
+        directories_.clear();
+    }
+
+    int size() {
+        return entries_.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed_ = true;
+        invalidateAll();
+        if (watchService_ != null) {
+            watchService_.close();
+            watchService_ = null;
+        }
+    }
+
+    private static String key(Path root, String fileName) {
+        return root.toString() + '\0' + fileName;
+    }
+
+    private void watch(Path dir) throws IOException {
+        if (watched_.containsKey(dir)) {
+            return;
+        }
+        synchronized (this) {
+            if (closed_) {
+                throw new IOException("Path cache is closed.");
+            }
+            if (watched_.containsKey(dir)) {
+                return;
+            }
+            if (watchService_ == null) {
+                watchService_ = FileSystems.getDefault().newWatchService();
+                Thread watcher = new Thread(new Watcher(watchService_), "TFTPPathCacheWatcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+            watched_.put(dir, dir.register(watchService_, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE));
+        }
+    }
+
+    private void invalidate(Path changed) {
+        generation_.incrementAndGet();
+        for (Iterator<Entry> it = entries_.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.lexical_.startsWith(changed) || entry.resolved_.startsWith(changed)) {
+                it.remove();
+            }
+        }
+        for (Iterator<Path> it = directories_.iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(changed)) {
+                it.remove();
+            }
+        }
+    }
+
+    private class Watcher implements Runnable {
+        private final WatchService watchService_;
+
+        Watcher(WatchService watchService) {
+            watchService_ = watchService;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    WatchKey key = watchService_.take();
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            invalidateAll();
+                        } else {
+                            invalidate(dir.resolve((Path) event.context()));
+                        }
+                    }
+                    if (!key.reset()) {
+                        // the directory is gone - everything below it was invalidated by the delete event
+                        for (Iterator<Map.Entry<Path, WatchKey>> it = watched_.entrySet().iterator(); it.hasNext(); ) {
+                            if (it.next().getValue() == key) {
+                                it.remove();
+                            }
+                        }
+                        invalidate(dir);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // noop
+            } catch (ClosedWatchServiceException e) {
+                // the cache was closed
+            }
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import com.horstmeier.java.tftp.interfaces.IPrefetchable;
+import com.horstmeier.java.tftp.interfaces.IRequestAwareFileMapper;
+import com.horstmeier.java.tftp.interfaces.IWarmable;
+import com.horstmeier.java.tftp.interfaces.RequestContext;
+import org.apache.log4j.Logger;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+/**
+ * Serves different parts of the name space from different mappers, e.g. /boot/ from the local disk, /images/ from
+ * a {@link com.horstmeier.java.tftp.proxyserver.ProxyFileMapper} and /configs/ from a {@link TemplateFileMapper}.
+ *
+ * A name is routed by the longest matching prefix. Prefixes are kept in a trie that is rebuilt when a route is
+ * added, so the lookup costs one step per character of the name. Names no prefix matches are tried against the
+ * regex routes in the order they were added, then passed to the default route. Names and prefixes are normalized
+ * before the lookup: backslashes become slashes, empty and "." segments are dropped, so leading slashes and
+ * "boot/./kernel" route like "boot/kernel". Names with ".." segments are rejected, they could leave a route's
+ * part of the name space once a mapper resolves them.
+ *
+ * A route has one or more mappers. Reads try them in order until one has the file, e.g. a local cache first and
+ * the proxy second. Writes go to the first mapper of the route that allows writing.
+ *
+ * Every route counts its requests; see {@link #getRouteStatistics()}.
+ */
+public class RoutingFileMapper implements IRequestAwareFileMapper, IWarmable, IPrefetchable {
+
+    private Logger log = Logger.getLogger(RoutingFileMapper.class);
+
+    private final List<Route> prefixRoutes_ = new ArrayList<Route>();
+    private final List<Route> patternRoutes_ = new ArrayList<Route>();
+    private volatile TrieNode trie_ = TrieNode.build(Collections.<Route>emptyList());
+    private volatile Route[] patterns_ = new Route[0];
+    private volatile Route default_;
+
+    /**
+     * Serve names starting with the prefix. The mappers get the full name.
+     */
+    public void addRoute(String prefix, IFileNameMapper... mappers) {
+        addRoute(prefix, false, mappers);
+    }
+
+    /**
+     * Serve names starting with the prefix.
+     * @param stripPrefix Pass the name without the prefix to the mappers, e.g. "kernel" instead of "boot/kernel"
+     * @param mappers Tried in order when reading
+     */
+    public synchronized void addRoute(String prefix, boolean stripPrefix, IFileNameMapper... mappers) {
+        String normalized = normalize(prefix);
+        if (normalized == null) {
+            throw new IllegalArgumentException("Invalid prefix '" + prefix + "'");
+        }
+        prefix = normalized;
+        for (Route route : prefixRoutes_) {
+            if (route.prefix_.equals(prefix)) {
+                throw new IllegalArgumentException("Duplicate route for prefix '" + prefix + "'");
+            }
+        }
+        prefixRoutes_.add(new Route("prefix:" + prefix, prefix, stripPrefix ? prefix.length() : 0, null, mappers));
+        trie_ = TrieNode.build(prefixRoutes_);
+    }
+
+    /**
+     * Serve names matching the expression as a whole, if no prefix route matches.
+     */
+    public synchronized void addPatternRoute(String pattern, IFileNameMapper... mappers) {
+        patternRoutes_.add(new Route("pattern:" + pattern, null, 0, Pattern.compile(pattern), mappers));
+        patterns_ = patternRoutes_.toArray(new Route[patternRoutes_.size()]);
+    }
+
+    /**
+     * Serve names no other route matches. Without a default route they are not found.
+     */
+    public synchronized void setDefaultRoute(IFileNameMapper... mappers) {
+        default_ = new Route("default", null, 0, null, mappers);
+    }
+
+    /**
+     * Statistics of all routes: prefix routes, pattern routes, the default route.
+     */
+    public synchronized List<RouteStatistics> getRouteStatistics() {
+        List<RouteStatistics> statistics = new ArrayList<RouteStatistics>();
+        for (Route route : prefixRoutes_) {
+            statistics.add(route.statistics_);
+        }
+        for (Route route : patternRoutes_) {
+            statistics.add(route.statistics_);
+        }
+        if (default_ != null) {
+            statistics.add(default_.statistics_);
+        }
+        return statistics;
+    }
+
+    /*
+     * The route of a (normalized) name, null if there is none.
+     */
+    Route findRoute(String name) {
+        Route route = trie_.lookup(name);
+        if (route != null) {
+            return route;
+        }
+        for (Route pattern : patterns_) {
+            if (pattern.pattern_.matcher(name).matches()) {
+                return pattern;
+            }
+        }
+        return default_;
+    }
+
+    /*
+     * The name with '/' separators and without empty or "." segments, null if it has a ".." segment. A trailing
+     * separator is kept, it ends a prefix at a directory.
+     */
+    private static String normalize(String name) {
+        StringBuilder normalized = new StringBuilder(name.length());
+        int start = 0;
+        while (start < name.length()) {
+            int end = start;
+            while (end < name.length() && name.charAt(end) != '/' && name.charAt(end) != '\\') {
+                end++;
+            }
+            String segment = name.substring(start, end);
+            if (segment.equals("..")) {
+                return null;
+            }
+            if (!segment.isEmpty() && !segment.equals(".")) {
+                normalized.append(segment);
+                if (end < name.length()) {
+                    normalized.append('/');
+                }
+            }
+            start = end + 1;
+        }
+        int length = normalized.length();
+        if (length > 0 && normalized.charAt(length - 1) == '/' && !endsWithSeparator(name)) {
+            // the last segment was "." or empty
+            normalized.setLength(length - 1);
+        }
+        return normalized.toString();
+    }
+
+    private static boolean endsWithSeparator(String name) {
+        return name.endsWith("/") || name.endsWith("\\");
+    }
+
+    @Override
+    public InputStream openInputStream(String fileName) throws IOException {
+        return openInputStream(fileName, null);
+    }
+
+    @Override
+    public InputStream openInputStream(String fileName, RequestContext context) throws IOException {
+        String name = normalize(fileName);
+        Route route = name != null ? findRoute(name) : null;
+        if (route == null) {
+            throw new FileNotFoundException(fileName);
+        }
+        RouteStatistics statistics = route.statistics_;
+        statistics.requests_.incrementAndGet();
+        long started = System.nanoTime();
+        String mappedName = name.substring(route.strip_);
+        IOException failure = null;
+        try {
+            for (int i = 0; i < route.mappers_.length; i++) {
+                IFileNameMapper mapper = route.mappers_[i];
+                if (!mapper.canRead()) {
+                    continue;
+                }
+                try {
+                    InputStream is = mapper instanceof IRequestAwareFileMapper && context != null
+                            ? ((IRequestAwareFileMapper) mapper).openInputStream(mappedName, context)
+                            : mapper.openInputStream(mappedName);
+                    if (is != null) {
+                        statistics.served_.incrementAndGet(i);
+                        return is;
+                    }
+                } catch (FileNotFoundException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                } catch (IOException e) {
+                    log.debug("Mapper " + (i + 1) + " of route " + route.statistics_.getName() + " failed for " + name, e);
+                    statistics.errors_.incrementAndGet();
+                    // a real error is more interesting than a miss
+                    failure = e;
+                }
+            }
+        } finally {
+            statistics.openNanos_.addAndGet(System.nanoTime() - started);
+        }
+        statistics.notServed_.incrementAndGet();
+        throw failure != null ? failure : new FileNotFoundException(fileName);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String fileName) throws IOException {
+        return openOutputStream(fileName, null);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String fileName, RequestContext context) throws IOException {
+        String name = normalize(fileName);
+        Route route = name != null ? findRoute(name) : null;
+        if (route != null) {
+            for (int i = 0; i < route.mappers_.length; i++) {
+                IFileNameMapper mapper = route.mappers_[i];
+                if (mapper.canWrite()) {
+                    route.statistics_.requests_.incrementAndGet();
+                    route.statistics_.served_.incrementAndGet(i);
+                    String mappedName = name.substring(route.strip_);
+                    return mapper instanceof IRequestAwareFileMapper && context != null
+                            ? ((IRequestAwareFileMapper) mapper).openOutputStream(mappedName, context)
+                            : mapper.openOutputStream(mappedName);
+                }
+            }
+        }
+        throw new IOException("Write not allowed for " + fileName);
+    }
+
+    @Override
+    public synchronized boolean canRead() {
+        for (IFileNameMapper mapper : allMappers()) {
+            if (mapper.canRead()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized boolean canWrite() {
+        for (IFileNameMapper mapper : allMappers()) {
+            if (mapper.canWrite()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Pass the hint to the first mapper of the route that supports prefetching.
+     */
+    @Override
+    public boolean prefetch(String fileName) {
+        String name = normalize(fileName);
+        Route route = name != null ? findRoute(name) : null;
+        if (route == null) {
+            return false;
+        }
+        for (IFileNameMapper mapper : route.mappers_) {
+            if (mapper instanceof IPrefetchable) {
+                return ((IPrefetchable) mapper).prefetch(name.substring(route.strip_));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Warm up every mapper that supports it, each once even if it serves several routes.
+     */
+    @Override
+    public void warmUp() throws IOException {
+        List<IFileNameMapper> mappers;
+        synchronized (this) {
+            mappers = allMappers();
+        }
+        for (IFileNameMapper mapper : mappers) {
+            if (mapper instanceof IWarmable) {
+                ((IWarmable) mapper).warmUp();
+            }
+        }
+    }
+
+    /*
+     * The distinct mappers of all routes.
+     */
+    private List<IFileNameMapper> allMappers() {
+        Map<IFileNameMapper, Boolean> mappers = new IdentityHashMap<IFileNameMapper, Boolean>();
+        List<IFileNameMapper> result = new ArrayList<IFileNameMapper>();
+        List<Route> routes = new ArrayList<Route>(prefixRoutes_);
+        routes.addAll(patternRoutes_);
+        if (default_ != null) {
+            routes.add(default_);
+        }
+        for (Route route : routes) {
+            for (IFileNameMapper mapper : route.mappers_) {
+                if (mappers.put(mapper, Boolean.TRUE) == null) {
+                    result.add(mapper);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counters of one route.
+     */
+    public static class RouteStatistics {
+        private final String name_;
+        private final AtomicLong requests_ = new AtomicLong();
+        private final AtomicLongArray served_;
+        private final AtomicLong notServed_ = new AtomicLong();
+        private final AtomicLong errors_ = new AtomicLong();
+        private final AtomicLong openNanos_ = new AtomicLong();
+
+        RouteStatistics(String name, int mappers) {
+            name_ = name;
+            served_ = new AtomicLongArray(mappers);
+        }
+
+        /**
+         * "prefix:boot/", "pattern:..." or "default"
+         */
+        public String getName() {
+            return name_;
+        }
+
+        /**
+         * Reads and writes routed here.
+         */
+        public long getRequests() {
+            return requests_.get();
+        }
+
+        /**
+         * Requests served by each mapper of the route, in the order of the mappers. Counts for mappers after the
+         * first are the fallbacks taken.
+         */
+        public long[] getServed() {
+            long[] served = new long[served_.length()];
+            for (int i = 0; i < served.length; i++) {
+                served[i] = served_.get(i);
+            }
+            return served;
+        }
+
+        /**
+         * Reads no mapper of the route could serve.
+         */
+        public long getNotServed() {
+            return notServed_.get();
+        }
+
+        /**
+         * Failures of mappers other than "file not found".
+         */
+        public long getErrors() {
+            return errors_.get();
+        }
+
+        /**
+         * The total time spent opening files for reading, in milliseconds.
+         */
+        public long getOpenMillis() {
+            return openNanos_.get() / 1000000L;
+        }
+
+        @Override
+        public String toString() {
+            return name_ + ": " + getRequests() + " requests, served " + Arrays.toString(getServed()) + ", "
+                    + getNotServed() + " not served, " + getErrors() + " errors";
+        }
+    }
+
+    static class Route {
+        private final String prefix_;
+        private final int strip_;
+        private final Pattern pattern_;
+        private final IFileNameMapper[] mappers_;
+        private final RouteStatistics statistics_;
+
+        Route(String name, String prefix, int strip, Pattern pattern, IFileNameMapper[] mappers) {
+            if (mappers.length == 0) {
+                throw new IllegalArgumentException("A route needs at least one mapper");
+            }
+            prefix_ = prefix;
+            strip_ = strip;
+            pattern_ = pattern;
+            mappers_ = mappers.clone();
+            statistics_ = new RouteStatistics(name, mappers.length);
+        }
+    }
+
+    /*
+     * A node of the prefix trie. The children are sorted by their character for a binary search.
+     */
+    private static class TrieNode {
+        private final char[] keys_;
+        private final TrieNode[] children_;
+        private final Route route_;
+
+        private TrieNode(char[] keys, TrieNode[] children, Route route) {
+            keys_ = keys;
+            children_ = children;
+            route_ = route;
+        }
+
+        static TrieNode build(List<Route> routes) {
+            return build(routes, 0);
+        }
+
+        /*
+         * The node for the routes sharing their first depth characters.
+         */
+        private static TrieNode build(List<Route> routes, int depth) {
+            Route route = null;
+            TreeMap<Character, List<Route>> byChar = new TreeMap<Character, List<Route>>();
+            for (Route r : routes) {
+                if (r.prefix_.length() == depth) {
+                    route = r;
+                } else {
+                    char c = r.prefix_.charAt(depth);
+                    List<Route> list = byChar.get(c);
+                    if (list == null) {
+                        list = new ArrayList<Route>();
+                        byChar.put(c, list);
+                    }
+                    list.add(r);
+                }
+            }
+            char[] keys = new char[byChar.size()];
+            TrieNode[] children = new TrieNode[byChar.size()];
+            int i = 0;
+            for (Map.Entry<Character, List<Route>> entry : byChar.entrySet()) {
+                keys[i] = entry.getKey();
+                children[i] = build(entry.getValue(), depth + 1);
+                i++;
+            }
+            return new TrieNode(keys, children, route);
+        }
+
+        /*
+         * The route of the longest prefix of name, null if none matches.
+         */
+        Route lookup(String name) {
+            TrieNode node = this;
+            Route found = route_;
+            for (int i = 0; i < name.length(); i++) {
+                int index = Arrays.binarySearch(node.keys_, name.charAt(i));
+                if (index < 0) {
+                    break;
+                }
+                node = node.children_[index];
+                if (node.route_ != null) {
+                    found = node.route_;
+                }
+            }
+            return found;
+        }
+    }
+}
@@ -30,25 +30,57 @@ package com.horstmeier.java.tftp;
  * The version I used to create this version can be found at src/TFTPServer.java
  */
 
+import com.horstmeier.java.tftp.interfaces.IAsyncFileMapper;
+import com.horstmeier.java.tftp.interfaces.IContentInfo;
 import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
-import org.apache.commons.net.io.FromNetASCIIOutputStream;
-import org.apache.commons.net.io.ToNetASCIIInputStream;
+import com.horstmeier.java.tftp.interfaces.IPrefetchable;
+import com.horstmeier.java.tftp.interfaces.IUploadStream;
+import com.horstmeier.java.tftp.interfaces.IWarmable;
+import com.horstmeier.java.tftp.interfaces.RequestContext;
+import com.horstmeier.java.tftp.jfr.BlockReadEvent;
+import com.horstmeier.java.tftp.jfr.MapperOpenEvent;
+import com.horstmeier.java.tftp.jfr.RetransmitTimeoutEvent;
+import com.horstmeier.java.tftp.jfr.TransferEvent;
+import com.horstmeier.java.tftp.management.Transfers;
+import com.horstmeier.java.tftp.metrics.TFTPMetrics;
+import org.apache.commons.net.DatagramSocketFactory;
 import org.apache.commons.net.tftp.*;
 import org.apache.log4j.Logger;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.HashSet;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
 
 /**
- * A fully multi-threaded tftp server.  Can handle multiple clients at the same time. Implements RFC 1350 and
- * wrapping block numbers for large file support.
+ * A fully multi-threaded tftp server.  Can handle multiple clients at the same time. Implements RFC 1350,
+ * wrapping block numbers for large file support and the tsize option (RFC 2349) for reads.
  *
  * To launch, just create an instance of the class.  An IOException will be thrown if the server fails to start
  * for reasons such as port in use, port denied, etc.
+ * If the file name mapper implements IWarmable, it is warmed up before the server starts listening.
+ * If it implements IPrefetchable, the files a client will likely request next are fetched ahead of the request.
+ * The server also accepts an IAsyncFileMapper, whose opens are cancelled when a transfer is aborted.
  *
- * To stop, use the shutdown method.
+ * To stop, use the shutdown method. To let running transfers finish first, use the drain method. To reload the
+ * configuration without dropping requests, start a new server with the running server as predecessor.
  *
  * To check to see if the server is still running (or if it stopped because of an error), call the isRunning() method.
  *
@@ -59,17 +91,31 @@ public class TFTPBaseServer implements Runnable
 {
 	private Logger log = Logger.getLogger(TFTPBaseServer.class);
 
-	private final HashSet<TFTPTransfer> transfers_ = new HashSet<TFTPTransfer>();
+	private final ConcurrentHashMap<Long, TFTPTransfer> transfers_ = new ConcurrentHashMap<Long, TFTPTransfer>();
+	private final AtomicLong nextTransferId_ = new AtomicLong();
+	private final AdmissionController admission_ = new AdmissionController();
+	private final TFTPMetrics metrics_ = new TFTPMetrics(admission_);
+	private final List<ObjectName> mbeanNames_ = new ArrayList<ObjectName>();
+	private final ListenerSocketFactory socketFactory_ = new ListenerSocketFactory();
+	private final Object drainLock_ = new Object();
+	private final ContentCache contentCache_ = new ContentCache(32 * 1024 * 1024, 1024 * 1024);
+	private final BootSequencePredictor predictor_ = new BootSequencePredictor();
 	private volatile boolean shutdown_ = false;
-	private TFTP serverTftp_;
+	private volatile boolean handedOver_ = false;
+	private OptionTftp serverTftp_;
+	private Thread listenerThread_;
 
-    private final IFileNameMapper fileNameMapper_;
+    private final IAsyncFileMapper fileNameMapper_;
 
 	private int port_;
 	private Exception serverException = null;
 
 	private int maxTimeoutRetries_ = 3;
 	private int socketTimeout_;
+	private int writeBehindBuffers_ = 64;
+	private int readAheadBlocks_ = 32;
+	private volatile Semaphore readAheadBudget_ = new Semaphore(32 * 1024 * 1024);
+	private volatile AccessLog accessLog_;
 
 	/**
 	 * Start a TFTP Server on the default port (69).  Gets and Puts occur in the specified directory.
@@ -105,11 +151,69 @@ public class TFTPBaseServer implements Runnable
 	 */
 	public TFTPBaseServer(IFileNameMapper fileNameMapper, int port) throws IOException
 	{
+        this(new AsyncFileMapperAdapter(fileNameMapper, null), port);
+	}
+
+	/**
+	 * Start a TFTP Server on the specified port with a mapper that opens files asynchronously.
+	 *
+	 * @param fileNameMapper An abstraction for the file system
+	 * @param port The IP port to use
+	 * @throws IOException If the server could not open the port
+	 */
+	public TFTPBaseServer(IAsyncFileMapper fileNameMapper, int port) throws IOException
+	{
         fileNameMapper_ = fileNameMapper;
         port_ = port;
+		warmUpMapper();
 		launch();
 	}
 
+	/**
+	 * Start a TFTP Server that takes over the listening socket of a running server, e.g. to apply a new
+	 * configuration. Requests that arrive during the hand over are queued in the socket and served by the new
+	 * server, so none are dropped.
+	 *
+	 * The predecessor stops listening but keeps serving the transfers it has already started. Call
+	 * {@link #drain(long)} on it to wait for them and release its resources. The socket is not closed by the
+	 * predecessor any more.
+	 *
+	 * @param fileNameMapper An abstraction for the file system
+	 * @param predecessor The running server whose port is taken over
+	 * @throws IOException If the predecessor is not listening any more
+	 */
+	public TFTPBaseServer(IFileNameMapper fileNameMapper, TFTPBaseServer predecessor) throws IOException
+	{
+        this(new AsyncFileMapperAdapter(fileNameMapper, null), predecessor);
+	}
+
+	/**
+	 * Take over the listening socket of a running server, see
+	 * {@link #TFTPBaseServer(IFileNameMapper, TFTPBaseServer)}, with a mapper that opens files asynchronously.
+	 *
+	 * @param fileNameMapper An abstraction for the file system
+	 * @param predecessor The running server whose port is taken over
+	 * @throws IOException If the predecessor is not listening any more
+	 */
+	public TFTPBaseServer(IAsyncFileMapper fileNameMapper, TFTPBaseServer predecessor) throws IOException
+	{
+        fileNameMapper_ = fileNameMapper;
+		// the predecessor keeps serving while the new mapper warms up
+		warmUpMapper();
+		DatagramSocket socket = predecessor.handOverListener();
+		port_ = socket.getLocalPort();
+		socketFactory_.socket_ = socket;
+		try
+		{
+			launch();
+		}
+		catch (IOException e)
+		{
+			socket.close();
+			throw e;
+		}
+	}
+
 	/**
 	 * Set the max number of retries in response to a timeout.  Default 3.  Min 0.
 	 * @param retries Number of retries
@@ -154,6 +258,211 @@ public class TFTPBaseServer implements Runnable
 		return socketTimeout_;
 	}
 
+	/**
+	 * Set the number of 8 KB buffers used to acknowledge uploaded blocks before they are written to the
+	 * mapper's stream. A writer thread per upload drains them in batches. When all buffers are full, acks are
+	 * delayed until the storage catches up. The last block is only acknowledged after everything is written
+	 * and synced. Default 64. 0 writes every block before it is acknowledged.
+	 */
+	public void setWriteBehindBuffers(int buffers)
+	{
+		if (buffers < 0)
+		{
+			throw new RuntimeException("Invalid Value");
+		}
+		writeBehindBuffers_ = buffers;
+	}
+
+	/**
+	 * The current number of write behind buffers per upload.
+	 */
+	public int getWriteBehindBuffers()
+	{
+		return writeBehindBuffers_;
+	}
+
+	/**
+	 * Set the number of blocks read ahead per download. The next blocks are read from the mapper's stream on a
+	 * shared pool of I/O threads while the current block waits for its ack, so slow storage does not add to
+	 * every round trip. Default 32. 0 reads every block when it is sent.
+	 */
+	public void setReadAheadBlocks(int blocks)
+	{
+		if (blocks < 0)
+		{
+			throw new RuntimeException("Invalid Value");
+		}
+		readAheadBlocks_ = blocks;
+	}
+
+	/**
+	 * The current number of blocks read ahead per download.
+	 */
+	public int getReadAheadBlocks()
+	{
+		return readAheadBlocks_;
+	}
+
+	/**
+	 * Set the memory all downloads together may use for read-ahead. Downloads that exceed it read their blocks
+	 * when they are sent. Applies to downloads started afterwards. Default 32 MB. Min 0.
+	 */
+	public void setReadAheadMemory(int bytes)
+	{
+		if (bytes < 0)
+		{
+			throw new RuntimeException("Invalid Value");
+		}
+		readAheadBudget_ = new Semaphore(bytes);
+	}
+
+	/**
+	 * The read-ahead memory currently not in use, in bytes.
+	 */
+	public int getReadAheadMemoryAvailable()
+	{
+		return readAheadBudget_.availablePermits();
+	}
+
+	/**
+	 * The cache holding the NetASCII form of text files that were read in netascii mode, so hot files like boot
+	 * menus are converted once instead of per transfer. Only files whose mapper stream identifies its content
+	 * (see {@link IContentInfo}) are cached. Default 32 MB, files up to 1 MB.
+	 */
+	public ContentCache getContentCache()
+	{
+		return contentCache_;
+	}
+
+	/**
+	 * Set the log that gets an entry for every finished transfer, null for none. Default null. The log is not
+	 * closed by the server.
+	 */
+	public void setAccessLog(AccessLog accessLog)
+	{
+		accessLog_ = accessLog;
+	}
+
+	public AccessLog getAccessLog()
+	{
+		return accessLog_;
+	}
+
+	/**
+	 * Learns the order in which clients request files. If the file name mapper implements IPrefetchable, the
+	 * files a client will likely request next are prefetched when it starts a download. Hits are counted in the
+	 * metrics.
+	 */
+	public BootSequencePredictor getBootSequencePredictor()
+	{
+		return predictor_;
+	}
+
+	/**
+	 * The admission control applied to incoming requests. Use it to configure the per-source rate limit and
+	 * the max number of concurrent transfers, and to read the drop counters.
+	 */
+	public AdmissionController getAdmissionController()
+	{
+		return admission_;
+	}
+
+	/**
+	 * Counters and histograms for this server. They are also registered as a JMX MBean named
+	 * com.horstmeier.java.tftp:type=Metrics,port=&lt;port&gt; while the server is running.
+	 */
+	public TFTPMetrics getMetrics()
+	{
+		return metrics_;
+	}
+
+	/**
+	 * A snapshot of all running transfers. Listing does not block the dispatch of new requests. The same
+	 * information is available through the JMX MBean com.horstmeier.java.tftp:type=Transfers,port=&lt;port&gt;.
+	 */
+	public List<TransferInfo> getActiveTransfers()
+	{
+		List<TransferInfo> result = new ArrayList<TransferInfo>(transfers_.size());
+		for (TFTPTransfer transfer : transfers_.values())
+		{
+			TransferInfo info = transfer.getInfo();
+			if (info != null)
+			{
+				result.add(info);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Abort a single running transfer.
+	 * @param id The id reported by {@link TransferInfo#getId()}
+	 * @return false if no transfer with that id is running
+	 */
+	public boolean abortTransfer(long id)
+	{
+		TFTPTransfer transfer = transfers_.get(id);
+		if (transfer == null)
+		{
+			return false;
+		}
+		log.info("Aborting TFTP transfer " + id + ".");
+		transfer.abort();
+		return true;
+	}
+
+	/**
+	 * Limit the rate of a single running transfer. Reads are paced before each data packet, writes by
+	 * delaying the ack.
+	 * @param id The id reported by {@link TransferInfo#getId()}
+	 * @param bytesPerSecond The max rate, 0 removes the limit
+	 * @return false if no transfer with that id is running
+	 */
+	public boolean throttleTransfer(long id, long bytesPerSecond)
+	{
+		if (bytesPerSecond < 0)
+		{
+			throw new RuntimeException("Invalid Value");
+		}
+		TFTPTransfer transfer = transfers_.get(id);
+		if (transfer == null)
+		{
+			return false;
+		}
+		transfer.rateLimit_ = bytesPerSecond;
+		return true;
+	}
+
+	/*
+	 * The mapper as passed to the constructor, for the optional interfaces it may implement.
+	 */
+	private Object getMapper()
+	{
+		return fileNameMapper_ instanceof AsyncFileMapperAdapter
+				? ((AsyncFileMapperAdapter) fileNameMapper_).getMapper() : fileNameMapper_;
+	}
+
+	/*
+	 * Let the mapper prepare itself (see IWarmable) before any request is accepted.
+	 */
+	private void warmUpMapper()
+	{
+		Object mapper = getMapper();
+		if (mapper instanceof IWarmable)
+		{
+			long started = System.currentTimeMillis();
+			try
+			{
+				((IWarmable) mapper).warmUp();
+				log.info("TFTP file mapper ready after " + (System.currentTimeMillis() - started) + " ms.");
+			}
+			catch (IOException e)
+			{
+				log.warn("Warming up the TFTP file mapper failed, starting anyway.", e);
+			}
+		}
+	}
+
 	/*
 	 * start the server, throw an error if it can't start.
 	 */
@@ -161,7 +470,7 @@ public class TFTPBaseServer implements Runnable
 	{
 		log.debug("Starting TFTP Server on port " + port_ + ".");
 
-		serverTftp_ = new TFTP();
+		serverTftp_ = new OptionTftp();
 
 		//This is the value used in response to each client.
 		socketTimeout_ = serverTftp_.getDefaultTimeout();
@@ -169,18 +478,100 @@ public class TFTPBaseServer implements Runnable
 		//we want the server thread to listen forever.
 		serverTftp_.setDefaultTimeout(0);
 
+		serverTftp_.setDatagramSocketFactory(socketFactory_);
 		serverTftp_.open(port_);
 
+		registerMBeans();
+
 		Thread go = new Thread(this, "TFTPServer");
 		go.setDaemon(true);
+		listenerThread_ = go;
 		go.start();
 	}
 
-	@Override
-	protected void finalize() throws Throwable
+	/*
+	 * Stop the listener thread without closing its socket and return the socket to the successor.
+	 */
+	private synchronized DatagramSocket handOverListener() throws IOException
 	{
-		shutdown();
-        super.finalize();
+		DatagramSocket socket = socketFactory_.socket_;
+		if (shutdown_ || handedOver_ || socket == null)
+		{
+			throw new IOException("The TFTP server is not listening.");
+		}
+		handedOver_ = true;
+
+		// the listener waits forever for the next packet - send it one, so it notices the hand over.
+		// The packet is no request, so it is dropped; any packet received before is still served here.
+		InetAddress self = socket.getLocalAddress().isAnyLocalAddress() ? InetAddress.getLoopbackAddress() : socket.getLocalAddress();
+		TFTP wakeup = new TFTP();
+		wakeup.open();
+		try
+		{
+			while (listenerThread_.isAlive())
+			{
+				wakeup.send(new TFTPErrorPacket(self, socket.getLocalPort(), TFTPErrorPacket.UNDEFINED, "hand over"));
+				listenerThread_.join(100);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException("Interrupted while handing over the listener.");
+		}
+		finally
+		{
+			wakeup.close();
+		}
+		unregisterMBeans();
+
+		log.info("Handed over TFTP listener on port " + socket.getLocalPort() + ", " + transfers_.size() + " transfers still running.");
+		return socket;
+	}
+
+	/*
+	 * Expose metrics and transfer control through JMX. A server that can't register (e.g. a second server
+	 * on the same port in one JVM) still works, it just isn't visible in JMX.
+	 */
+	private void registerMBeans()
+	{
+		registerMBean("Metrics", metrics_);
+		registerMBean("Transfers", new Transfers(this));
+	}
+
+	private void registerMBean(String type, Object mbean)
+	{
+		try
+		{
+			ObjectName name = new ObjectName("com.horstmeier.java.tftp:type=" + type + ",port=" + serverTftp_.getLocalPort());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+			synchronized (mbeanNames_)
+			{
+				mbeanNames_.add(name);
+			}
+		}
+		catch (Exception e)
+		{
+			log.debug("Could not register TFTP " + type + " MBean.", e);
+		}
+	}
+
+	private void unregisterMBeans()
+	{
+		synchronized (mbeanNames_)
+		{
+			for (ObjectName name : mbeanNames_)
+			{
+				try
+				{
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+				}
+				catch (Exception e)
+				{
+					// noop
+				}
+			}
+			mbeanNames_.clear();
+		}
 	}
 
 	/**
@@ -201,21 +592,44 @@ public class TFTPBaseServer implements Runnable
 	{
 		try
 		{
-			while (!shutdown_)
+			while (!shutdown_ && !handedOver_)
 			{
 				TFTPPacket tftpPacket;
 
-				tftpPacket = serverTftp_.receive();
+				try
+				{
+					tftpPacket = serverTftp_.receiveRequest();
+				}
+				catch (TFTPPacketException e)
+				{
+					// garbage on the server port - drop it as cheaply as any other unwanted packet
+					admission_.dropMalformed();
+					continue;
+				}
+				RequestOptions options = serverTftp_.options_;
 
-				TFTPTransfer tt = new TFTPTransfer(tftpPacket);
-				synchronized(transfers_)
+				if (!admission_.admit(tftpPacket))
 				{
-					transfers_.add(tt);
+					// dropped without creating a transfer - the admission controller counts the reason.
+					continue;
 				}
 
-				Thread thread = new Thread(tt, "TFTPTransfer-" + tftpPacket.getAddress());
-				thread.setDaemon(true);
-				thread.start();
+				TFTPTransfer tt = new TFTPTransfer(nextTransferId_.incrementAndGet(), tftpPacket, options);
+				transfers_.put(tt.id_, tt);
+
+				try
+				{
+					Thread thread = new Thread(tt, "TFTPTransfer-" + tftpPacket.getAddress());
+					thread.setDaemon(true);
+					thread.start();
+				}
+				catch (Throwable e)
+				{
+					// the transfer never runs, so it can't release its slot itself
+					transfers_.remove(tt.id_);
+					admission_.release();
+					throw e;
+				}
 			}
 		}
 		catch (Exception e)
@@ -229,7 +643,7 @@ public class TFTPBaseServer implements Runnable
 		finally
 		{
 			shutdown_ = true;  //set this to true, so the launching thread can check to see if it started.
-			if (serverTftp_ != null && serverTftp_.isOpen())
+			if (!handedOver_ && serverTftp_ != null && serverTftp_.isOpen())
 			{
 				serverTftp_.close();
 			}
@@ -238,25 +652,136 @@ public class TFTPBaseServer implements Runnable
 
 	/**
 	 * Stop the tftp server (and any currently running transfers) and release all opened network resources.
+	 * A server that is not needed any more must be shut down - it is not stopped by the garbage collector.
 	 */
 	public void shutdown()
 	{
 		shutdown_ = true;
 
-		synchronized(transfers_)
+        for (TFTPTransfer aTransfers_ : transfers_.values()) {
+            aTransfers_.shutdown();
+        }
+
+		if (!handedOver_)
 		{
-            for (TFTPTransfer aTransfers_ : transfers_) {
-                aTransfers_.shutdown();
-            }
+			try
+			{
+				serverTftp_.close();
+			}
+			catch (RuntimeException e)
+			{
+				// noop
+			}
 		}
 
-		try
+		unregisterMBeans();
+	}
+
+	/**
+	 * Stop accepting new requests, wait until the running transfers are finished or the timeout has elapsed and
+	 * then shut the server down. Transfers still running at the deadline are aborted.
+	 *
+	 * @param timeoutMillis Max time to wait for running transfers in milliseconds
+	 * @return The transfers that had to be aborted, empty if all finished in time
+	 * @throws InterruptedException If the calling thread is interrupted while waiting
+	 */
+	public List<TransferInfo> drain(long timeoutMillis) throws InterruptedException
+	{
+		admission_.setDraining(true);
+		log.debug("Draining TFTP Server on port " + port_ + ", " + transfers_.size() + " transfers running.");
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (drainLock_)
+		{
+			long remaining = timeoutMillis;
+			while (admission_.getInFlight() > 0 && remaining > 0)
+			{
+				drainLock_.wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		}
+
+		List<TransferInfo> aborted = getActiveTransfers();
+		for (TransferInfo info : aborted)
+		{
+			log.warn("Aborting TFTP transfer at end of drain: " + info);
+		}
+		// abort interrupts transfers sleeping in their throttle, closing the sockets alone would not wake them
+		for (TFTPTransfer transfer : transfers_.values())
+		{
+			transfer.abort();
+		}
+		shutdown();
+		return aborted;
+	}
+
+	/*
+	 * Creates the listening socket once and remembers it, so it can be handed over to another server.
+	 */
+	private static class ListenerSocketFactory implements DatagramSocketFactory
+	{
+		volatile DatagramSocket socket_;
+
+		public DatagramSocket createDatagramSocket() throws SocketException
+		{
+			return createDatagramSocket(0);
+		}
+
+		public DatagramSocket createDatagramSocket(int port) throws SocketException
+		{
+			if (socket_ == null)
+			{
+				socket_ = new DatagramSocket(port);
+			}
+			return socket_;
+		}
+
+		public DatagramSocket createDatagramSocket(int port, InetAddress laddr) throws SocketException
+		{
+			if (socket_ == null)
+			{
+				socket_ = new DatagramSocket(port, laddr);
+			}
+			return socket_;
+		}
+	}
+
+	/*
+	 * Receives requests like TFTP.receive(), but keeps the options of the request, which commons-net drops. Also
+	 * sends option acknowledgements, which commons-net can't create.
+	 */
+	private static class OptionTftp extends TFTP
+	{
+		private static final int OPTION_ACK = 6;
+
+		private static final int MAX_REQUEST_SIZE = 2048;
+
+		RequestOptions options_ = RequestOptions.NONE;
+
+		public TFTPPacket receiveRequest() throws IOException, TFTPPacketException
 		{
-			serverTftp_.close();
+			// a new buffer per request - packets created by commons-net may keep a reference to it.
+			DatagramPacket datagram = new DatagramPacket(new byte[MAX_REQUEST_SIZE], MAX_REQUEST_SIZE);
+			_socket_.receive(datagram);
+			TFTPPacket packet = TFTPPacket.newTFTPPacket(datagram);
+			options_ = packet instanceof TFTPRequestPacket ? RequestOptions.parse(datagram) : RequestOptions.NONE;
+			return packet;
 		}
-		catch (RuntimeException e)
+
+		public void sendOptionAck(InetAddress address, int port, Map<String, String> options) throws IOException
 		{
-			// noop
+			ByteArrayOutputStream packet = new ByteArrayOutputStream(64);
+			packet.write(0);
+			packet.write(OPTION_ACK);
+			for (Map.Entry<String, String> option : options.entrySet())
+			{
+				packet.write(option.getKey().getBytes(StandardCharsets.US_ASCII));
+				packet.write(0);
+				packet.write(option.getValue().getBytes(StandardCharsets.US_ASCII));
+				packet.write(0);
+			}
+			byte[] data = packet.toByteArray();
+			_socket_.send(new DatagramPacket(data, data.length, address, port));
 		}
 	}
 
@@ -265,18 +790,65 @@ public class TFTPBaseServer implements Runnable
 	 */
 	private class TFTPTransfer implements Runnable
 	{
+		private final long id_;
+		private final long startedMillis_ = System.currentTimeMillis();
 		private TFTPPacket tftpPacket_;
-		private boolean shutdown_ = false;
-		TFTP transferTftp_ = null;
-
-		public TFTPTransfer(TFTPPacket tftpPacket)
+		private final RequestOptions options_;
+		private volatile boolean shutdown_ = false;
+		private boolean completed_ = false;
+		private volatile int block_ = 0;
+		private volatile long bytes_ = 0;
+		private long blocks_ = 0;
+		private long retransmits_ = 0;
+		volatile long rateLimit_ = 0;
+		private long nextSendNanos_ = 0;
+		private volatile Thread thread_;
+		private volatile Future<?> opening_;
+		OptionTftp transferTftp_ = null;
+
+		public TFTPTransfer(long id, TFTPPacket tftpPacket, RequestOptions options)
 		{
+			id_ = id;
 			tftpPacket_ = tftpPacket;
+			options_ = options;
+		}
+
+		/*
+		 * Snapshot for the management API, null for packets that are no requests.
+		 */
+		public TransferInfo getInfo()
+		{
+			if (!(tftpPacket_ instanceof TFTPRequestPacket))
+			{
+				return null;
+			}
+			TFTPRequestPacket request = (TFTPRequestPacket) tftpPacket_;
+			return new TransferInfo(id_, new InetSocketAddress(request.getAddress(), request.getPort()), request.getFilename(),
+					request instanceof TFTPReadRequestPacket ? TransferInfo.Direction.READ : TransferInfo.Direction.WRITE,
+					block_, bytes_, System.currentTimeMillis() - startedMillis_, rateLimit_);
+		}
+
+		/*
+		 * Stop the transfer on request of an operator. Unlike shutdown, this also wakes up a throttled transfer.
+		 */
+		public void abort()
+		{
+			shutdown();
+			Thread thread = thread_;
+			if (thread != null)
+			{
+				thread.interrupt();
+			}
 		}
 
 		public void shutdown()
 		{
 			shutdown_ = true;
+			Future<?> opening = opening_;
+			if (opening != null)
+			{
+				opening.cancel(true);
+			}
 			try
 			{
 				transferTftp_.close();
@@ -289,16 +861,25 @@ public class TFTPBaseServer implements Runnable
 
 		public void run()
 		{
+			long started = System.nanoTime();
+			boolean counted = false;
+			TransferEvent event = new TransferEvent();
+			event.begin();
+			thread_ = Thread.currentThread();
 			try
 			{
                 setupTransferTftp();
 
 				if (tftpPacket_ instanceof TFTPReadRequestPacket)
 				{
+					metrics_.transferStarted(true);
+					counted = true;
 					handleRead(((TFTPReadRequestPacket) tftpPacket_));
 				}
 				else if (tftpPacket_ instanceof TFTPWriteRequestPacket)
 				{
+					metrics_.transferStarted(false);
+					counted = true;
 					handleWrite((TFTPWriteRequestPacket) tftpPacket_);
 				}
 				else
@@ -323,13 +904,114 @@ public class TFTPBaseServer implements Runnable
 				{
 					//noop
 				}
-				synchronized(transfers_)
+				thread_ = null;
+				transfers_.remove(id_);
+				admission_.release();
+				if (admission_.isDraining())
+				{
+					synchronized (drainLock_)
+					{
+						drainLock_.notifyAll();
+					}
+				}
+				if (counted)
 				{
-					transfers_.remove(this);
+					metrics_.transferFinished(completed_, System.nanoTime() - started);
+					event.end();
+					if (event.shouldCommit())
+					{
+						TFTPRequestPacket request = (TFTPRequestPacket) tftpPacket_;
+						event.file = request.getFilename();
+						event.client = request.getAddress().getHostAddress() + ":" + request.getPort();
+						event.direction = request instanceof TFTPReadRequestPacket ? "read" : "write";
+						event.bytes = bytes_;
+						event.blocks = blocks_;
+						event.retransmits = retransmits_;
+						event.success = completed_;
+						event.commit();
+					}
+					AccessLog accessLog = accessLog_;
+					if (accessLog != null)
+					{
+						TFTPRequestPacket request = (TFTPRequestPacket) tftpPacket_;
+						accessLog.log(new AccessLog.Entry(startedMillis_,
+								request.getAddress().getHostAddress() + ":" + request.getPort(), request.getFilename(),
+								request instanceof TFTPReadRequestPacket, TFTP.getModeName(request.getMode()),
+								options_.asMap(), bytes_, blocks_, retransmits_, (System.nanoTime() - started) / 1000,
+								completed_ ? "ok" : shutdown_ ? "aborted" : "failed"));
+					}
 				}
 			}
 		}
 
+        private RequestContext getContext(TFTPRequestPacket request) {
+            return new RequestContext(id_, new InetSocketAddress(request.getAddress(), request.getPort()), request.getFilename(),
+                    TFTP.getModeName(request.getMode()), request instanceof TFTPReadRequestPacket, options_.asMap());
+        }
+
+        /*
+         * Learn from the request and let the mapper fetch the files the client will likely request next.
+         */
+        private void prefetchSuccessors(TFTPReadRequestPacket request) {
+            String client = request.getAddress().getHostAddress();
+            if (predictor_.recordRead(client, request.getFilename())) {
+                metrics_.prefetchHit();
+            }
+            Object mapper = getMapper();
+            if (!(mapper instanceof IPrefetchable)) {
+                return;
+            }
+            for (String next : predictor_.predict(client, request.getFilename())) {
+                try {
+                    if (((IPrefetchable) mapper).prefetch(next)) {
+                        predictor_.prefetched(client, next);
+                        metrics_.prefetched();
+                    }
+                } catch (RuntimeException e) {
+                    log.debug("Prefetching " + next + " failed.", e);
+                }
+            }
+        }
+
+        /*
+         * Wrap a stream read from storage for sending. Content that is in memory already is not read ahead.
+         */
+        private InputStream readAhead(InputStream inputStream) {
+            if (readAheadBlocks_ == 0 || inputStream instanceof ByteArrayInputStream) {
+                return new BufferedInputStream(inputStream);
+            }
+            return new ReadAheadInputStream(inputStream, readAheadBlocks_ * TFTPDataPacket.MAX_DATA_LENGTH, readAheadBudget_);
+        }
+
+        /*
+         * Wait for the mapper to open the file. The open is cancelled if the transfer is aborted meanwhile.
+         */
+        private <T> T awaitOpen(CompletableFuture<T> future) throws IOException {
+            opening_ = future;
+            try {
+                if (shutdown_) {
+                    future.cancel(true);
+                }
+                return future.get();
+            } catch (CancellationException e) {
+                throw new InterruptedIOException("Transfer aborted");
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                throw new InterruptedIOException("Transfer aborted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            } finally {
+                opening_ = null;
+            }
+        }
+
         private void shutdownTransferTftp() {
             if (transferTftp_ != null && transferTftp_.isOpen())
             {
@@ -338,8 +1020,134 @@ public class TFTPBaseServer implements Runnable
             }
         }
 
+        private void sendError(InetAddress address, int port, int error, String message) throws IOException {
+            metrics_.errorSent(error);
+            transferTftp_.bufferedSend(new TFTPErrorPacket(address, port, error, message));
+        }
+
+        private void mapperOpened(MapperOpenEvent event, String fileName, boolean write, long started, boolean success) {
+            metrics_.mapperOpened(System.nanoTime() - started, success);
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = fileName;
+                event.write = write;
+                event.success = success;
+                event.commit();
+            }
+        }
+
+        private void timedOut(TFTPRequestPacket request, int block, int attempt, boolean givenUp) {
+            metrics_.timedOut();
+            RetransmitTimeoutEvent event = new RetransmitTimeoutEvent();
+            if (event.shouldCommit()) {
+                event.file = request.getFilename();
+                event.client = request.getAddress().getHostAddress() + ":" + request.getPort();
+                event.block = block;
+                event.attempt = attempt;
+                event.timeout = socketTimeout_;
+                event.givenUp = givenUp;
+                event.commit();
+            }
+        }
+
+        /*
+         * Wait as long as needed to keep the transfer below its rate limit before the given number of bytes
+         * is sent or acknowledged.
+         */
+        private void pace(int bytes) throws InterruptedIOException {
+            long limit = rateLimit_;
+            if (limit <= 0) {
+                nextSendNanos_ = 0;
+                return;
+            }
+            long now = System.nanoTime();
+            if (nextSendNanos_ == 0 || nextSendNanos_ - now < 0) {
+                nextSendNanos_ = now;
+            }
+            long wait = nextSendNanos_ - now;
+            nextSendNanos_ += bytes * 1000000000L / limit;
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Transfer aborted");
+                }
+            }
+        }
+
+        /*
+         * The NetASCII form of the stream's content from the cache, converted and cached now if it is missing.
+         * Null if the content can't be cached, the caller converts while sending then.
+         */
+        private byte[] cachedNetAscii(InputStream inputStream) throws IOException {
+            if (!(inputStream instanceof IContentInfo)) {
+                return null;
+            }
+            IContentInfo info = (IContentInfo) inputStream;
+            String version = info.getContentVersion();
+            long length = info.getContentLength();
+            if (version == null || length < 0 || length > contentCache_.getMaxEntryBytes()) {
+                return null;
+            }
+            String key = "netascii\0" + version;
+            byte[] converted = contentCache_.get(key);
+            if (converted == null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) length + (int) (length / 16) + 16);
+                InputStream in = new NetAsciiInputStream(inputStream);
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+                converted = out.toByteArray();
+                contentCache_.put(key, converted);
+            }
+            return converted;
+        }
+
+        /*
+         * Send an option acknowledgement and wait for the client to acknowledge it with block 0.
+         * Returns false if the client refused the options or did not answer as expected.
+         */
+        private boolean acknowledgeOptions(TFTPRequestPacket request, Map<String, String> accepted) throws IOException, TFTPPacketException {
+            transferTftp_.sendOptionAck(request.getAddress(), request.getPort(), accepted);
+            metrics_.packetSent();
+            int timeoutCount = 0;
+            while (!shutdown_) {
+                TFTPPacket answer;
+                try {
+                    answer = transferTftp_.bufferedReceive();
+                    metrics_.packetReceived();
+                } catch (SocketTimeoutException e) {
+                    timedOut(request, 0, timeoutCount + 1, timeoutCount >= maxTimeoutRetries_);
+                    if (timeoutCount >= maxTimeoutRetries_) {
+                        throw e;
+                    }
+                    timeoutCount++;
+                    transferTftp_.sendOptionAck(request.getAddress(), request.getPort(), accepted);
+                    metrics_.retransmitted();
+                    retransmits_++;
+                    continue;
+                }
+                if (!answer.getAddress().equals(request.getAddress()) || answer.getPort() != request.getPort()) {
+                    log.debug("TFTP Server ignoring message from unexpected source.");
+                    sendError(answer.getAddress(), answer.getPort(), TFTPErrorPacket.UNKNOWN_TID, "Unexpected Host or Port");
+                    continue;
+                }
+                if (answer instanceof TFTPAckPacket && ((TFTPAckPacket) answer).getBlockNumber() == 0) {
+                    return true;
+                }
+                // an error packet means the client refused the options
+                if (!(answer instanceof TFTPErrorPacket)) {
+                    log.error("Unexpected response from tftp client to option acknowledgement (" + answer + ").  Transfer aborted.");
+                }
+                return false;
+            }
+            return false;
+        }
+
         private void setupTransferTftp() throws SocketException {
-            transferTftp_ = new TFTP();
+            transferTftp_ = new OptionTftp();
 
             transferTftp_.beginBufferedOps();
             transferTftp_.setDefaultTimeout(socketTimeout_);
@@ -357,31 +1165,75 @@ public class TFTPBaseServer implements Runnable
 			{
 				if (!fileNameMapper_.canRead())
 				{
-					transferTftp_.bufferedSend(new TFTPErrorPacket(trrp.getAddress(), trrp.getPort(), TFTPErrorPacket.ILLEGAL_OPERATION, "Read not allowed by server."));
+					sendError(trrp.getAddress(), trrp.getPort(), TFTPErrorPacket.ILLEGAL_OPERATION, "Read not allowed by server.");
 					return;
 				}
 
+				prefetchSuccessors(trrp);
+
+				MapperOpenEvent openEvent = new MapperOpenEvent();
+				openEvent.begin();
+				long openStarted = System.nanoTime();
+				InputStream inputStream;
 				try
 				{
-                    InputStream inputStream = fileNameMapper_.openInputStream(trrp.getFilename());
+                    inputStream = awaitOpen(fileNameMapper_.openInputStream(getContext(trrp)));
                     if (inputStream == null)
                         throw new FileNotFoundException(trrp.getFilename());
-					is = new BufferedInputStream(inputStream);
+					mapperOpened(openEvent, trrp.getFilename(), false, openStarted, true);
+					is = inputStream;
+				}
+				catch (InterruptedIOException e)
+				{
+					mapperOpened(openEvent, trrp.getFilename(), false, openStarted, false);
+					throw e;
 				}
 				catch (FileNotFoundException e)
 				{
-					transferTftp_.bufferedSend(new TFTPErrorPacket(trrp.getAddress(), trrp.getPort(), TFTPErrorPacket.FILE_NOT_FOUND, e.getMessage()));
+					mapperOpened(openEvent, trrp.getFilename(), false, openStarted, false);
+					sendError(trrp.getAddress(), trrp.getPort(), TFTPErrorPacket.FILE_NOT_FOUND, e.getMessage());
 					return;
 				}
 				catch (Exception e)
 				{
-					transferTftp_.bufferedSend(new TFTPErrorPacket(trrp.getAddress(), trrp.getPort(), TFTPErrorPacket.UNDEFINED, e.getMessage()));
+					mapperOpened(openEvent, trrp.getFilename(), false, openStarted, false);
+					sendError(trrp.getAddress(), trrp.getPort(), TFTPErrorPacket.UNDEFINED, e.getMessage());
 					return;
 				}
 
+				long size = -1;
 				if (trrp.getMode() == TFTP.NETASCII_MODE)
 				{
-					is = new ToNetASCIIInputStream(is);
+					byte[] converted = cachedNetAscii(inputStream);
+					if (converted != null)
+					{
+						inputStream.close();
+						is = new ByteArrayInputStream(converted);
+						size = converted.length;
+					}
+					else
+					{
+						is = new NetAsciiInputStream(readAhead(inputStream));
+					}
+				}
+				else
+				{
+					is = readAhead(inputStream);
+					if (inputStream instanceof IContentInfo)
+					{
+						size = ((IContentInfo) inputStream).getContentLength();
+					}
+				}
+
+				// RFC 2349 - tell the client the size if it asks for it and we know it, otherwise ignore the option
+				if (options_.get("tsize") != null && size >= 0)
+				{
+					Map<String, String> accepted = new LinkedHashMap<String, String>();
+					accepted.put("tsize", Long.toString(size));
+					if (!acknowledgeOptions(trrp, accepted))
+					{
+						return;
+					}
 				}
 
 				byte[] temp = new byte[TFTPDataPacket.MAX_DATA_LENGTH];
@@ -394,6 +1246,7 @@ public class TFTPBaseServer implements Runnable
 				int readLength = TFTPDataPacket.MAX_DATA_LENGTH;
 
 				TFTPDataPacket lastSentData = null;
+				boolean aborted = false;
 
 				// We are reading a file, so when we read less than the
 				// requested bytes, we know that we are at the end of the file.
@@ -402,14 +1255,29 @@ public class TFTPBaseServer implements Runnable
 				{
 					if (sendNext)
 					{
+						BlockReadEvent readEvent = new BlockReadEvent();
+						readEvent.begin();
 						readLength = is.read(temp);
 						if (readLength == -1)
 						{
 							readLength = 0;
 						}
+						readEvent.end();
+						if (readEvent.shouldCommit())
+						{
+							readEvent.file = trrp.getFilename();
+							readEvent.block = block;
+							readEvent.bytes = readLength;
+							readEvent.commit();
+						}
 
 						lastSentData = new TFTPDataPacket(trrp.getAddress(), trrp.getPort(), block, temp, 0, readLength);
+						pace(readLength);
+						block_ = block;
 						transferTftp_.bufferedSend(lastSentData);
+						metrics_.dataSent(readLength);
+						bytes_ += readLength;
+						blocks_++;
 					}
 
 					answer = null;
@@ -423,14 +1291,16 @@ public class TFTPBaseServer implements Runnable
 						{
 							// The answer that we got didn't come from the expected source, fire back an error, and continue listening.
 							log.debug("TFTP Server ignoring message from unexpected source.");
-							transferTftp_.bufferedSend(new TFTPErrorPacket(answer.getAddress(), answer.getPort(), TFTPErrorPacket.UNKNOWN_TID, "Unexpected Host or Port"));
+							sendError(answer.getAddress(), answer.getPort(), TFTPErrorPacket.UNKNOWN_TID, "Unexpected Host or Port");
 						}
 						try
 						{
 							answer = transferTftp_.bufferedReceive();
+							metrics_.packetReceived();
 						}
 						catch (SocketTimeoutException e)
 						{
+							timedOut(trrp, block, timeoutCount + 1, timeoutCount >= maxTimeoutRetries_);
 							if (timeoutCount >= maxTimeoutRetries_)
 							{
 								throw e;
@@ -438,6 +1308,8 @@ public class TFTPBaseServer implements Runnable
 							//didn't get an ack for this data.  need to resend it.
 							timeoutCount++;
 							transferTftp_.bufferedSend(lastSentData);
+							metrics_.retransmitted();
+							retransmits_++;
                         }
 					}
 
@@ -447,6 +1319,7 @@ public class TFTPBaseServer implements Runnable
 						{
 							log.error("Unexpected response from tftp client during transfer (" + answer + ").  Transfer aborted.");
 						}
+						aborted = true;
 						break;
 					}
 					else
@@ -476,6 +1349,7 @@ public class TFTPBaseServer implements Runnable
 						}
 					}
 				}
+				completed_ = !aborted && !shutdown_;
 			}
 			finally
 			{
@@ -499,41 +1373,76 @@ public class TFTPBaseServer implements Runnable
 		private void handleWrite(TFTPWriteRequestPacket twrp) throws IOException, TFTPPacketException
 		{
 			OutputStream bos = null;
+			IUploadStream upload = null;
+			boolean stored = false;
 			try
 			{
 				if (!fileNameMapper_.canWrite())
 				{
-					transferTftp_.bufferedSend(new TFTPErrorPacket(twrp.getAddress(), twrp.getPort(), TFTPErrorPacket.ILLEGAL_OPERATION, "Write not allowed by server."));
+					sendError(twrp.getAddress(), twrp.getPort(), TFTPErrorPacket.ILLEGAL_OPERATION, "Write not allowed by server.");
 					return;
 				}
 
 				int lastBlock = 0;
 				String fileName = twrp.getFilename();
 
+				MapperOpenEvent openEvent = new MapperOpenEvent();
+				openEvent.begin();
+				long openStarted = System.nanoTime();
 				try
 				{
-                    OutputStream outputStream = fileNameMapper_.openOutputStream(fileName);
+                    OutputStream outputStream = awaitOpen(fileNameMapper_.openOutputStream(getContext(twrp)));
+					mapperOpened(openEvent, fileName, true, openStarted, outputStream != null);
 
 					if (outputStream == null)
 					{
-						transferTftp_.bufferedSend(new TFTPErrorPacket(twrp.getAddress(), twrp.getPort(), TFTPErrorPacket.FILE_EXISTS, "File already exists"));
+						sendError(twrp.getAddress(), twrp.getPort(), TFTPErrorPacket.FILE_EXISTS, "File already exists");
 						return;
 					}
+					if (writeBehindBuffers_ > 0)
+					{
+						outputStream = new WriteBehindOutputStream(outputStream, writeBehindBuffers_, fileName);
+					}
+					if (outputStream instanceof IUploadStream)
+					{
+						upload = (IUploadStream) outputStream;
+					}
 					bos = new BufferedOutputStream(outputStream);
 
 					if (twrp.getMode() == TFTP.NETASCII_MODE)
 					{
-						bos = new FromNetASCIIOutputStream(bos);
+						bos = new NetAsciiOutputStream(bos);
 					}
 				}
+				catch (InterruptedIOException e)
+				{
+					mapperOpened(openEvent, fileName, true, openStarted, false);
+					throw e;
+				}
 				catch (Exception e)
 				{
-					transferTftp_.bufferedSend(new TFTPErrorPacket(twrp.getAddress(), twrp.getPort(), TFTPErrorPacket.UNDEFINED, e.getMessage()));
+					mapperOpened(openEvent, fileName, true, openStarted, false);
+					sendError(twrp.getAddress(), twrp.getPort(), TFTPErrorPacket.UNDEFINED, e.getMessage());
 					return;
 				}
 
+				long announcedSize = options_.getLong("tsize", 0);
+				if (upload != null && announcedSize > 0)
+				{
+					try
+					{
+						upload.preallocate(announcedSize);
+					}
+					catch (IOException e)
+					{
+						sendError(twrp.getAddress(), twrp.getPort(), TFTPErrorPacket.OUT_OF_SPACE, e.getMessage());
+						return;
+					}
+				}
+
 				TFTPAckPacket lastSentAck = new TFTPAckPacket(twrp.getAddress(), twrp.getPort(), 0);
 				transferTftp_.bufferedSend(lastSentAck);
+				metrics_.packetSent();
 
 				while (true)
 				{
@@ -549,21 +1458,25 @@ public class TFTPBaseServer implements Runnable
 						{
 							// The data that we got didn't come from the expected source, fire back an error, and continue listening.
 							log.debug("TFTP Server ignoring message from unexpected source.");
-							transferTftp_.bufferedSend(new TFTPErrorPacket(dataPacket.getAddress(), dataPacket.getPort(), TFTPErrorPacket.UNKNOWN_TID, "Unexpected Host or Port"));
+							sendError(dataPacket.getAddress(), dataPacket.getPort(), TFTPErrorPacket.UNKNOWN_TID, "Unexpected Host or Port");
 						}
 
 						try
 						{
 							dataPacket = transferTftp_.bufferedReceive();
+							metrics_.packetReceived();
 						}
 						catch (SocketTimeoutException e)
 						{
+							timedOut(twrp, lastBlock, timeoutCount + 1, timeoutCount >= maxTimeoutRetries_);
 							if (timeoutCount >= maxTimeoutRetries_)
 							{
 								throw e;
 							}
 							// It didn't get our ack.  Resend it.
 							transferTftp_.bufferedSend(lastSentAck);
+							metrics_.retransmitted();
+							retransmits_++;
 							timeoutCount++;
                         }
 					}
@@ -573,6 +1486,8 @@ public class TFTPBaseServer implements Runnable
 						//it must have missed our initial ack.  Send another.
 						lastSentAck = new TFTPAckPacket(twrp.getAddress(), twrp.getPort(), 0);
 						transferTftp_.bufferedSend(lastSentAck);
+						metrics_.retransmitted();
+						retransmits_++;
 					}
 					else if (dataPacket == null || !(dataPacket instanceof TFTPDataPacket))
 					{
@@ -593,22 +1508,40 @@ public class TFTPBaseServer implements Runnable
 						{
 							//it might resend a data block if it missed our ack - don't rewrite the block.
 							bos.write(data, dataOffset, dataLength);
+							metrics_.payloadReceived(dataLength);
+							bytes_ += dataLength;
+							blocks_++;
 							lastBlock = block;
 						}
 
 						lastSentAck = new TFTPAckPacket(twrp.getAddress(), twrp.getPort(), block);
+						pace(dataLength);
+						block_ = block;
+						if (dataLength < TFTPDataPacket.MAX_DATA_LENGTH)
+						{
+							//end of stream signal - The tranfer is complete. Only ack it once the file is safely stored.
+							try
+							{
+								bos.close();
+								stored = true;
+							}
+							catch (IOException e)
+							{
+								sendError(twrp.getAddress(), twrp.getPort(), TFTPErrorPacket.UNDEFINED, "Storing the file failed: " + e.getMessage());
+								throw e;
+							}
+						}
 						transferTftp_.bufferedSend(lastSentAck);
+						metrics_.packetSent();
 						if (dataLength < TFTPDataPacket.MAX_DATA_LENGTH)
 						{
-							//end of stream signal - The tranfer is complete.
-							bos.close();
-
 							//But my ack may be lost - so listen to see if I need to resend the ack.
 							for (int i = 0; i < maxTimeoutRetries_; i++)
 							{
 								try
 								{
 									dataPacket = transferTftp_.bufferedReceive();
+									metrics_.packetReceived();
 								}
 								catch (SocketTimeoutException e)
 								{
@@ -619,16 +1552,19 @@ public class TFTPBaseServer implements Runnable
 								if (dataPacket != null && (!dataPacket.getAddress().equals(twrp.getAddress()) || dataPacket.getPort() != twrp.getPort()))
 								{
 									//make sure it was from the right client...
-									transferTftp_.bufferedSend(new TFTPErrorPacket(dataPacket.getAddress(), dataPacket.getPort(), TFTPErrorPacket.UNKNOWN_TID, "Unexpected Host or Port"));
+									sendError(dataPacket.getAddress(), dataPacket.getPort(), TFTPErrorPacket.UNKNOWN_TID, "Unexpected Host or Port");
 								}
 								else
 								{
 									// This means they sent us the last datapacket again, must have missed our ack.  resend it.
 									transferTftp_.bufferedSend(lastSentAck);
+									metrics_.retransmitted();
+									retransmits_++;
 								}
 							}
 
 							//all done.
+							completed_ = true;
 							break;
 						}
 					}
@@ -636,7 +1572,12 @@ public class TFTPBaseServer implements Runnable
 			}
 			finally
 			{
-				if (bos != null)
+				if (upload != null && !stored)
+				{
+					// incomplete - the mapper must not publish what we got so far
+					upload.abort();
+				}
+				else if (bos != null && !stored)
 				{
 					bos.close();
 				}
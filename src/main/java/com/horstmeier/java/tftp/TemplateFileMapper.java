@@ -0,0 +1,257 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import com.horstmeier.java.tftp.interfaces.IRequestAwareFileMapper;
+import com.horstmeier.java.tftp.interfaces.RequestContext;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates files from templates, e.g. per-host PXE configurations that differ only by MAC or IP address.
+ *
+ * A template is registered for a regular expression that must match the whole requested file name. Templates
+ * refer to values with ${name}:
+ * <ul>
+ *     <li>${1}, ${2}, ... - groups captured by the expression, ${mac} for a named group (?&lt;mac&gt;...)</li>
+ *     <li>${filename} - the requested name</li>
+ *     <li>${client.ip}, ${client.port} - the address of the client</li>
+ *     <li>${client.ip.hex} - the IPv4 address as 8 upper case hex digits, as pxelinux uses it</li>
+ * </ul>
+ * A '$' not followed by '{' is copied as is.
+ *
+ * Rendered files are kept in a {@link ContentCache} keyed by the template and the values used, so the sizes are
+ * known up front (for tsize) and a file is rendered once per distinct set of values. Template files are compiled
+ * again when they change. Names no template matches are passed to the fallback mapper.
+ */
+public class TemplateFileMapper implements IRequestAwareFileMapper {
+
+    private final IFileNameMapper fallback_;
+    private final List<Route> routes_ = new CopyOnWriteArrayList<Route>();
+    private final ContentCache cache_ = new ContentCache(16 * 1024 * 1024, 256 * 1024);
+
+    /**
+     * @param fallback Serves the names no template matches, may be null
+     */
+    public TemplateFileMapper(IFileNameMapper fallback) {
+        fallback_ = fallback;
+    }
+
+    /**
+     * Render names matching the expression from a template file. The file is read again when it changes.
+     */
+    public synchronized void addTemplate(String pattern, File template) {
+        routes_.add(new Route(routes_.size(), Pattern.compile(pattern), template, null));
+    }
+
+    /**
+     * Render names matching the expression from a template given as text.
+     */
+    public synchronized void addTemplate(String pattern, String template) {
+        routes_.add(new Route(routes_.size(), Pattern.compile(pattern), null, Template.compile(template)));
+    }
+
+    /**
+     * The cache of rendered files. Default 16 MB, files up to 256 KB.
+     */
+    public ContentCache getCache() {
+        return cache_;
+    }
+
+    @Override
+    public InputStream openInputStream(String fileName) throws IOException {
+        return openInputStream(fileName, null);
+    }
+
+    @Override
+    public InputStream openInputStream(String fileName, RequestContext context) throws IOException {
+        for (Route route : routes_) {
+            Matcher matcher = route.pattern_.matcher(fileName);
+            if (matcher.matches()) {
+                return route.render(fileName, matcher, context);
+            }
+        }
+        if (fallback_ == null) {
+            throw new FileNotFoundException(fileName);
+        }
+        if (context != null && fallback_ instanceof IRequestAwareFileMapper) {
+            return ((IRequestAwareFileMapper) fallback_).openInputStream(fileName, context);
+        }
+        return fallback_.openInputStream(fileName);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String fileName) throws IOException {
+        return openOutputStream(fileName, null);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String fileName, RequestContext context) throws IOException {
+        if (fallback_ == null) {
+            throw new IOException("Writing is not allowed");
+        }
+        if (context != null && fallback_ instanceof IRequestAwareFileMapper) {
+            return ((IRequestAwareFileMapper) fallback_).openOutputStream(fileName, context);
+        }
+        return fallback_.openOutputStream(fileName);
+    }
+
+    @Override
+    public boolean canRead() {
+        return true;
+    }
+
+    @Override
+    public boolean canWrite() {
+        return fallback_ != null && fallback_.canWrite();
+    }
+
+    private class Route {
+        private final int id_;
+        private final Pattern pattern_;
+        private final File file_;
+        private Template template_;
+        private String version_;
+
+        Route(int id, Pattern pattern, File file, Template template) {
+            id_ = id;
+            pattern_ = pattern;
+            file_ = file;
+            template_ = template;
+            version_ = "";
+        }
+
+        /*
+         * The compiled template, compiled again if the file changed. Sets version_ along with it.
+         */
+        private synchronized Template current() throws IOException {
+            if (file_ == null) {
+                return template_;
+            }
+            BasicFileAttributes attributes = Files.readAttributes(file_.toPath(), BasicFileAttributes.class);
+            String version = attributes.lastModifiedTime().toMillis() + ":" + attributes.size();
+            if (template_ == null || !version.equals(version_)) {
+                template_ = Template.compile(new String(Files.readAllBytes(file_.toPath()), StandardCharsets.UTF_8));
+                version_ = version;
+            }
+            return template_;
+        }
+
+        InputStream render(String fileName, Matcher matcher, RequestContext context) throws IOException {
+            Template template;
+            String version;
+            synchronized (this) {
+                template = current();
+                version = version_;
+            }
+            String[] values = new String[template.variables_.size()];
+            StringBuilder key = new StringBuilder(64).append("template\0").append(id_).append('\0').append(version);
+            for (int i = 0; i < values.length; i++) {
+                values[i] = resolve(template.variables_.get(i), fileName, matcher, context);
+                key.append('\0').append(values[i]);
+            }
+            String cacheKey = key.toString();
+            byte[] content = cache_.get(cacheKey);
+            if (content == null) {
+                content = template.render(values).getBytes(StandardCharsets.UTF_8);
+                cache_.put(cacheKey, content);
+            }
+            return new ContentInputStream(content, cacheKey);
+        }
+    }
+
+    private static String resolve(String variable, String fileName, Matcher matcher, RequestContext context) throws IOException {
+        if (variable.equals("filename")) {
+            return fileName;
+        }
+        if (variable.startsWith("client.")) {
+            if (context == null) {
+                throw new IOException("Template variable ${" + variable + "} needs the request context.");
+            }
+            InetAddress address = context.getClient().getAddress();
+            if (variable.equals("client.ip")) {
+                return address.getHostAddress();
+            }
+            if (variable.equals("client.port")) {
+                return Integer.toString(context.getClient().getPort());
+            }
+            if (variable.equals("client.ip.hex")) {
+                StringBuilder sb = new StringBuilder(8);
+                for (byte b : address.getAddress()) {
+                    sb.append(String.format(Locale.ROOT, "%02X", b & 0xff));
+                }
+                return sb.toString();
+            }
+            throw new IOException("Unknown template variable ${" + variable + "}.");
+        }
+        try {
+            String value = Character.isDigit(variable.charAt(0)) ? matcher.group(Integer.parseInt(variable)) : matcher.group(variable);
+            return value == null ? "" : value;
+        } catch (RuntimeException e) {
+            throw new IOException("Unknown template variable ${" + variable + "}.");
+        }
+    }
+
+    /*
+     * A template split into literal text and variables.
+     */
+    private static class Template {
+        private final List<String> literals_;
+        private final List<String> variables_;
+
+        private Template(List<String> literals, List<String> variables) {
+            literals_ = literals;
+            variables_ = variables;
+        }
+
+        /*
+         * There is always one literal more than variables: literal, variable, literal, ..., literal.
+         */
+        static Template compile(String text) {
+            List<String> literals = new ArrayList<String>();
+            List<String> variables = new ArrayList<String>();
+            int pos = 0;
+            int literalStart = 0;
+            while ((pos = text.indexOf("${", pos)) >= 0) {
+                int end = text.indexOf('}', pos + 2);
+                if (end < 0) {
+                    break;
+                }
+                literals.add(text.substring(literalStart, pos));
+                variables.add(text.substring(pos + 2, end).trim());
+                pos = end + 1;
+                literalStart = pos;
+            }
+            literals.add(text.substring(literalStart));
+            return new Template(literals, variables);
+        }
+
+        String render(String[] values) {
+            int length = 0;
+            for (String literal : literals_) {
+                length += literal.length();
+            }
+            for (String value : values) {
+                length += value.length();
+            }
+            StringBuilder sb = new StringBuilder(length);
+            for (int i = 0; i < values.length; i++) {
+                sb.append(literals_.get(i)).append(values[i]);
+            }
+            return sb.append(literals_.get(values.length)).toString();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.horstmeier.java.tftp;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A snapshot of a running transfer, as returned by {@link TFTPBaseServer#getActiveTransfers()}.
+ */
+public class TransferInfo {
+
+    public enum Direction {READ, WRITE}
+
+    private final long id_;
+    private final InetSocketAddress client_;
+    private final String fileName_;
+    private final Direction direction_;
+    private final int block_;
+    private final long bytes_;
+    private final long ageMillis_;
+    private final long rateLimit_;
+
+    public TransferInfo(long id, InetSocketAddress client, String fileName, Direction direction, int block,
+                        long bytes, long ageMillis, long rateLimit) {
+        id_ = id;
+        client_ = client;
+        fileName_ = fileName;
+        direction_ = direction;
+        block_ = block;
+        bytes_ = bytes;
+        ageMillis_ = ageMillis;
+        rateLimit_ = rateLimit;
+    }
+
+    /**
+     * The id used to abort or throttle the transfer.
+     */
+    public long getId() {
+        return id_;
+    }
+
+    public InetSocketAddress getClient() {
+        return client_;
+    }
+
+    public String getFileName() {
+        return fileName_;
+    }
+
+    public Direction getDirection() {
+        return direction_;
+    }
+
+    /**
+     * The current block number. Block numbers wrap at 65535.
+     */
+    public int getBlock() {
+        return block_;
+    }
+
+    /**
+     * Payload bytes transferred so far.
+     */
+    public long getBytes() {
+        return bytes_;
+    }
+
+    /**
+     * Milliseconds since the transfer was started.
+     */
+    public long getAgeMillis() {
+        return ageMillis_;
+    }
+
+    /**
+     * Average rate since the start of the transfer in bytes per second.
+     */
+    public long getBytesPerSecond() {
+        return ageMillis_ <= 0 ? 0 : bytes_ * 1000 / ageMillis_;
+    }
+
+    /**
+     * The rate limit set through {@link TFTPBaseServer#throttleTransfer(long, long)}, 0 if unlimited.
+     */
+    public long getRateLimit() {
+        return rateLimit_;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id_ + " " + direction_ + " " + fileName_ + " client=" + client_.getAddress().getHostAddress()
+                + ":" + client_.getPort() + " block=" + block_ + " bytes=" + bytes_ + " rate=" + getBytesPerSecond()
+                + "B/s age=" + ageMillis_ + "ms" + (rateLimit_ > 0 ? " limit=" + rateLimit_ + "B/s" : "");
+    }
+}
@@ -0,0 +1,59 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IContentInfo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A FileInputStream that knows the size of the file and identifies its content by path, file key, modification
+ * time and size.
+ *
+ * The attributes are read before the file is opened. If the file is replaced in between, the stream returns the new
+ * content under the old version - that version is never seen again, so the mix-up can't be served to anyone.
+ *
+ * The file must be given by its canonical path. A symlink is refused, so a cached path whose file was replaced by
+ * a link is not followed out of the server root.
+ */
+class VersionedFileInputStream extends FileInputStream implements IContentInfo {
+
+    private final long length_;
+    private final String version_;
+
+    static VersionedFileInputStream open(File file) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            // let FileInputStream report the problem as it always did
+            return new VersionedFileInputStream(file, -1, null);
+        }
+        if (attributes.isSymbolicLink()) {
+            throw new IOException("Cannot access files outside of tftp server root.");
+        }
+        String version = file.getPath() + '\0' + attributes.fileKey() + '\0'
+                + attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) + '\0' + attributes.size();
+        return new VersionedFileInputStream(file, attributes.size(), version);
+    }
+
+    private VersionedFileInputStream(File file, long length, String version) throws IOException {
+        super(file);
+        length_ = length;
+        version_ = version;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length_;
+    }
+
+    @Override
+    public String getContentVersion() {
+        return version_;
+    }
+}
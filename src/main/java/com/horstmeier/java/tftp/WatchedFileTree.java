@@ -0,0 +1,193 @@
+package com.horstmeier.java.tftp;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link FileTreeIndex} of the read directory that is kept current, so requests for names that don't exist (e.g.
+ * the per-MAC and per-IP config names a PXE client tries first) are answered without touching the file system.
+ *
+ * Every directory is watched from before it is scanned. A directory is known until an entry is created or deleted
+ * in it; from then on, and for directories that could not be watched, names are looked up on the file system again.
+ * Watch events arrive late (see {@link ResolvedPathCache}), so a file added by other means may be reported missing
+ * for that long. Uploads through the mapper call {@link #forget(Path)} before they create their file.
+ *
+ * Sizes and times of the index are not used for requests: files modified in place don't change their directory, so
+ * they may be stale. The length of a served file is taken from the opened file.
+ */
+class WatchedFileTree implements Closeable {
+
+    private static final Logger log = Logger.getLogger(WatchedFileTree.class);
+
+    private final Path root_;
+    private final WatchService watchService_;
+    private final ConcurrentHashMap<WatchKey, String> keys_ = new ConcurrentHashMap<WatchKey, String>();
+    private final Set<String> unwatched_ = ConcurrentHashMap.newKeySet();
+    private final Set<String> known_ = ConcurrentHashMap.newKeySet();
+    private FileTreeIndex index_;
+
+    private WatchedFileTree(Path root) throws IOException {
+        root_ = root;
+        watchService_ = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Scan and watch the tree below root.
+     * @param previous An earlier index of the same root whose unchanged directories are reused, may be null
+     * @param maxDirectories The number of directories watched at most, the others are never known
+     */
+    static WatchedFileTree scan(Path root, FileTreeIndex previous, ForkJoinPool pool, final int maxDirectories) throws IOException {
+        final WatchedFileTree tree = new WatchedFileTree(root);
+        final AtomicInteger watched = new AtomicInteger();
+        try {
+            tree.index_ = FileTreeIndex.scan(root, previous, pool, new FileTreeIndex.ScanListener() {
+                public void scanning(Path directory, String name) {
+                    if (watched.incrementAndGet() > maxDirectories) {
+                        tree.unwatched_.add(name);
+                        return;
+                    }
+                    try {
+                        WatchKey key = directory.register(tree.watchService_, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE);
+                        tree.keys_.put(key, name);
+                    } catch (IOException e) {
+                        tree.unwatched_.add(name);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            tree.close();
+            throw e;
+        }
+        if (tree.isCaseSensitive()) {
+            for (String name : tree.index_.getDirectoryNames()) {
+                if (!tree.unwatched_.contains(name)) {
+                    tree.known_.add(name);
+                }
+            }
+        } else {
+            log.info("File names in " + root + " are not case sensitive, requests are not answered from the index.");
+        }
+        // changes made during the scan are queued and applied now
+        Thread watcher = new Thread(tree.new Watcher(), "TFTPIndexWatcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        return tree;
+    }
+
+    FileTreeIndex getIndex() {
+        return index_;
+    }
+
+    /**
+     * True if the canonical path is known not to exist.
+     */
+    boolean isMissing(Path file) {
+        if (!file.startsWith(root_) || file.equals(root_)) {
+            return false;
+        }
+        String name = root_.relativize(file).toString().replace(File.separatorChar, '/');
+        int slash = name.lastIndexOf('/');
+        return known_.contains(slash < 0 ? "" : name.substring(0, slash))
+                && index_.getFile(name) == null && !index_.isDirectory(name);
+    }
+
+    /**
+     * Look up names in the directory on the file system from now on.
+     */
+    void forget(Path directory) {
+        if (directory.startsWith(root_)) {
+            known_.remove(root_.relativize(directory).toString().replace(File.separatorChar, '/'));
+        }
+    }
+
+    int getKnownDirectoryCount() {
+        return known_.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        known_.clear();
+        watchService_.close();
+    }
+
+    /*
+     * An entry that was created or deleted may be a directory, everything below it is unknown then.
+     */
+    private void forgetTree(String name) {
+        if (name.isEmpty()) {
+            known_.clear();
+            return;
+        }
+        known_.remove(name);
+        String prefix = name + "/";
+        for (Iterator<String> it = known_.iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /*
+     * A file name whose upper case variant can be opened and is not indexed shows a case insensitive file system.
+     * Names there may be requested in any case, the index would report them missing. Without a name to probe the
+     * file system is taken as case insensitive.
+     */
+    private boolean isCaseSensitive() {
+        for (String name : index_.getNames()) {
+            String upper = name.toUpperCase(Locale.ROOT);
+            if (!upper.equals(name) && index_.getFile(upper) == null) {
+                return !Files.exists(root_.resolve(upper), LinkOption.NOFOLLOW_LINKS);
+            }
+        }
+        return false;
+    }
+
+    private class Watcher implements Runnable {
+        public void run() {
+            try {
+                while (true) {
+                    WatchKey key = watchService_.take();
+                    String name = keys_.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            known_.clear();
+                        } else if (name != null) {
+                            known_.remove(name);
+                            String child = event.context().toString();
+                            forgetTree(name.isEmpty() ? child : name + "/" + child);
+                        }
+                    }
+                    if (!key.reset()) {
+                        keys_.remove(key);
+                        if (name != null) {
+                            forgetTree(name);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // noop
+            } catch (ClosedWatchServiceException e) {
+                // the tree was closed
+            }
+        }
+    }
+}
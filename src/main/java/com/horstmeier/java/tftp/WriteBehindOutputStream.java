@@ -0,0 +1,257 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IUploadStream;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decouples receiving an upload from writing it to storage.
+ *
+ * Writes are copied into a bounded pool of buffers and return immediately, so the transfer can acknowledge the
+ * block without waiting for the disk. A writer thread drains the filled buffers in batches - with a gathering
+ * write if the target is a FileOutputStream. When all buffers are in use, write blocks until the writer catches
+ * up, which delays the ack and slows the client down.
+ *
+ * close() waits until everything is written and forces it to the device (or flushes the target if it is not a
+ * file), so a caller that sends the final ack after close() only confirms data that is durable. A target that is
+ * an {@link IUploadStream} makes its data durable itself when it is closed. Errors of the writer thread are
+ * reported by the next write or by close; the target is aborted then instead of closed.
+ *
+ * close() and abort() always wait for the writer thread before they touch the target. An interrupt does not cut
+ * the wait short, the interrupt flag is restored when they return.
+ */
+public class WriteBehindOutputStream extends OutputStream implements IUploadStream {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final OutputStream target_;
+    private final FileChannel channel_;
+    private final int maxBuffers_;
+    private final ArrayBlockingQueue<ByteBuffer> filled_;
+    private final ArrayBlockingQueue<ByteBuffer> free_;
+    private final Thread writer_;
+    private int allocated_ = 0;
+    private boolean closed_ = false;
+    private volatile IOException error_;
+
+    /**
+     * @param target The stream to write to. It is closed by this stream.
+     * @param maxBuffers Max number of 8 KB buffers waiting to be written. Min 1.
+     * @param name Used to name the writer thread
+     */
+    public WriteBehindOutputStream(OutputStream target, int maxBuffers, String name) {
+        if (maxBuffers < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        target_ = target;
+        channel_ = target instanceof FileOutputStream ? ((FileOutputStream) target).getChannel() : null;
+        maxBuffers_ = maxBuffers;
+        filled_ = new ArrayBlockingQueue<ByteBuffer>(maxBuffers + 1);
+        free_ = new ArrayBlockingQueue<ByteBuffer>(maxBuffers);
+
+        writer_ = new Thread(new Writer(), "TFTPWriteBehind-" + name);
+        writer_.setDaemon(true);
+        writer_.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed_) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            checkError();
+            ByteBuffer buffer = nextFreeBuffer();
+            int n = Math.min(len, buffer.capacity());
+            buffer.put(b, off, n);
+            buffer.flip();
+            filled_.add(buffer);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Does nothing - everything is written and made durable by close().
+     */
+    @Override
+    public void flush() throws IOException {
+        checkError();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed_) {
+            return;
+        }
+        closed_ = true;
+        boolean stored = false;
+        boolean interrupted = false;
+        try {
+            filled_.add(END);
+            interrupted = awaitWriter();
+            checkError();
+            if (channel_ != null && !(target_ instanceof IUploadStream)) {
+                channel_.force(true);
+            } else {
+                target_.flush();
+            }
+            target_.close();
+            stored = true;
+        } finally {
+            if (!stored) {
+                abortTarget();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Passed on to the target if it is an {@link IUploadStream}.
+     */
+    @Override
+    public void preallocate(long size) throws IOException {
+        if (target_ instanceof IUploadStream) {
+            ((IUploadStream) target_).preallocate(size);
+        }
+    }
+
+    /**
+     * Stop the writer thread, drop the buffers not written yet and abort the target (a target that is no
+     * {@link IUploadStream} is just closed).
+     */
+    @Override
+    public void abort() {
+        if (!closed_) {
+            closed_ = true;
+            error_ = new IOException("Upload aborted.");
+            filled_.add(END);
+            boolean interrupted = awaitWriter();
+            abortTarget();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*
+     * Wait for the writer thread to end, also if the caller is interrupted - the target must not be aborted or
+     * closed while the writer still writes to it. Returns true if the caller was interrupted meanwhile.
+     */
+    private boolean awaitWriter() {
+        boolean interrupted = Thread.interrupted();
+        while (true) {
+            try {
+                writer_.join();
+                return interrupted;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+    }
+
+    private void abortTarget() {
+        if (target_ instanceof IUploadStream) {
+            ((IUploadStream) target_).abort();
+        } else {
+            try {
+                target_.close();
+            } catch (IOException e) {
+                // noop
+            }
+        }
+    }
+
+    private void checkError() throws IOException {
+        IOException error = error_;
+        if (error != null) {
+            throw new IOException("Writing upload failed: " + error.getMessage(), error);
+        }
+    }
+
+    private ByteBuffer nextFreeBuffer() throws IOException {
+        ByteBuffer buffer = free_.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocated_ < maxBuffers_) {
+            allocated_++;
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        try {
+            // all buffers are waiting for the disk - block until the writer returns one
+            while (buffer == null) {
+                buffer = free_.poll(100, TimeUnit.MILLISECONDS);
+                checkError();
+            }
+            return buffer;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for the disk.");
+        }
+    }
+
+    private void writeBatch(List<ByteBuffer> batch) throws IOException {
+        if (channel_ != null) {
+            ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+            ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining()) {
+                channel_.write(buffers);
+            }
+        } else {
+            for (ByteBuffer buffer : batch) {
+                target_.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+        }
+    }
+
+    private class Writer implements Runnable {
+        public void run() {
+            List<ByteBuffer> batch = new ArrayList<ByteBuffer>(maxBuffers_ + 1);
+            boolean end = false;
+            while (!end) {
+                try {
+                    batch.add(filled_.take());
+                } catch (InterruptedException e) {
+                    error_ = new InterruptedIOException("Write behind thread interrupted.");
+                    return;
+                }
+                filled_.drainTo(batch);
+                if (batch.get(batch.size() - 1) == END) {
+                    end = true;
+                    batch.remove(batch.size() - 1);
+                }
+
+                // after an error the buffers are still recycled, so the receiving side never blocks forever
+                if (error_ == null && !batch.isEmpty()) {
+                    try {
+                        writeBatch(batch);
+                    } catch (IOException e) {
+                        error_ = e;
+                    }
+                }
+                for (ByteBuffer buffer : batch) {
+                    buffer.clear();
+                    free_.offer(buffer);
+                }
+                batch.clear();
+            }
+        }
+    }
+}
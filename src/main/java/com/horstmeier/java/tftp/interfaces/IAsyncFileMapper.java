@@ -0,0 +1,33 @@
+package com.horstmeier.java.tftp.interfaces;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Abstraction for the file system that opens files without blocking the caller, e.g. for mappers that fetch the
+ * content over the network. The server waits for the future in the transfer, other engines can chain on it.
+ *
+ * Failures are reported by completing the future exceptionally, a FileNotFoundException is sent to the client as
+ * "file not found". The server cancels the future if the transfer is aborted while the file is still being opened.
+ * Implementations should stop the work then, and must close a stream they complete a cancelled future with.
+ *
+ * Existing {@link IFileNameMapper} implementations can be used through
+ * {@link com.horstmeier.java.tftp.AsyncFileMapperAdapter}.
+ */
+public interface IAsyncFileMapper {
+
+    /**
+     * @param context The request; the file name is {@link RequestContext#getFileName()}
+     */
+    CompletableFuture<InputStream> openInputStream(RequestContext context);
+
+    /**
+     * @param context The request; the file name is {@link RequestContext#getFileName()}
+     * @return A future of the stream, completed with null if the file exists and must not be overwritten
+     */
+    CompletableFuture<OutputStream> openOutputStream(RequestContext context);
+
+    boolean canRead();
+    boolean canWrite();
+}
@@ -0,0 +1,23 @@
+package com.horstmeier.java.tftp.interfaces;
+
+/**
+ * Optional interface for streams returned by {@link IFileNameMapper#openInputStream(String)}.
+ *
+ * A stream that knows its length lets the server answer the tsize option. A stream that can identify its content
+ * lets the server cache the converted (e.g. NetASCII) form of the file and reuse it for later transfers.
+ */
+public interface IContentInfo {
+
+    /**
+     * The number of bytes the stream will return, -1 if unknown.
+     */
+    long getContentLength();
+
+    /**
+     * A string that identifies the content of the stream. It must change whenever the content changes, e.g. the
+     * path together with the modification time and the size, or a hash of the content. Streams with the same
+     * version must return the same bytes, whatever name they were opened with. Null if the content can't be
+     * identified - it is never cached then.
+     */
+    String getContentVersion();
+}
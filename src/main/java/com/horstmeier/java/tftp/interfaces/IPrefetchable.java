@@ -0,0 +1,16 @@
+package com.horstmeier.java.tftp.interfaces;
+
+/**
+ * Optional interface for file name mappers that can fetch a file before it is requested, e.g. from a slow origin.
+ *
+ * The server calls prefetch() for the files it expects a client to request next (see
+ * {@link com.horstmeier.java.tftp.BootSequencePredictor}). It is only a hint: the call must return quickly, do the
+ * work in the background and ignore failures. A prediction may be wrong, so prefetched data should expire.
+ */
+public interface IPrefetchable {
+    /**
+     * @return true if fetching the file was started, false if the hint was ignored, e.g. because the file is
+     * prefetched already or there is no room for it. Only started prefetches are counted.
+     */
+    boolean prefetch(String fileName);
+}
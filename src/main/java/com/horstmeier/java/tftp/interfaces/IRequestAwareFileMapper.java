@@ -0,0 +1,14 @@
+package com.horstmeier.java.tftp.interfaces;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A file name mapper that gets to know who is asking. The server calls the methods with a {@link RequestContext}
+ * instead of the plain ones, so the content can depend on the client, e.g. per-host boot configurations.
+ */
+public interface IRequestAwareFileMapper extends IFileNameMapper {
+    InputStream openInputStream(String fileName, RequestContext context) throws IOException;
+    OutputStream openOutputStream(String fileName, RequestContext context) throws IOException;
+}
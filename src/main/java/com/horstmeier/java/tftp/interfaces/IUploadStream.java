@@ -0,0 +1,24 @@
+package com.horstmeier.java.tftp.interfaces;
+
+import java.io.IOException;
+
+/**
+ * Optional interface for streams returned by {@link IFileNameMapper#openOutputStream(String)}.
+ *
+ * The server calls close() only when the upload is complete, so the stream may publish the file then. A failed or
+ * aborted upload is ended with abort() instead and must not become visible.
+ */
+public interface IUploadStream {
+
+    /**
+     * Called before the first block is written if the client announced the size of the file (tsize option).
+     * @param size The announced size in bytes
+     * @throws IOException If there is not enough space for the file. The upload is refused then.
+     */
+    void preallocate(long size) throws IOException;
+
+    /**
+     * Discard everything written so far and release the resources. Does nothing after a successful close().
+     */
+    void abort();
+}
@@ -0,0 +1,18 @@
+package com.horstmeier.java.tftp.interfaces;
+
+import java.io.IOException;
+
+/**
+ * Optional interface for file name mappers that can prepare themselves before the server accepts requests, e.g. by
+ * indexing the served files and reading hot files into memory.
+ *
+ * The server calls warmUp() once before it starts listening, or before it takes over the socket from its
+ * predecessor. Requests are not served until it returns.
+ */
+public interface IWarmable {
+
+    /**
+     * @throws IOException If warming up failed. The server logs it and starts anyway.
+     */
+    void warmUp() throws IOException;
+}
@@ -0,0 +1,69 @@
+package com.horstmeier.java.tftp.interfaces;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Describes the request a file is opened for: who asked for which file, in which mode and with which options.
+ */
+public class RequestContext {
+
+    private final long transferId_;
+    private final InetSocketAddress client_;
+    private final String fileName_;
+    private final String mode_;
+    private final boolean read_;
+    private final Map<String, String> options_;
+
+    /**
+     * @param transferId The id of the transfer, as used by the server's management API
+     * @param client Address and port of the client
+     * @param fileName The file name as sent by the client
+     * @param mode The transfer mode, "netascii" or "octet"
+     * @param read True for a read request, false for a write request
+     * @param options The options (RFC 2347) of the request, names in lower case
+     */
+    public RequestContext(long transferId, InetSocketAddress client, String fileName, String mode, boolean read,
+                          Map<String, String> options) {
+        transferId_ = transferId;
+        client_ = client;
+        fileName_ = fileName;
+        mode_ = mode;
+        read_ = read;
+        options_ = Collections.unmodifiableMap(options);
+    }
+
+    public long getTransferId() {
+        return transferId_;
+    }
+
+    public InetSocketAddress getClient() {
+        return client_;
+    }
+
+    public String getFileName() {
+        return fileName_;
+    }
+
+    public String getMode() {
+        return mode_;
+    }
+
+    public boolean isRead() {
+        return read_;
+    }
+
+    /**
+     * The options of the request, names in lower case. Empty if there were none.
+     */
+    public Map<String, String> getOptions() {
+        return options_;
+    }
+
+    @Override
+    public String toString() {
+        return (read_ ? "RRQ " : "WRQ ") + fileName_ + " (" + mode_ + ") from " + client_.getAddress().getHostAddress()
+                + ":" + client_.getPort();
+    }
+}
@@ -0,0 +1,31 @@
+package com.horstmeier.java.tftp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event for reading a single block from the mapper stream. Only reads that take longer than
+ * the threshold (10 ms by default) are recorded, so normal reads from the page cache cost nothing.
+ */
+@Name("com.horstmeier.tftp.BlockRead")
+@Label("TFTP Block Read")
+@Category({"TFTP"})
+@Description("A slow read of the next data block from the mapper stream")
+@Threshold("10 ms")
+public class BlockReadEvent extends Event {
+
+    @Label("File")
+    public String file;
+
+    @Label("Block")
+    public int block;
+
+    @Label("Bytes")
+    @DataAmount
+    public int bytes;
+}
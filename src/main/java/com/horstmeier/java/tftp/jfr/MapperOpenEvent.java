@@ -0,0 +1,26 @@
+package com.horstmeier.java.tftp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for the time the file name mapper needs to open a stream.
+ */
+@Name("com.horstmeier.tftp.MapperOpen")
+@Label("TFTP Mapper Open")
+@Category({"TFTP"})
+@Description("Opening a stream through the IFileNameMapper")
+public class MapperOpenEvent extends Event {
+
+    @Label("File")
+    public String file;
+
+    @Label("Write")
+    public boolean write;
+
+    @Label("Success")
+    public boolean success;
+}
@@ -0,0 +1,38 @@
+package com.horstmeier.java.tftp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for a receive timeout during a transfer, after which the last packet is sent again
+ * or the transfer is given up.
+ */
+@Name("com.horstmeier.tftp.RetransmitTimeout")
+@Label("TFTP Retransmit Timeout")
+@Category({"TFTP"})
+@Description("The client did not answer within the socket timeout")
+public class RetransmitTimeoutEvent extends Event {
+
+    @Label("File")
+    public String file;
+
+    @Label("Client")
+    public String client;
+
+    @Label("Block")
+    public int block;
+
+    @Label("Attempt")
+    public int attempt;
+
+    @Label("Timeout")
+    @Timespan(Timespan.MILLISECONDS)
+    public long timeout;
+
+    @Label("Given Up")
+    public boolean givenUp;
+}
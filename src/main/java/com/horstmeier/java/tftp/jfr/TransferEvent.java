@@ -0,0 +1,41 @@
+package com.horstmeier.java.tftp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event covering a complete read or write transfer, from the request to the last packet.
+ */
+@Name("com.horstmeier.tftp.Transfer")
+@Label("TFTP Transfer")
+@Category({"TFTP"})
+@Description("A read or write transfer handled by the TFTP server")
+public class TransferEvent extends Event {
+
+    @Label("File")
+    public String file;
+
+    @Label("Client")
+    public String client;
+
+    @Label("Direction")
+    @Description("read or write")
+    public String direction;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Blocks")
+    public long blocks;
+
+    @Label("Retransmits")
+    public long retransmits;
+
+    @Label("Success")
+    public boolean success;
+}
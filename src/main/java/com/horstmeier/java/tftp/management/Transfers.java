@@ -0,0 +1,43 @@
+package com.horstmeier.java.tftp.management;
+
+import com.horstmeier.java.tftp.TFTPBaseServer;
+import com.horstmeier.java.tftp.TransferInfo;
+
+import java.util.List;
+
+/**
+ * Exposes the transfer control of a {@link TFTPBaseServer} as a JMX MBean.
+ */
+public class Transfers implements TransfersMBean {
+
+    private final TFTPBaseServer server_;
+
+    public Transfers(TFTPBaseServer server) {
+        server_ = server;
+    }
+
+    @Override
+    public int getActiveTransferCount() {
+        return server_.getActiveTransfers().size();
+    }
+
+    @Override
+    public String[] getActiveTransfers() {
+        List<TransferInfo> transfers = server_.getActiveTransfers();
+        String[] result = new String[transfers.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = transfers.get(i).toString();
+        }
+        return result;
+    }
+
+    @Override
+    public boolean abortTransfer(long id) {
+        return server_.abortTransfer(id);
+    }
+
+    @Override
+    public boolean throttleTransfer(long id, long bytesPerSecond) {
+        return server_.throttleTransfer(id, bytesPerSecond);
+    }
+}
@@ -0,0 +1,24 @@
+package com.horstmeier.java.tftp.management;
+
+/**
+ * JMX view of the transfers running in a TFTP server.
+ */
+public interface TransfersMBean {
+    int getActiveTransferCount();
+
+    /**
+     * One line per running transfer with id, direction, file, client, block, bytes, rate and age.
+     */
+    String[] getActiveTransfers();
+
+    /**
+     * Abort the transfer with the given id. Returns false if no such transfer is running.
+     */
+    boolean abortTransfer(long id);
+
+    /**
+     * Limit the transfer with the given id to bytesPerSecond, 0 removes the limit. Returns false if no such
+     * transfer is running.
+     */
+    boolean throttleTransfer(long id, long bytesPerSecond);
+}
@@ -0,0 +1,349 @@
+package com.horstmeier.java.tftp.metrics;
+
+import com.horstmeier.java.tftp.AdmissionController;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms describing the work done by a TFTP server.
+ *
+ * All counters are LongAdders, so the transfer threads only touch their own cell when they count packets and
+ * bytes. Reading a value sums the cells and is meant for monitoring, not for the data path. The metrics are
+ * exported through JMX (see {@link TFTPMetricsMBean}) and in the Prometheus text format.
+ */
+public class TFTPMetrics implements TFTPMetricsMBean {
+
+    private static final String[] ERROR_NAMES = {
+            "undefined", "file_not_found", "access_violation", "out_of_space", "illegal_operation",
+            "unknown_tid", "file_exists", "no_such_user", "option_refused"
+    };
+
+    private final AdmissionController admission_;
+
+    private final LongAdder activeTransfers_ = new LongAdder();
+    private final LongAdder readRequests_ = new LongAdder();
+    private final LongAdder writeRequests_ = new LongAdder();
+    private final LongAdder transfersCompleted_ = new LongAdder();
+    private final LongAdder transfersFailed_ = new LongAdder();
+    private final LongAdder bytesSent_ = new LongAdder();
+    private final LongAdder bytesReceived_ = new LongAdder();
+    private final LongAdder packetsSent_ = new LongAdder();
+    private final LongAdder packetsReceived_ = new LongAdder();
+    private final LongAdder retransmissions_ = new LongAdder();
+    private final LongAdder timeouts_ = new LongAdder();
+    private final LongAdder unknownTid_ = new LongAdder();
+    private final LongAdder mapperOpenFailures_ = new LongAdder();
+    private final LongAdder prefetches_ = new LongAdder();
+    private final LongAdder prefetchHits_ = new LongAdder();
+    private final LongAdder[] errorsSent_ = new LongAdder[ERROR_NAMES.length];
+
+    private final LatencyHistogram transferDuration_ = new LatencyHistogram();
+    private final LatencyHistogram mapperOpenLatency_ = new LatencyHistogram();
+
+    /**
+     * @param admission The admission controller whose drop counters are exported with these metrics, may be null
+     */
+    public TFTPMetrics(AdmissionController admission) {
+        admission_ = admission;
+        for (int i = 0; i < errorsSent_.length; i++) {
+            errorsSent_[i] = new LongAdder();
+        }
+    }
+
+    public void transferStarted(boolean read) {
+        activeTransfers_.increment();
+        if (read) {
+            readRequests_.increment();
+        } else {
+            writeRequests_.increment();
+        }
+    }
+
+    public void transferFinished(boolean success, long durationNanos) {
+        activeTransfers_.decrement();
+        if (success) {
+            transfersCompleted_.increment();
+        } else {
+            transfersFailed_.increment();
+        }
+        transferDuration_.record(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+    }
+
+    public void dataSent(int bytes) {
+        packetsSent_.increment();
+        bytesSent_.add(bytes);
+    }
+
+    public void payloadReceived(int bytes) {
+        bytesReceived_.add(bytes);
+    }
+
+    public void packetSent() {
+        packetsSent_.increment();
+    }
+
+    public void packetReceived() {
+        packetsReceived_.increment();
+    }
+
+    /**
+     * A packet was sent again because the client did not answer in time or asked for it again.
+     */
+    public void retransmitted() {
+        retransmissions_.increment();
+        packetsSent_.increment();
+    }
+
+    /**
+     * A transfer waited in vain for the next packet of the client.
+     */
+    public void timedOut() {
+        timeouts_.increment();
+    }
+
+    public void errorSent(int errorCode) {
+        packetsSent_.increment();
+        int index = errorCode >= 0 && errorCode < errorsSent_.length ? errorCode : 0;
+        errorsSent_[index].increment();
+        if (errorCode == 5) {
+            unknownTid_.increment();
+        }
+    }
+
+    public void mapperOpened(long durationNanos, boolean success) {
+        mapperOpenLatency_.record(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+        if (!success) {
+            mapperOpenFailures_.increment();
+        }
+    }
+
+    /**
+     * A file was prefetched because the client is expected to request it.
+     */
+    public void prefetched() {
+        prefetches_.increment();
+    }
+
+    /**
+     * A client requested a file that was prefetched for it.
+     */
+    public void prefetchHit() {
+        prefetchHits_.increment();
+    }
+
+    public LatencyHistogram getTransferDuration() {
+        return transferDuration_;
+    }
+
+    public LatencyHistogram getMapperOpenLatency() {
+        return mapperOpenLatency_;
+    }
+
+    /**
+     * Error packets sent with the given code, 0 for codes outside 0 - 8 (8 is the option error of RFC 2347).
+     */
+    public long getErrorPacketsSent(int errorCode) {
+        if (errorCode < 0 || errorCode >= errorsSent_.length) {
+            return 0;
+        }
+        return errorsSent_[errorCode].sum();
+    }
+
+    @Override
+    public long getActiveTransfers() {
+        return activeTransfers_.sum();
+    }
+
+    @Override
+    public long getReadRequests() {
+        return readRequests_.sum();
+    }
+
+    @Override
+    public long getWriteRequests() {
+        return writeRequests_.sum();
+    }
+
+    @Override
+    public long getTransfersCompleted() {
+        return transfersCompleted_.sum();
+    }
+
+    @Override
+    public long getTransfersFailed() {
+        return transfersFailed_.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent_.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived_.sum();
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent_.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived_.sum();
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return retransmissions_.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts_.sum();
+    }
+
+    @Override
+    public long getUnknownTidEvents() {
+        return unknownTid_.sum();
+    }
+
+    @Override
+    public long getErrorPacketsSent() {
+        long sum = 0;
+        for (LongAdder adder : errorsSent_) {
+            sum += adder.sum();
+        }
+        return sum;
+    }
+
+    @Override
+    public long getMapperOpenFailures() {
+        return mapperOpenFailures_.sum();
+    }
+
+    @Override
+    public long getDroppedRequests() {
+        if (admission_ == null) {
+            return 0;
+        }
+        long sum = 0;
+        for (AdmissionController.DropReason reason : AdmissionController.DropReason.values()) {
+            sum += admission_.getDropCount(reason);
+        }
+        return sum;
+    }
+
+    @Override
+    public long getPrefetches() {
+        return prefetches_.sum();
+    }
+
+    @Override
+    public long getPrefetchHits() {
+        return prefetchHits_.sum();
+    }
+
+    @Override
+    public double getPrefetchHitRate() {
+        long prefetches = prefetches_.sum();
+        return prefetches == 0 ? 0 : (double) prefetchHits_.sum() / prefetches;
+    }
+
+    @Override
+    public double getTransferDurationMeanMillis() {
+        return transferDuration_.getMean() / 1000.0;
+    }
+
+    @Override
+    public long getTransferDurationP99Millis() {
+        return transferDuration_.getValueAtQuantile(0.99) / 1000;
+    }
+
+    @Override
+    public long getMapperOpenP99Micros() {
+        return mapperOpenLatency_.getValueAtQuantile(0.99);
+    }
+
+    @Override
+    public String dumpPrometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        try {
+            writePrometheus(sb);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format.
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        gauge(out, "tftp_active_transfers", "Transfers currently running.", getActiveTransfers());
+        counter(out, "tftp_read_requests_total", "Read requests accepted.", getReadRequests());
+        counter(out, "tftp_write_requests_total", "Write requests accepted.", getWriteRequests());
+        counter(out, "tftp_transfers_completed_total", "Transfers finished successfully.", getTransfersCompleted());
+        counter(out, "tftp_transfers_failed_total", "Transfers aborted or rejected.", getTransfersFailed());
+        counter(out, "tftp_bytes_sent_total", "Payload bytes sent in data packets.", getBytesSent());
+        counter(out, "tftp_bytes_received_total", "Payload bytes received in data packets.", getBytesReceived());
+        counter(out, "tftp_packets_sent_total", "Packets sent by transfers.", getPacketsSent());
+        counter(out, "tftp_packets_received_total", "Packets received by transfers.", getPacketsReceived());
+        counter(out, "tftp_retransmissions_total", "Packets sent again after a timeout.", getRetransmissions());
+        counter(out, "tftp_timeouts_total", "Receive timeouts during transfers.", getTimeouts());
+        counter(out, "tftp_unknown_tid_total", "Packets received from an unexpected host or port.", getUnknownTidEvents());
+        counter(out, "tftp_mapper_open_failures_total", "Failed attempts to open a file through the mapper.", getMapperOpenFailures());
+        counter(out, "tftp_prefetches_total", "Files prefetched for a predicted request.", getPrefetches());
+        counter(out, "tftp_prefetch_hits_total", "Requests for files that were prefetched for the client.", getPrefetchHits());
+
+        header(out, "tftp_error_packets_sent_total", "Error packets sent, by error code.", "counter");
+        for (int i = 0; i < errorsSent_.length; i++) {
+            sample(out, "tftp_error_packets_sent_total{code=\"" + ERROR_NAMES[i] + "\"}", errorsSent_[i].sum());
+        }
+
+        if (admission_ != null) {
+            header(out, "tftp_requests_dropped_total", "Packets dropped by admission control, by reason.", "counter");
+            for (AdmissionController.DropReason reason : AdmissionController.DropReason.values()) {
+                sample(out, "tftp_requests_dropped_total{reason=\"" + reason.name().toLowerCase(Locale.ROOT) + "\"}",
+                        admission_.getDropCount(reason));
+            }
+        }
+
+        summary(out, "tftp_transfer_duration_seconds", "Duration of transfers.", transferDuration_);
+        summary(out, "tftp_mapper_open_seconds", "Time needed by the file name mapper to open a file.", mapperOpenLatency_);
+    }
+
+    private static void counter(Appendable out, String name, String help, long value) throws IOException {
+        header(out, name, help, "counter");
+        sample(out, name, value);
+    }
+
+    private static void gauge(Appendable out, String name, String help, long value) throws IOException {
+        header(out, name, help, "gauge");
+        sample(out, name, value);
+    }
+
+    private static void summary(Appendable out, String name, String help, LatencyHistogram histogram) throws IOException {
+        header(out, name, help, "summary");
+        double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+        for (double q : quantiles) {
+            out.append(name).append("{quantile=\"").append(Double.toString(q)).append("\"} ")
+                    .append(Double.toString(histogram.getValueAtQuantile(q) / 1e6)).append('\n');
+        }
+        out.append(name).append("_sum ").append(Double.toString(histogram.getSum() / 1e6)).append('\n');
+        out.append(name).append("_count ").append(Long.toString(histogram.getCount())).append('\n');
+    }
+
+    private static void header(Appendable out, String name, String help, String type) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(Appendable out, String name, long value) throws IOException {
+        out.append(name).append(' ').append(Long.toString(value)).append('\n');
+    }
+}
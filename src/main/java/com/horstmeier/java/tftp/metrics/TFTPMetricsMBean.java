@@ -0,0 +1,38 @@
+package com.horstmeier.java.tftp.metrics;
+
+/**
+ * JMX view of {@link TFTPMetrics}.
+ */
+public interface TFTPMetricsMBean {
+    long getActiveTransfers();
+    long getReadRequests();
+    long getWriteRequests();
+    long getTransfersCompleted();
+    long getTransfersFailed();
+    long getBytesSent();
+    long getBytesReceived();
+    long getPacketsSent();
+    long getPacketsReceived();
+    long getRetransmissions();
+    long getTimeouts();
+    long getUnknownTidEvents();
+    long getErrorPacketsSent();
+    long getMapperOpenFailures();
+    long getDroppedRequests();
+    long getPrefetches();
+    long getPrefetchHits();
+
+    /**
+     * The share of the prefetched files that were requested, 0 if nothing was prefetched.
+     */
+    double getPrefetchHitRate();
+
+    double getTransferDurationMeanMillis();
+    long getTransferDurationP99Millis();
+    long getMapperOpenP99Micros();
+
+    /**
+     * All metrics in the Prometheus text exposition format.
+     */
+    String dumpPrometheus();
+}
@@ -2,51 +2,96 @@ package com.horstmeier.java.tftp.proxyserver;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.log4j.Logger;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
  * Created by jens on 17.08.13.
+ *
+ * The body of a GET request. close() returns the connection to the client's pool, so it must be called.
  */
 public class EntityInputStream extends InputStream {
 
     private final HttpGet _httpGet;
     private final Logger log = Logger.getLogger(ProxyFileMapper.class);
-    private InputStream _baseStream;
+    private final InputStream _baseStream;
+    private boolean _eof = false;
+    private boolean _closed = false;
 
-    public EntityInputStream(String address) throws IOException {
-        DefaultHttpClient client = new DefaultHttpClient();
+    /**
+     * @param client Executes the request, usually shared and backed by a connection pool
+     * @throws FileNotFoundException If the server answers 404
+     * @throws IOException If the request fails or the server answers with another status than 200
+     */
+    public EntityInputStream(HttpClient client, String address) throws IOException {
         _httpGet = new HttpGet(address);
 
         HttpResponse response = client.execute(_httpGet);
+        InputStream content = null;
         try {
-            log.info("Response : " + response.getStatusLine());
+            log.debug("Response : " + response.getStatusLine());
+            int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_NOT_FOUND) {
+                throw new FileNotFoundException(address);
+            }
+            if (status != HttpStatus.SC_OK) {
+                throw new IOException("Failed to read from server: " + response.getStatusLine());
+            }
             HttpEntity entity = response.getEntity();
-            _baseStream = entity.getContent();
-        } catch (Exception e) {
-            _baseStream = null;
+            if (entity == null) {
+                throw new IOException("Failed to read from server: no content");
+            }
+            content = entity.getContent();
+        } finally {
+            if (content == null) {
+                _httpGet.releaseConnection();
+            }
         }
+        _baseStream = content;
     }
 
     @Override
     public int read() throws IOException {
-        if (_baseStream == null)
-            throw new IOException("Failed to read from server");
-        return _baseStream.read();
+        int b = _baseStream.read();
+        if (b < 0) {
+            _eof = true;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = _baseStream.read(b, off, len);
+        if (n < 0) {
+            _eof = true;
+        }
+        return n;
     }
 
+    /**
+     * Release the connection. If the body was not read to the end, the connection is closed instead of reused.
+     */
     @Override
-    protected void finalize() throws Throwable {
-        if (_baseStream != null) {
-            _baseStream.close();
+    public void close() throws IOException {
+        if (_closed) {
+            return;
         }
-        if (_httpGet != null) {
+        _closed = true;
+        try {
+            if (_eof) {
+                _baseStream.close();
+            } else {
+                // closing the stream would download the rest to reuse the connection
+                _httpGet.abort();
+            }
+        } finally {
             _httpGet.releaseConnection();
         }
-        super.finalize();
     }
 }
@@ -0,0 +1,868 @@
+package com.horstmeier.java.tftp.proxyserver;
+
+import com.horstmeier.java.tftp.ContentCache;
+import com.horstmeier.java.tftp.ContentInputStream;
+import com.horstmeier.java.tftp.interfaces.IContentInfo;
+import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares a cache between several TFTP servers, so a file is fetched from the origin (e.g. a
+ * {@link ProxyFileMapper}) once for all of them instead of once per server.
+ *
+ * Every file has an owner among the members, chosen by consistent hashing of its name, so adding or removing a
+ * member only moves the files of that member. The owner keeps the file in its cache and fetches it from the origin
+ * on a miss; concurrent misses for the same file share one fetch. The other members ask the owner over HTTP. Every
+ * member serves its cache on its peer address: GET /files/&lt;url encoded name&gt; and GET /health.
+ *
+ * Files are streamed: the owner passes the file on while it is fetched from the origin and caches it once it was
+ * read to the end, and the other members pass the owner's response on while it arrives. So a slow origin delays the
+ * first block of a transfer, not the whole file, and a large file is never held in memory on its way through.
+ * Requests for a file that is being fetched read along with the fetch as far as it got. If it makes no progress for
+ * a while (see {@link #setShareTimeoutMillis(int)}), e.g. because the client that started it stalls, they read the
+ * origin themselves.
+ *
+ * The members are configured statically. They are checked periodically; a member that fails a check or a request
+ * is skipped (its files go to the next member on the ring) until it answers a check again. If no peer can be
+ * reached, files are fetched from the origin directly.
+ */
+public class PeerCacheFileMapper implements IFileNameMapper, Closeable {
+
+    private static final int VIRTUAL_NODES = 64;
+    private static final String FILES_PATH = "/files/";
+
+    private final Logger log = Logger.getLogger(PeerCacheFileMapper.class);
+
+    private final IFileNameMapper origin_;
+    private final String self_;
+    private final Map<String, Member> members_ = new LinkedHashMap<String, Member>();
+    private final TreeMap<Long, Member> ring_ = new TreeMap<Long, Member>();
+    private final ContentCache cache_ = new ContentCache(256 * 1024 * 1024, 64 * 1024 * 1024);
+    private final ConcurrentHashMap<String, Long> fetched_ = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentHashMap<String, Fetch> fetching_ = new ConcurrentHashMap<String, Fetch>();
+    private final HttpServer server_;
+    private final ExecutorService serverExecutor_;
+    private final ScheduledExecutorService healthChecker_;
+    private final AtomicLong originFetches_ = new AtomicLong();
+    private final AtomicLong peerFetches_ = new AtomicLong();
+    private volatile long expiryMillis_ = 300000;
+    private volatile int timeoutMillis_ = 2000;
+    private volatile int bodyTimeoutMillis_ = 30000;
+    private volatile int shareTimeoutMillis_ = 5000;
+
+    /**
+     * Join the members and start serving the cache on the own peer address.
+     * @param origin Where the owner of a file fetches it
+     * @param self The own peer address, host:port. The HTTP endpoint is opened on this port.
+     * @param members The peer addresses of all members, host:port. May or may not contain self.
+     * @param healthCheckMillis How often the other members are checked
+     * @throws IOException If the HTTP endpoint could not be opened
+     */
+    public PeerCacheFileMapper(IFileNameMapper origin, String self, List<String> members, long healthCheckMillis) throws IOException {
+        if (healthCheckMillis < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        origin_ = origin;
+        self_ = self;
+        List<String> all = new ArrayList<String>(members);
+        if (!all.contains(self)) {
+            all.add(self);
+        }
+        for (String address : all) {
+            Member member = new Member(address);
+            members_.put(address, member);
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring_.put(hash(address + "#" + i), member);
+            }
+        }
+
+        serverExecutor_ = Executors.newFixedThreadPool(8, daemonThreads("TFTPPeerCache-" + self));
+        server_ = HttpServer.create(toSocketAddress(self), 0);
+        server_.createContext(FILES_PATH, new FilesHandler());
+        server_.createContext("/health", new HealthHandler());
+        server_.setExecutor(serverExecutor_);
+        server_.start();
+
+        healthChecker_ = Executors.newSingleThreadScheduledExecutor(daemonThreads("TFTPPeerHealth-" + self));
+        healthChecker_.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkMembers();
+            }
+        }, healthCheckMillis, healthCheckMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count_ = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count_.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static InetSocketAddress toSocketAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Peer address without port: " + address);
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The cache of the files this member owns. Default 256 MB, files up to 64 MB. Larger files are passed through
+     * without caching.
+     */
+    public ContentCache getCache() {
+        return cache_;
+    }
+
+    /**
+     * Set how long a cached file is served before it is fetched from the origin again, in milliseconds. Default
+     * 300000.
+     */
+    public void setExpiryMillis(long expiryMillis) {
+        if (expiryMillis < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        expiryMillis_ = expiryMillis;
+    }
+
+    public long getExpiryMillis() {
+        return expiryMillis_;
+    }
+
+    /**
+     * Set the connect timeout for requests to peers and the read timeout of health checks, in milliseconds.
+     * Default 2000.
+     */
+    public void setTimeoutMillis(int timeoutMillis) {
+        if (timeoutMillis < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        timeoutMillis_ = timeoutMillis;
+    }
+
+    public int getTimeoutMillis() {
+        return timeoutMillis_;
+    }
+
+    /**
+     * Set how long a member waits for the owner to answer a file request and between the parts of the answer, in
+     * milliseconds. The owner may have to fetch the file from a slow origin first, so this is longer than the
+     * timeout of health checks. Default 30000.
+     */
+    public void setBodyTimeoutMillis(int bodyTimeoutMillis) {
+        if (bodyTimeoutMillis < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        bodyTimeoutMillis_ = bodyTimeoutMillis;
+    }
+
+    public int getBodyTimeoutMillis() {
+        return bodyTimeoutMillis_;
+    }
+
+    /**
+     * Set how long a request reading along with another request's fetch waits for more data before it reads the
+     * origin itself, in milliseconds. Keep it below the body timeout of the other members. Default 5000.
+     */
+    public void setShareTimeoutMillis(int shareTimeoutMillis) {
+        if (shareTimeoutMillis < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        shareTimeoutMillis_ = shareTimeoutMillis;
+    }
+
+    public int getShareTimeoutMillis() {
+        return shareTimeoutMillis_;
+    }
+
+    /**
+     * Files this member fetched from the origin.
+     */
+    public long getOriginFetches() {
+        return originFetches_.get();
+    }
+
+    /**
+     * Files this member got from a peer.
+     */
+    public long getPeerFetches() {
+        return peerFetches_.get();
+    }
+
+    /**
+     * The peer addresses of the members that passed their last check, self included.
+     */
+    public List<String> getHealthyMembers() {
+        List<String> healthy = new ArrayList<String>();
+        for (Member member : members_.values()) {
+            if (member.healthy_) {
+                healthy.add(member.address_);
+            }
+        }
+        return Collections.unmodifiableList(healthy);
+    }
+
+    /**
+     * The peer address of the member owning the file, the first healthy member on the ring after its hash.
+     */
+    public String getOwner(String fileName) {
+        long hash = hash(fileName);
+        SortedMap<Long, Member> tail = ring_.tailMap(hash);
+        for (Member member : tail.values()) {
+            if (member.healthy_) {
+                return member.address_;
+            }
+        }
+        for (Member member : ring_.headMap(hash).values()) {
+            if (member.healthy_) {
+                return member.address_;
+            }
+        }
+        return self_;
+    }
+
+    @Override
+    public InputStream openInputStream(String fileName) throws IOException {
+        String owner = getOwner(fileName);
+        if (!owner.equals(self_)) {
+            try {
+                return fetchFromPeer(owner, fileName);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                log.warn("Peer " + owner + " failed, fetching " + fileName + " from the origin.", e);
+                members_.get(owner).healthy_ = false;
+            }
+        }
+        return openOwned(fileName);
+    }
+
+    /*
+     * Serve a file this member owns: from the cache, or fetched from the origin.
+     */
+    private InputStream openOwned(String fileName) throws IOException {
+        Long fetched = fetched_.get(fileName);
+        if (fetched != null) {
+            if (System.currentTimeMillis() - fetched <= expiryMillis_) {
+                byte[] content = cache_.get(fileName);
+                if (content != null) {
+                    return new ContentInputStream(content, null);
+                }
+            } else {
+                fetched_.remove(fileName, fetched);
+            }
+        }
+
+        Fetch fetch = new Fetch(fileName);
+        Fetch running = fetching_.putIfAbsent(fileName, fetch);
+        if (running != null) {
+            // somebody is fetching it already
+            return running.share();
+        }
+
+        InputStream is = null;
+        boolean handedOver = false;
+        try {
+            originFetches_.incrementAndGet();
+            is = origin_.openInputStream(fileName);
+            if (is == null) {
+                throw new FileNotFoundException(fileName);
+            }
+            InputStream caching = new CachingInputStream(fileName, is, fetch);
+            fetch.opened(is instanceof IContentInfo ? ((IContentInfo) is).getContentLength() : -1);
+            handedOver = true;
+            return caching;
+        } catch (IOException e) {
+            fetch.end(e);
+            throw e;
+        } finally {
+            if (!handedOver) {
+                // else the fetch ends when the stream does
+                fetch.end(null);
+                if (is != null) {
+                    try {
+                        is.close();
+                    } catch (IOException e) {
+                        log.debug("Closing " + fileName + " failed.", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Forget the fetch times of files that are expired anyway.
+     */
+    private void pruneFetched(long now) {
+        for (Iterator<Long> it = fetched_.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() > expiryMillis_) {
+                it.remove();
+            }
+        }
+    }
+
+    private InputStream fetchFromPeer(String peer, String fileName) throws IOException {
+        URL url = new URL("http://" + peer + FILES_PATH + URLEncoder.encode(fileName, "UTF-8"));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(timeoutMillis_);
+        connection.setReadTimeout(bodyTimeoutMillis_);
+        boolean handedOver = false;
+        try {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                throw new FileNotFoundException(fileName);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Peer " + peer + " answered " + status + " for " + fileName);
+            }
+            InputStream is = new PeerInputStream(connection);
+            handedOver = true;
+            peerFetches_.incrementAndGet();
+            return is;
+        } finally {
+            if (!handedOver) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /*
+     * Check the other members and update their health.
+     */
+    private void checkMembers() {
+        for (Member member : members_.values()) {
+            if (member.address_.equals(self_)) {
+                continue;
+            }
+            boolean healthy = false;
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL("http://" + member.address_ + "/health").openConnection();
+                connection.setConnectTimeout(timeoutMillis_);
+                connection.setReadTimeout(timeoutMillis_);
+                try {
+                    healthy = connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+                    connection.getInputStream().close();
+                } finally {
+                    connection.disconnect();
+                }
+            } catch (IOException e) {
+                // unhealthy
+            }
+            if (healthy != member.healthy_) {
+                log.info("Peer " + member.address_ + (healthy ? " is back." : " is not available."));
+                member.healthy_ = healthy;
+            }
+        }
+    }
+
+    @Override
+    public OutputStream openOutputStream(String fileName) throws IOException {
+        return null;
+    }
+
+    @Override
+    public boolean canRead() {
+        return true;
+    }
+
+    @Override
+    public boolean canWrite() {
+        return false;
+    }
+
+    /**
+     * Stop serving peers and checking them.
+     */
+    @Override
+    public void close() {
+        healthChecker_.shutdownNow();
+        server_.stop(0);
+        serverExecutor_.shutdownNow();
+    }
+
+    private static class Member {
+        private final String address_;
+        private volatile boolean healthy_ = true;
+
+        Member(String address) {
+            address_ = address;
+        }
+    }
+
+    /*
+     * The body of an owner's answer. The connection is closed with the stream.
+     */
+    private static class PeerInputStream extends FilterInputStream implements IContentInfo {
+        private final HttpURLConnection connection_;
+
+        PeerInputStream(HttpURLConnection connection) throws IOException {
+            super(connection.getInputStream());
+            connection_ = connection;
+        }
+
+        @Override
+        public long getContentLength() {
+            return connection_.getContentLengthLong();
+        }
+
+        @Override
+        public String getContentVersion() {
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                connection_.disconnect();
+            }
+        }
+    }
+
+    /*
+     * One fetch of a file from the origin, shared by the requests for the file while it runs. The request that
+     * started it reads the origin through a CachingInputStream, which appends what it read; the others read along
+     * from the buffer. When the fetch ends without the whole file - too large for the cache, failed or closed early
+     * - or makes no progress for the share timeout, they read the origin themselves.
+     */
+    private class Fetch {
+        private static final int ENDED = -2;
+
+        private final String fileName_;
+        private byte[] data_ = new byte[65536];
+        private int size_ = 0;
+        private long length_ = -1;
+        private boolean opened_ = false;
+        private boolean complete_ = false;
+        private boolean ended_ = false;
+        private IOException openError_;
+
+        Fetch(String fileName) {
+            fileName_ = fileName;
+        }
+
+        synchronized void opened(long length) {
+            length_ = length;
+            opened_ = true;
+            notifyAll();
+        }
+
+        synchronized int size() {
+            return size_;
+        }
+
+        synchronized long getLength() {
+            return length_;
+        }
+
+        synchronized void append(byte[] b, int off, int len) {
+            if (ended_) {
+                return;
+            }
+            if (size_ + len > data_.length) {
+                data_ = Arrays.copyOf(data_, Math.max(size_ + len, data_.length * 2));
+            }
+            System.arraycopy(b, off, data_, size_, len);
+            size_ += len;
+            notifyAll();
+        }
+
+        /*
+         * The whole file, the buffer is trimmed to it.
+         */
+        synchronized byte[] getContent() {
+            if (data_.length != size_) {
+                data_ = Arrays.copyOf(data_, size_);
+            }
+            return data_;
+        }
+
+        /*
+         * No more data is appended. The requests reading along keep a complete file, else they read the origin.
+         */
+        void end(boolean complete, IOException openError) {
+            fetching_.remove(fileName_, this);
+            synchronized (this) {
+                if (!ended_) {
+                    ended_ = true;
+                    complete_ = complete;
+                    openError_ = opened_ ? null : openError;
+                    if (!complete) {
+                        data_ = null;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        void end(IOException openError) {
+            end(false, openError);
+        }
+
+        /*
+         * A stream reading along, once the origin was opened. A file the origin does not have is not found here
+         * either; if the open fails otherwise or takes too long, the origin is opened for this request.
+         */
+        InputStream share() throws IOException {
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + shareTimeoutMillis_;
+                long remaining = shareTimeoutMillis_;
+                while (!opened_ && !ended_ && remaining > 0) {
+                    await(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                if (openError_ instanceof FileNotFoundException) {
+                    throw new FileNotFoundException(fileName_);
+                }
+                if (opened_) {
+                    return new SharedInputStream(this);
+                }
+            }
+            originFetches_.incrementAndGet();
+            return origin_.openInputStream(fileName_);
+        }
+
+        /*
+         * Copy what was fetched from position on, waiting for it at most the share timeout. Returns -1 at the end
+         * of a complete file, ENDED if the request has to read the origin itself.
+         */
+        synchronized int read(long position, byte[] b, int off, int len) throws IOException {
+            long deadline = System.currentTimeMillis() + shareTimeoutMillis_;
+            while (true) {
+                if (data_ != null && position < size_) {
+                    int n = (int) Math.min(len, size_ - position);
+                    System.arraycopy(data_, (int) position, b, off, n);
+                    return n;
+                }
+                if (complete_) {
+                    return -1;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (ended_ || remaining <= 0) {
+                    return ENDED;
+                }
+                await(remaining);
+            }
+        }
+
+        private void await(long millis) throws InterruptedIOException {
+            try {
+                wait(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + fileName_);
+            }
+        }
+    }
+
+    /*
+     * Reads along with a fetch of another request. When the fetch can't deliver, the origin is opened and the part
+     * read already is skipped.
+     */
+    private class SharedInputStream extends InputStream implements IContentInfo {
+        private final Fetch fetch_;
+        private long position_ = 0;
+        private InputStream fallback_;
+
+        SharedInputStream(Fetch fetch) {
+            fetch_ = fetch;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (fallback_ == null) {
+                int n = fetch_.read(position_, b, off, len);
+                if (n != Fetch.ENDED) {
+                    if (n > 0) {
+                        position_ += n;
+                    }
+                    return n;
+                }
+                fallback_ = openOrigin();
+            }
+            return fallback_.read(b, off, len);
+        }
+
+        private InputStream openOrigin() throws IOException {
+            log.debug("Fetch of " + fetch_.fileName_ + " ended or stalled after " + position_ + " bytes, reading the origin.");
+            originFetches_.incrementAndGet();
+            InputStream is = origin_.openInputStream(fetch_.fileName_);
+            try {
+                long skipped = 0;
+                while (skipped < position_) {
+                    long n = is.skip(position_ - skipped);
+                    if (n <= 0) {
+                        if (is.read() < 0) {
+                            throw new IOException(fetch_.fileName_ + " is shorter than the part read already.");
+                        }
+                        n = 1;
+                    }
+                    skipped += n;
+                }
+                return is;
+            } catch (IOException e) {
+                is.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public long getContentLength() {
+            return fetch_.getLength();
+        }
+
+        @Override
+        public String getContentVersion() {
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fallback_ != null) {
+                fallback_.close();
+            }
+        }
+    }
+
+    /*
+     * Passes a file on while it is fetched from the origin and appends it to the shared fetch. A file read to the
+     * end is cached. Files too large for the cache, failed fetches and streams closed early end the fetch without
+     * content; the requests reading along then open the origin themselves.
+     */
+    private class CachingInputStream extends FilterInputStream implements IContentInfo {
+        private final String fileName_;
+        private final Fetch fetch_;
+        private boolean done_ = false;
+
+        CachingInputStream(String fileName, InputStream origin, Fetch fetch) {
+            super(origin);
+            fileName_ = fileName;
+            fetch_ = fetch;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n;
+            try {
+                n = in.read(b, off, len);
+            } catch (IOException e) {
+                finish();
+                throw e;
+            } catch (RuntimeException e) {
+                finish();
+                throw e;
+            }
+            if (n < 0) {
+                complete();
+            } else if (!done_) {
+                if (fetch_.size() + n > cache_.getMaxEntryBytes()) {
+                    // too large to cache, only pass the rest on
+                    finish();
+                } else {
+                    fetch_.append(b, off, n);
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 65536)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public long getContentLength() {
+            return in instanceof IContentInfo ? ((IContentInfo) in).getContentLength() : -1;
+        }
+
+        @Override
+        public String getContentVersion() {
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!done_) {
+                    // readers often stop at the short last block without reading the end of the stream
+                    try {
+                        if (in.read() < 0) {
+                            complete();
+                        }
+                    } catch (IOException e) {
+                        // not cached then
+                    }
+                }
+                finish();
+            } finally {
+                super.close();
+            }
+        }
+
+        /*
+         * Cache the file before the fetch ends, so a request arriving in between finds it.
+         */
+        private void complete() {
+            if (!done_) {
+                done_ = true;
+                byte[] content = fetch_.getContent();
+                long now = System.currentTimeMillis();
+                cache_.put(fileName_, content);
+                fetched_.put(fileName_, now);
+                pruneFetched(now);
+                fetch_.end(true, null);
+            }
+        }
+
+        private void finish() {
+            if (!done_) {
+                done_ = true;
+                fetch_.end(null);
+            }
+        }
+    }
+
+    private class HealthHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] body = "ok".getBytes(StandardCharsets.US_ASCII);
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(body);
+            os.close();
+        }
+    }
+
+    /*
+     * Serves files to peers. Always from the own cache or the origin - a request is never passed on, so members
+     * that disagree about the owner can't build a loop.
+     */
+    private class FilesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                String path = exchange.getRequestURI().getRawPath();
+                String fileName = URLDecoder.decode(path.substring(FILES_PATH.length()), "UTF-8");
+                InputStream is;
+                try {
+                    is = openOwned(fileName);
+                } catch (FileNotFoundException e) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                } catch (IOException e) {
+                    log.warn("Serving " + fileName + " to a peer failed.", e);
+                    exchange.sendResponseHeaders(502, -1);
+                    return;
+                }
+                try {
+                    long length = is instanceof IContentInfo ? ((IContentInfo) is).getContentLength() : -1;
+                    // 0 means chunked for the HTTP server, -1 no body
+                    exchange.sendResponseHeaders(200, length > 0 ? length : length == 0 ? -1 : 0);
+                    OutputStream os = exchange.getResponseBody();
+                    byte[] buffer = new byte[65536];
+                    int n;
+                    while ((n = is.read(buffer)) > 0) {
+                        os.write(buffer, 0, n);
+                        // pass on what the origin delivered so far
+                        os.flush();
+                    }
+                    os.close();
+                } finally {
+                    is.close();
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -1,29 +1,206 @@
 package com.horstmeier.java.tftp.proxyserver;
 
+import com.horstmeier.java.tftp.ContentInputStream;
 import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import com.horstmeier.java.tftp.interfaces.IPrefetchable;
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.log4j.Logger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by jens on 17.08.13.
+ *
+ * Files can be prefetched (see {@link IPrefetchable}): they are downloaded into memory in the background and the
+ * next request for them is served from there, or waits for the download if it is still running. Prefetched files
+ * are served once and expire if they are not requested in time.
+ *
+ * Requests share a pool of HTTP connections. Call close() to release it when the mapper is not needed any more.
  */
-public class ProxyFileMapper implements IFileNameMapper {
+public class ProxyFileMapper implements IFileNameMapper, IPrefetchable, Closeable {
+
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newFixedThreadPool(4, new ThreadFactory() {
+        private final AtomicInteger count_ = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TFTPProxyPrefetch-" + count_.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     private String _serverBaseAddress;
     private Logger log = Logger.getLogger(ProxyFileMapper.class);
+    private final PoolingClientConnectionManager _connectionManager = new PoolingClientConnectionManager();
+    private final HttpClient _httpClient;
+    private final ConcurrentHashMap<String, Prefetched> _prefetched = new ConcurrentHashMap<String, Prefetched>();
+    private volatile int _maxPrefetchBytes = 16 * 1024 * 1024;
+    private volatile int _maxPrefetchedFiles = 32;
+    private volatile long _prefetchExpiryMillis = 60000;
+
     public ProxyFileMapper(String serverBaseAddress) {
         _serverBaseAddress = serverBaseAddress.endsWith("/") ? serverBaseAddress : serverBaseAddress + "/";
+        _connectionManager.setMaxTotal(64);
+        _connectionManager.setDefaultMaxPerRoute(64);
+        DefaultHttpClient client = new DefaultHttpClient(_connectionManager);
+        HttpConnectionParams.setConnectionTimeout(client.getParams(), 10000);
+        HttpConnectionParams.setSoTimeout(client.getParams(), 30000);
+        _httpClient = client;
+    }
+
+    /**
+     * The pool of HTTP connections, e.g. to watch its usage with getTotalStats().
+     */
+    public PoolingClientConnectionManager getConnectionManager() {
+        return _connectionManager;
+    }
+
+    /**
+     * Close all HTTP connections. Streams still open fail afterwards.
+     */
+    @Override
+    public void close() {
+        _connectionManager.shutdown();
+    }
+
+    /**
+     * Set the max size of a prefetched file. Larger files are not kept. Default 16 MB.
+     */
+    public void setMaxPrefetchBytes(int maxBytes) {
+        if (maxBytes < 0) {
+            throw new RuntimeException("Invalid Value");
+        }
+        _maxPrefetchBytes = maxBytes;
+    }
+
+    public int getMaxPrefetchBytes() {
+        return _maxPrefetchBytes;
+    }
+
+    /**
+     * Set the max number of prefetched files held at a time. Default 32. 0 disables prefetching.
+     */
+    public void setMaxPrefetchedFiles(int maxFiles) {
+        if (maxFiles < 0) {
+            throw new RuntimeException("Invalid Value");
+        }
+        _maxPrefetchedFiles = maxFiles;
+    }
+
+    public int getMaxPrefetchedFiles() {
+        return _maxPrefetchedFiles;
+    }
+
+    /**
+     * Set the time a prefetched file is kept for its request, in milliseconds. Default 60000.
+     */
+    public void setPrefetchExpiryMillis(long expiryMillis) {
+        if (expiryMillis < 1) {
+            throw new RuntimeException("Invalid Value");
+        }
+        _prefetchExpiryMillis = expiryMillis;
+    }
+
+    public long getPrefetchExpiryMillis() {
+        return _prefetchExpiryMillis;
+    }
+
+    @Override
+    public boolean prefetch(final String fileName) {
+        long now = System.currentTimeMillis();
+        for (Iterator<Prefetched> it = _prefetched.values().iterator(); it.hasNext(); ) {
+            if (it.next().expires < now) {
+                it.remove();
+            }
+        }
+        if (_prefetched.size() >= _maxPrefetchedFiles || _prefetched.containsKey(fileName)) {
+            return false;
+        }
+        final Prefetched prefetched = new Prefetched(now + _prefetchExpiryMillis);
+        if (_prefetched.putIfAbsent(fileName, prefetched) != null) {
+            return false;
+        }
+        try {
+            PREFETCH_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        prefetched.content.complete(download(fileName));
+                    } catch (Throwable e) {
+                        // the request waiting for the content downloads it itself
+                        log.debug("Prefetching " + fileName + " failed.", e);
+                        prefetched.content.complete(null);
+                    }
+                }
+            });
+            return true;
+        } catch (RuntimeException e) {
+            _prefetched.remove(fileName, prefetched);
+            return false;
+        }
+    }
+
+    /*
+     * The content of the file, null if it could not be downloaded or is too large to keep.
+     */
+    private byte[] download(String fileName) {
+        try {
+            EntityInputStream is = new EntityInputStream(_httpClient, _serverBaseAddress + fileName);
+            try {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                byte[] buffer = new byte[65536];
+                int n;
+                while ((n = is.read(buffer, 0, buffer.length)) > 0) {
+                    if (os.size() + n > _maxPrefetchBytes) {
+                        return null;
+                    }
+                    os.write(buffer, 0, n);
+                }
+                return os.toByteArray();
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            log.debug("Prefetching " + fileName + " failed.", e);
+            return null;
+        }
     }
 
     @Override
     public InputStream openInputStream(String fileName) throws IOException {
-        InputStream result;
+        Prefetched prefetched = _prefetched.remove(fileName);
+        if (prefetched != null && prefetched.expires >= System.currentTimeMillis()) {
+            try {
+                byte[] content = prefetched.content.get();
+                if (content != null) {
+                    return new ContentInputStream(content, null);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for " + fileName);
+            } catch (ExecutionException e) {
+                // download it again
+            }
+        }
         String address = _serverBaseAddress + fileName;
 
-        return new EntityInputStream(address);
+        return new EntityInputStream(_httpClient, address);
     }
 
     @Override
@@ -40,4 +217,13 @@ public class ProxyFileMapper implements IFileNameMapper {
     public boolean canWrite() {
         return false;
     }
+
+    private static class Prefetched {
+        final long expires;
+        final CompletableFuture<byte[]> content = new CompletableFuture<byte[]>();
+
+        Prefetched(long expires) {
+            this.expires = expires;
+        }
+    }
 }
@@ -0,0 +1,309 @@
+package TFTPServer;
+
+import com.horstmeier.java.tftp.DefaultFileMapper;
+import com.horstmeier.java.tftp.Mode;
+import com.horstmeier.java.tftp.TFTPBaseServer;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class BulkTFTPClientTest extends TestCase {
+
+    private File root_;
+
+    @Override
+    protected void setUp() throws Exception {
+        root_ = Files.createTempDirectory("tftp-bulk").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(root_);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    public void testManifestAgainstServer() throws Exception {
+        File read = new File(root_, "read");
+        File write = new File(root_, "write");
+        File local = new File(root_, "local");
+        read.mkdir();
+        write.mkdir();
+        local.mkdir();
+        Files.write(new File(read, "a.bin").toPath(), content(100000));
+        Files.write(new File(read, "b.bin").toPath(), content(3 * 512));
+        Files.write(new File(read, "empty.bin").toPath(), new byte[0]);
+        Files.write(new File(local, "up.bin").toPath(), content(20000));
+
+        File manifest = new File(root_, "manifest.txt");
+        Files.write(manifest.toPath(), ("# staged files\n"
+                + "get a.bin " + new File(local, "a.bin") + "\n"
+                + "get b.bin " + new File(local, "b.bin") + "\n"
+                + "\n"
+                + "get empty.bin " + new File(local, "empty.bin") + "\n"
+                + "get missing.bin " + new File(local, "missing.bin") + "\n"
+                + "put " + new File(local, "up.bin") + " up.bin\n").getBytes(StandardCharsets.UTF_8));
+        List<BulkTFTPClient.Entry> entries = BulkTFTPClient.readManifest(manifest);
+        assertEquals(5, entries.size());
+        assertFalse(entries.get(4).isDownload());
+        assertEquals("up.bin", entries.get(4).getRemoteName());
+
+        DefaultFileMapper mapper = new DefaultFileMapper(read, write, Mode.GET_AND_PUT);
+        TFTPBaseServer server = new TFTPBaseServer(mapper, 8100);
+        try {
+            BulkTFTPClient client = new BulkTFTPClient("127.0.0.1", 8100);
+            client.setConcurrency(3);
+            List<BulkTFTPClient.Result> results = client.run(entries);
+
+            for (int i : new int[]{0, 1, 2, 4}) {
+                assertTrue(results.get(i).toString(), results.get(i).isSuccess());
+                // the server only knows tsize, so the client falls back to lock step
+                assertEquals(512, results.get(i).getBlockSize());
+                assertEquals(1, results.get(i).getWindowSize());
+            }
+            assertTrue(Arrays.equals(content(100000), Files.readAllBytes(new File(local, "a.bin").toPath())));
+            assertTrue(Arrays.equals(content(3 * 512), Files.readAllBytes(new File(local, "b.bin").toPath())));
+            assertEquals(0, new File(local, "empty.bin").length());
+            assertEquals(100000, results.get(0).getBytes());
+
+            assertFalse(results.get(3).isSuccess());
+            assertTrue(results.get(3).getError() instanceof BulkTFTPClient.ServerError);
+            assertFalse(new File(local, "missing.bin").exists());
+
+            assertEquals(20000, results.get(4).getBytes());
+            File uploaded = new File(write, "up.bin");
+            for (int i = 0; i < 100 && uploaded.length() < 20000; i++) {
+                Thread.sleep(20);
+            }
+            assertTrue(Arrays.equals(content(20000), Files.readAllBytes(uploaded.toPath())));
+        } finally {
+            server.shutdown();
+            mapper.close();
+        }
+    }
+
+    /*
+     * A server that accepts blksize and windowsize and loses the first transmission of one block.
+     */
+    public void testWindowedDownloadWithLoss() throws Exception {
+        final byte[] content = content(20 * 1024 + 100);
+        final DatagramSocket listener = new DatagramSocket(8101, InetAddress.getByName("127.0.0.1"));
+        final Exception[] failure = new Exception[1];
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serveWindowed(listener, content, 1024, 4, 6);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        server.start();
+        try {
+            BulkTFTPClient client = new BulkTFTPClient("127.0.0.1", 8101);
+            client.setBlockSize(4096);
+            client.setWindowSize(8);
+            File local = new File(root_, "windowed.bin");
+            BulkTFTPClient.Result result = client.transfer(new BulkTFTPClient.Entry(true, "windowed.bin", local));
+            assertTrue(result.toString(), result.isSuccess());
+            assertEquals(1024, result.getBlockSize());
+            assertEquals(4, result.getWindowSize());
+            assertEquals(content.length, result.getBytes());
+            assertTrue(Arrays.equals(content, Files.readAllBytes(local.toPath())));
+        } finally {
+            server.join(5000);
+            listener.close();
+        }
+        assertNull(failure[0]);
+    }
+
+    private static void serveWindowed(DatagramSocket listener, byte[] content, int blockSize, int windowSize, int lostBlock)
+            throws Exception {
+        byte[] buffer = new byte[1024];
+        DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+        listener.receive(request);
+        SocketAddress client = request.getSocketAddress();
+
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setSoTimeout(2000);
+            byte[] oack = ("\0\6blksize\0" + blockSize + "\0windowsize\0" + windowSize + "\0tsize\0" + content.length + "\0")
+                    .getBytes(StandardCharsets.US_ASCII);
+            socket.send(new DatagramPacket(oack, oack.length, client));
+            assertEquals(0, receiveAck(socket));
+
+            int lastBlock = content.length / blockSize + 1;
+            int base = 1;
+            boolean lost = false;
+            while (base <= lastBlock) {
+                for (int block = base; block < base + windowSize && block <= lastBlock; block++) {
+                    if (block == lostBlock && !lost) {
+                        lost = true;
+                        continue;
+                    }
+                    int offset = (block - 1) * blockSize;
+                    int n = Math.min(blockSize, content.length - offset);
+                    byte[] data = new byte[n + 4];
+                    data[1] = 3;
+                    data[2] = (byte) (block >> 8);
+                    data[3] = (byte) block;
+                    System.arraycopy(content, offset, data, 4, n);
+                    socket.send(new DatagramPacket(data, data.length, client));
+                }
+                base = receiveAck(socket) + 1;
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /*
+     * A server that accepts blksize and windowsize for an upload and loses the first transmission of one block.
+     */
+    public void testWindowedUploadWithLoss() throws Exception {
+        byte[] content = content(20 * 1024 + 100);
+        File local = new File(root_, "upload.bin");
+        Files.write(local.toPath(), content);
+        final DatagramSocket listener = new DatagramSocket(8104, InetAddress.getByName("127.0.0.1"));
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final Exception[] failure = new Exception[1];
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    receiveWindowed(listener, received, 1024, 4, 6);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        server.start();
+        try {
+            BulkTFTPClient client = new BulkTFTPClient("127.0.0.1", 8104);
+            client.setBlockSize(4096);
+            client.setWindowSize(8);
+            BulkTFTPClient.Result result = client.transfer(new BulkTFTPClient.Entry(false, "upload.bin", local));
+            assertTrue(result.toString(), result.isSuccess());
+            assertEquals(1024, result.getBlockSize());
+            assertEquals(4, result.getWindowSize());
+            assertEquals(content.length, result.getBytes());
+        } finally {
+            server.join(5000);
+            listener.close();
+        }
+        assertNull(failure[0]);
+        assertTrue(Arrays.equals(content, received.toByteArray()));
+    }
+
+    private static void receiveWindowed(DatagramSocket listener, ByteArrayOutputStream received, int blockSize,
+                                        int windowSize, int lostBlock) throws Exception {
+        byte[] buffer = new byte[1024];
+        DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+        listener.receive(request);
+        assertEquals(2, buffer[1]);
+        Map<String, String> options = BulkTFTPClient.parseOptions(buffer, 2, request.getLength());
+        assertEquals("4096", options.get("blksize"));
+        assertEquals("8", options.get("windowsize"));
+        assertEquals(Integer.toString(20 * 1024 + 100), options.get("tsize"));
+        SocketAddress client = request.getSocketAddress();
+
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setSoTimeout(2000);
+            byte[] oack = ("\0\6blksize\0" + blockSize + "\0windowsize\0" + windowSize + "\0")
+                    .getBytes(StandardCharsets.US_ASCII);
+            socket.send(new DatagramPacket(oack, oack.length, client));
+
+            byte[] data = new byte[blockSize + 4];
+            int expected = 1;
+            int inWindow = 0;
+            boolean lost = false;
+            boolean gapReported = false;
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(data, data.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    throw new Exception("No DATA from the client");
+                }
+                if (packet.getLength() < 4 || data[1] != 3) {
+                    continue;
+                }
+                int block = ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+                if (block == lostBlock && !lost) {
+                    lost = true;
+                    continue;
+                }
+                if (block != expected) {
+                    // ask for the rest of the window once per gap
+                    if (!gapReported) {
+                        gapReported = true;
+                        inWindow = 0;
+                        sendAck(socket, client, expected - 1);
+                    }
+                    continue;
+                }
+                gapReported = false;
+                received.write(data, 4, packet.getLength() - 4);
+                expected++;
+                boolean last = packet.getLength() - 4 < blockSize;
+                if (last || ++inWindow == windowSize) {
+                    inWindow = 0;
+                    sendAck(socket, client, block);
+                }
+                if (last) {
+                    return;
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void sendAck(DatagramSocket socket, SocketAddress client, int block) throws Exception {
+        byte[] ack = {0, 4, (byte) (block >> 8), (byte) block};
+        socket.send(new DatagramPacket(ack, ack.length, client));
+    }
+
+    private static int receiveAck(DatagramSocket socket) throws Exception {
+        byte[] buffer = new byte[516];
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                throw new Exception("No ACK from the client");
+            }
+            if (packet.getLength() == 4 && buffer[1] == 4) {
+                return ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import junit.framework.TestCase;
+import org.apache.commons.net.tftp.TFTPClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+
+public class AccessLogTest extends TestCase {
+
+    private static AccessLog.Entry entry(String file) {
+        return new AccessLog.Entry(0, "10.0.0.1:2000", file, true, "octet", Collections.singletonMap("tsize", "0"),
+                1024, 3, 1, 12345, "ok");
+    }
+
+    public void testWritesJsonLines() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AccessLog accessLog = new AccessLog(out, 16, 1);
+        assertTrue(accessLog.log(entry("pxelinux.0")));
+        assertTrue(accessLog.log(entry("a \"quoted\"\n name")));
+        accessLog.close();
+
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("{\"time\":\"1970-01-01T00:00:00.000Z\",\"client\":\"10.0.0.1:2000\",\"file\":\"pxelinux.0\","
+                + "\"direction\":\"read\",\"mode\":\"octet\",\"options\":{\"tsize\":\"0\"},\"bytes\":1024,\"blocks\":3,"
+                + "\"retransmits\":1,\"duration_ms\":12.345,\"outcome\":\"ok\"}", lines[0]);
+        assertTrue(lines[1].contains("\"file\":\"a \\\"quoted\\\"\\n name\""));
+        assertEquals(2, accessLog.getWritten());
+        assertEquals(0, accessLog.getDropped());
+    }
+
+    public void testDropsWhenTheWriterIsBehind() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream blocked = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                written.write(b, off, len);
+            }
+        };
+        AccessLog accessLog = new AccessLog(blocked, 4, 1);
+        int accepted = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (accessLog.log(entry("file" + i))) {
+                accepted++;
+            }
+        }
+        assertTrue(accessLog.getDropped() > 0);
+        assertEquals(1000, accepted + accessLog.getDropped());
+        release.countDown();
+        accessLog.close();
+        assertEquals(accepted, accessLog.getWritten());
+        assertEquals(accepted, written.toString("UTF-8").split("\n").length);
+    }
+
+    public void testEntriesLoggedWhileClosingAreWrittenOrCounted() throws Exception {
+        for (int round = 0; round < 10; round++) {
+            final AccessLog accessLog = new AccessLog(new ByteArrayOutputStream(), 1024, 1);
+            final CountDownLatch started = new CountDownLatch(4);
+            final int[] calls = new int[4];
+            Thread[] threads = new Thread[calls.length];
+            for (int i = 0; i < threads.length; i++) {
+                final int thread = i;
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        for (int j = 0; j < 2000; j++) {
+                            accessLog.log(entry("file" + j));
+                            calls[thread]++;
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            started.await();
+            accessLog.close();
+            int total = 0;
+            for (int i = 0; i < threads.length; i++) {
+                threads[i].join();
+                total += calls[i];
+            }
+            assertEquals(total, accessLog.getWritten() + accessLog.getDropped());
+        }
+    }
+
+    public void testServerLogsTransfers() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AccessLog accessLog = new AccessLog(out, 16, 1);
+        TFTPBaseServer server = new TFTPBaseServer(new IFileNameMapper() {
+            @Override
+            public InputStream openInputStream(String fileName) throws IOException {
+                return new ByteArrayInputStream(new byte[1000]);
+            }
+
+            @Override
+            public OutputStream openOutputStream(String fileName) throws IOException {
+                return null;
+            }
+
+            @Override
+            public boolean canRead() {
+                return true;
+            }
+
+            @Override
+            public boolean canWrite() {
+                return false;
+            }
+        }, 8098);
+        try {
+            server.setAccessLog(accessLog);
+            TFTPClient client = new TFTPClient();
+            client.open();
+            client.receiveFile("boot.img", TFTPClient.BINARY_MODE, new ByteArrayOutputStream(), "127.0.0.1", 8098);
+            client.close();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (accessLog.getWritten() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            server.shutdown();
+            accessLog.close();
+        }
+        String line = out.toString("UTF-8");
+        assertTrue(line, line.contains("\"file\":\"boot.img\",\"direction\":\"read\",\"mode\":\"octet\",\"options\":{},\"bytes\":1000,\"blocks\":2"));
+        assertTrue(line, line.contains("\"outcome\":\"ok\""));
+    }
+}
@@ -0,0 +1,77 @@
+package com.horstmeier.java.tftp;
+
+import junit.framework.TestCase;
+import org.apache.commons.net.tftp.TFTP;
+import org.apache.commons.net.tftp.TFTPAckPacket;
+import org.apache.commons.net.tftp.TFTPReadRequestPacket;
+
+import java.net.InetAddress;
+
+public class AdmissionControllerTest extends TestCase {
+
+    private TFTPReadRequestPacket request(String address) throws Exception {
+        return new TFTPReadRequestPacket(InetAddress.getByName(address), 1234, "file", TFTP.BINARY_MODE);
+    }
+
+    public void testDropsNonRequests() throws Exception {
+        AdmissionController controller = new AdmissionController();
+        assertFalse(controller.admit(new TFTPAckPacket(InetAddress.getByName("127.0.0.1"), 1234, 1)));
+        assertEquals(1, controller.getDropCount(AdmissionController.DropReason.NOT_A_REQUEST));
+        assertEquals(0, controller.getInFlight());
+    }
+
+    public void testRateLimitPerSource() throws Exception {
+        AdmissionController controller = new AdmissionController();
+        controller.setRateLimit(0.5, 3);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(controller.admit(request("10.0.0.1")));
+        }
+        assertFalse(controller.admit(request("10.0.0.1")));
+        assertEquals(1, controller.getDropCount(AdmissionController.DropReason.RATE_LIMITED));
+
+        // other sources have their own bucket
+        assertTrue(controller.admit(request("10.0.0.2")));
+        assertEquals(2, controller.getTrackedSources());
+    }
+
+    public void testSourceTableIsBounded() throws Exception {
+        AdmissionController controller = new AdmissionController();
+        controller.setRateLimit(0.5, 1);
+        controller.setMaxSources(2);
+
+        assertTrue(controller.admit(request("10.0.0.1")));
+        assertTrue(controller.admit(request("10.0.0.2")));
+        assertFalse(controller.admit(request("10.0.0.3")));
+        assertEquals(1, controller.getDropCount(AdmissionController.DropReason.SOURCE_TABLE_FULL));
+    }
+
+    public void testMaxInFlight() throws Exception {
+        AdmissionController controller = new AdmissionController();
+        controller.setMaxInFlight(2);
+
+        assertTrue(controller.admit(request("10.0.0.1")));
+        assertTrue(controller.admit(request("10.0.0.1")));
+        assertFalse(controller.admit(request("10.0.0.1")));
+        assertEquals(1, controller.getDropCount(AdmissionController.DropReason.TOO_MANY_TRANSFERS));
+
+        controller.release();
+        assertTrue(controller.admit(request("10.0.0.1")));
+        assertEquals(2, controller.getInFlight());
+    }
+
+    public void testFullServerKeepsTokens() throws Exception {
+        AdmissionController controller = new AdmissionController();
+        controller.setRateLimit(0.5, 1);
+        controller.setMaxInFlight(1);
+
+        assertTrue(controller.admit(request("10.0.0.1")));
+        assertFalse(controller.admit(request("10.0.0.2")));
+        assertEquals(1, controller.getDropCount(AdmissionController.DropReason.TOO_MANY_TRANSFERS));
+
+        // the rejected request did not use up the token of 10.0.0.2
+        controller.release();
+        assertTrue(controller.admit(request("10.0.0.2")));
+        assertEquals(0, controller.getDropCount(AdmissionController.DropReason.RATE_LIMITED));
+    }
+}
@@ -0,0 +1,102 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import com.horstmeier.java.tftp.interfaces.RequestContext;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class AsyncFileMapperAdapterTest extends TestCase {
+
+    private static RequestContext context(String fileName) {
+        return new RequestContext(1, new InetSocketAddress("127.0.0.1", 2000), fileName, "octet", true,
+                Collections.<String, String>emptyMap());
+    }
+
+    private static class GateMapper implements IFileNameMapper {
+        final CountDownLatch opening_ = new CountDownLatch(1);
+        final CountDownLatch release_ = new CountDownLatch(1);
+        final AtomicBoolean closed_ = new AtomicBoolean();
+
+        @Override
+        public InputStream openInputStream(String fileName) throws IOException {
+            if (fileName.equals("missing")) {
+                throw new FileNotFoundException(fileName);
+            }
+            opening_.countDown();
+            // ignores interrupts to finish after the cancel
+            while (true) {
+                try {
+                    release_.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // keep waiting
+                }
+            }
+            return new ByteArrayInputStream(fileName.getBytes()) {
+                @Override
+                public void close() throws IOException {
+                    closed_.set(true);
+                }
+            };
+        }
+
+        @Override
+        public OutputStream openOutputStream(String fileName) throws IOException {
+            throw new IOException("read only");
+        }
+
+        @Override
+        public boolean canRead() {
+            return true;
+        }
+
+        @Override
+        public boolean canWrite() {
+            return false;
+        }
+    }
+
+    public void testFailureCompletesExceptionally() throws Exception {
+        AsyncFileMapperAdapter adapter = new AsyncFileMapperAdapter(new GateMapper());
+        try {
+            adapter.openInputStream(context("missing")).get(5, TimeUnit.SECONDS);
+            fail("missing file was opened");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FileNotFoundException);
+        }
+    }
+
+    public void testStreamOfCancelledOpenIsClosed() throws Exception {
+        GateMapper mapper = new GateMapper();
+        AsyncFileMapperAdapter adapter = new AsyncFileMapperAdapter(mapper);
+        CompletableFuture<InputStream> future = adapter.openInputStream(context("file"));
+        assertTrue(mapper.opening_.await(5, TimeUnit.SECONDS));
+        assertTrue(future.cancel(true));
+        mapper.release_.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!mapper.closed_.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(mapper.closed_.get());
+    }
+
+    public void testInlineExecutor() throws Exception {
+        GateMapper mapper = new GateMapper();
+        mapper.release_.countDown();
+        CompletableFuture<InputStream> future = new AsyncFileMapperAdapter(mapper, null).openInputStream(context("file"));
+        assertTrue(future.isDone());
+        assertEquals('f', future.get().read());
+    }
+}
@@ -0,0 +1,92 @@
+package com.horstmeier.java.tftp;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class BootSequencePredictorTest extends TestCase {
+
+    private static final String[] BOOT = {"pxelinux.0", "ldlinux.c32", "pxelinux.cfg/default", "vmlinuz", "initrd.img"};
+
+    private static void boot(BootSequencePredictor predictor, String client, long start) {
+        for (int i = 0; i < BOOT.length; i++) {
+            predictor.recordRead(client, BOOT[i], start + i * 100);
+        }
+    }
+
+    public void testLearnsAndChainsSuccessors() {
+        BootSequencePredictor predictor = new BootSequencePredictor();
+        boot(predictor, "10.0.0.1", 0);
+        // seen once only
+        assertEquals(Collections.<String>emptyList(), predictor.predict("10.0.0.2", "pxelinux.0", 1000));
+
+        boot(predictor, "10.0.0.2", 1000);
+        assertEquals(Arrays.asList("ldlinux.c32", "pxelinux.cfg/default", "vmlinuz", "initrd.img"),
+                predictor.predict("10.0.0.3", "pxelinux.0", 2000));
+        predictor.setMaxDepth(2);
+        assertEquals(Arrays.asList("vmlinuz", "initrd.img"), predictor.predict("10.0.0.3", "pxelinux.cfg/default", 2000));
+    }
+
+    public void testCountsHitsOfPredictions() {
+        BootSequencePredictor predictor = new BootSequencePredictor();
+        boot(predictor, "10.0.0.1", 0);
+        boot(predictor, "10.0.0.2", 0);
+
+        assertFalse(predictor.recordRead("10.0.0.3", "pxelinux.0", 1000));
+        for (String name : predictor.predict("10.0.0.3", "pxelinux.0", 1000)) {
+            predictor.prefetched("10.0.0.3", name, 1000);
+        }
+        assertTrue(predictor.recordRead("10.0.0.3", "ldlinux.c32", 1100));
+        // other clients did not get the prediction
+        assertFalse(predictor.recordRead("10.0.0.4", "ldlinux.c32", 1100));
+        // predictions expire with the window
+        assertFalse(predictor.recordRead("10.0.0.3", "vmlinuz", 1000 + predictor.getWindowMillis() + 1));
+    }
+
+    public void testCountsOnlyPrefetchedFiles() {
+        BootSequencePredictor predictor = new BootSequencePredictor();
+        boot(predictor, "10.0.0.1", 0);
+        boot(predictor, "10.0.0.2", 0);
+
+        // predicted, but the prefetch was not started
+        assertFalse(predictor.predict("10.0.0.3", "pxelinux.0", 1000).isEmpty());
+        assertFalse(predictor.recordRead("10.0.0.3", "ldlinux.c32", 1100));
+
+        // one hit per prefetch
+        int prefetches = 0;
+        int hits = 0;
+        for (int round = 0; round < 3; round++) {
+            if (round == 0) {
+                predictor.prefetched("10.0.0.4", "ldlinux.c32", 2000);
+                prefetches++;
+            }
+            predictor.predict("10.0.0.4", "pxelinux.0", 2000 + round);
+            if (predictor.recordRead("10.0.0.4", "ldlinux.c32", 2000 + round)) {
+                hits++;
+            }
+        }
+        assertEquals(1, hits);
+        assertTrue(hits <= prefetches);
+    }
+
+    public void testIgnoresRareAndSlowSuccessors() {
+        BootSequencePredictor predictor = new BootSequencePredictor();
+        boot(predictor, "10.0.0.1", 0);
+        boot(predictor, "10.0.0.2", 0);
+        // three times something else after pxelinux.0, the learned successor is below the confidence now
+        for (int i = 0; i < 3; i++) {
+            predictor.recordRead("10.0.1." + i, "pxelinux.0", 0);
+            predictor.recordRead("10.0.1." + i, "other" + i, 10);
+        }
+        assertEquals(Collections.<String>emptyList(), predictor.predict("10.0.0.3", "pxelinux.0", 100));
+
+        // requests further apart than the window are no sequence
+        BootSequencePredictor slow = new BootSequencePredictor();
+        for (int i = 0; i < 3; i++) {
+            slow.recordRead("10.0.0." + i, "a", 0);
+            slow.recordRead("10.0.0." + i, "b", slow.getWindowMillis() + 1);
+        }
+        assertEquals(Collections.<String>emptyList(), slow.predict("10.0.0.9", "a", 0));
+    }
+}
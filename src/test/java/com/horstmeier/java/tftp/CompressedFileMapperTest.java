@@ -0,0 +1,182 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class CompressedFileMapperTest extends TestCase {
+
+    private Path root_;
+    private DefaultFileMapper files_;
+    private CompressedFileMapper mapper_;
+
+    public void setUp() throws Exception {
+        root_ = Files.createTempDirectory("tftp-compressed");
+        OutputStream os = new GZIPOutputStream(new FileOutputStream(root_.resolve("firmware.bin.gz").toFile()));
+        os.write("compressed firmware".getBytes());
+        os.close();
+        Files.write(root_.resolve("plain.txt"), "plain".getBytes());
+        files_ = new DefaultFileMapper(root_.toFile(), root_.toFile(), Mode.GET_AND_PUT);
+        mapper_ = new CompressedFileMapper(files_);
+    }
+
+    public void tearDown() throws Exception {
+        files_.close();
+        File[] children = root_.toFile().listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        root_.toFile().delete();
+    }
+
+    private static String read(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                os.write(buffer, 0, n);
+            }
+            return os.toString();
+        } finally {
+            is.close();
+        }
+    }
+
+    public void testServesDecompressedAndCaches() throws Exception {
+        assertEquals("compressed firmware", read(mapper_.openInputStream("firmware.bin")));
+        assertEquals(0, mapper_.getCache().getHits());
+        assertEquals(1, mapper_.getCache().getEntryCount());
+        assertEquals("compressed firmware", read(mapper_.openInputStream("firmware.bin")));
+        assertEquals(1, mapper_.getCache().getHits());
+    }
+
+    public void testFallsBackToPlainFile() throws Exception {
+        assertEquals("plain", read(mapper_.openInputStream("plain.txt")));
+        try {
+            mapper_.openInputStream("missing");
+            fail("missing file was opened");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    public void testCompressesUploads() throws Exception {
+        mapper_.setCompressUploads(true);
+        OutputStream os = mapper_.openOutputStream("backup.cfg");
+        os.write("hostname router1".getBytes());
+        os.close();
+        assertEquals("hostname router1", read(new GZIPInputStream(new FileInputStream(root_.resolve("backup.cfg.gz").toFile()))));
+        assertEquals("hostname router1", read(mapper_.openInputStream("backup.cfg")));
+    }
+
+    public void testClosesCorruptFile() throws Exception {
+        final boolean[] closed = {false};
+        CompressedFileMapper mapper = new CompressedFileMapper(new IFileNameMapper() {
+            @Override
+            public InputStream openInputStream(String fileName) throws IOException {
+                // no IContentInfo, so the stream is not cached
+                return new ByteArrayInputStream("not gzip".getBytes()) {
+                    @Override
+                    public void close() throws IOException {
+                        closed[0] = true;
+                    }
+                };
+            }
+
+            @Override
+            public OutputStream openOutputStream(String fileName) throws IOException {
+                return null;
+            }
+
+            @Override
+            public boolean canRead() {
+                return true;
+            }
+
+            @Override
+            public boolean canWrite() {
+                return false;
+            }
+        });
+        try {
+            mapper.openInputStream("firmware.bin");
+            fail("corrupt file was opened");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(closed[0]);
+    }
+
+    public void testCachesWhenClosedWithoutReadingTheEnd() throws Exception {
+        InputStream is = mapper_.openInputStream("firmware.bin");
+        byte[] buffer = new byte["compressed firmware".length()];
+        int offset = 0;
+        while (offset < buffer.length) {
+            offset += is.read(buffer, offset, buffer.length - offset);
+        }
+        is.close();
+        assertEquals(1, mapper_.getCache().getEntryCount());
+        assertEquals("compressed firmware", read(mapper_.openInputStream("firmware.bin")));
+        assertEquals(1, mapper_.getCache().getHits());
+    }
+
+    public void testDoesNotCachePartiallyReadFile() throws Exception {
+        InputStream is = mapper_.openInputStream("firmware.bin");
+        is.read(new byte[5]);
+        is.close();
+        assertEquals(0, mapper_.getCache().getEntryCount());
+    }
+
+    public void testRemembersMissingCompressedFile() throws Exception {
+        final int[] opens = {0};
+        CompressedFileMapper mapper = new CompressedFileMapper(new IFileNameMapper() {
+            @Override
+            public InputStream openInputStream(String fileName) throws IOException {
+                if (fileName.endsWith(".gz")) {
+                    opens[0]++;
+                }
+                return files_.openInputStream(fileName);
+            }
+
+            @Override
+            public OutputStream openOutputStream(String fileName) throws IOException {
+                return files_.openOutputStream(fileName);
+            }
+
+            @Override
+            public boolean canRead() {
+                return true;
+            }
+
+            @Override
+            public boolean canWrite() {
+                return true;
+            }
+        });
+        assertEquals("plain", read(mapper.openInputStream("plain.txt")));
+        assertEquals("plain", read(mapper.openInputStream("plain.txt")));
+        assertEquals(1, opens[0]);
+
+        // a compressed upload is served right away
+        mapper.setCompressUploads(true);
+        OutputStream os = mapper.openOutputStream("plain.txt");
+        os.write("compressed".getBytes());
+        os.close();
+        assertEquals("compressed", read(mapper.openInputStream("plain.txt")));
+        assertEquals(2, opens[0]);
+
+        mapper.setMissExpiryMillis(0);
+        Files.write(root_.resolve("other.txt"), "other".getBytes());
+        assertEquals("other", read(mapper.openInputStream("other.txt")));
+        assertEquals("other", read(mapper.openInputStream("other.txt")));
+        assertEquals(4, opens[0]);
+    }
+}
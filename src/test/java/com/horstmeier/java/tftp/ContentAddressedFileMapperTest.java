@@ -0,0 +1,150 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IContentInfo;
+import com.horstmeier.java.tftp.interfaces.IUploadStream;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class ContentAddressedFileMapperTest extends TestCase {
+
+    private Path store_;
+    private ContentAddressedFileMapper mapper_;
+
+    public void setUp() throws Exception {
+        store_ = Files.createTempDirectory("tftp-cas");
+        mapper_ = new ContentAddressedFileMapper(store_.toFile(), Mode.GET_AND_PUT);
+    }
+
+    public void tearDown() throws Exception {
+        mapper_.close();
+        delete(store_.toFile());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static int countFiles(File directory) {
+        int count = 0;
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                count += child.isDirectory() ? countFiles(child) : 1;
+            }
+        }
+        return count;
+    }
+
+    private static String read(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                os.write(buffer, 0, n);
+            }
+            return os.toString();
+        } finally {
+            is.close();
+        }
+    }
+
+    private void write(String name, String content) throws IOException {
+        OutputStream os = mapper_.openOutputStream(name);
+        os.write(content.getBytes());
+        os.close();
+    }
+
+    public void testIdenticalContentIsStoredOnce() throws Exception {
+        write("host1/vmlinuz", "kernel");
+        write("host2/vmlinuz", "kernel");
+        write("host2/initrd", "initrd");
+
+        assertEquals(2, countFiles(store_.resolve("blobs").toFile()));
+        InputStream is1 = mapper_.openInputStream("host1/vmlinuz");
+        InputStream is2 = mapper_.openInputStream("host2/vmlinuz");
+        assertEquals(((IContentInfo) is1).getContentVersion(), ((IContentInfo) is2).getContentVersion());
+        assertEquals("kernel", read(is1));
+        assertEquals("kernel", read(is2));
+        assertEquals("initrd", read(mapper_.openInputStream("host2/initrd")));
+    }
+
+    public void testIndexIsLoadedAtStartup() throws Exception {
+        write("pxelinux.cfg/default", "old");
+        write("pxelinux.cfg/default", "new");
+        write("name with spaces\nand newline", "odd");
+        mapper_.close();
+
+        // a crash in the middle of an update leaves a torn line
+        Files.write(store_.resolve("index"), "0123".getBytes(), java.nio.file.StandardOpenOption.APPEND);
+
+        mapper_ = new ContentAddressedFileMapper(store_.toFile(), Mode.GET_AND_PUT);
+        assertEquals(2, mapper_.getNameCount());
+        write("later", "appended after the torn line");
+        mapper_.close();
+        mapper_ = new ContentAddressedFileMapper(store_.toFile(), Mode.GET_AND_PUT);
+        assertEquals("appended after the torn line", read(mapper_.openInputStream("later")));
+        assertEquals("new", read(mapper_.openInputStream("pxelinux.cfg/default")));
+        assertEquals("odd", read(mapper_.openInputStream("name with spaces\nand newline")));
+    }
+
+    public void testCorruptJournalLineIsSkipped() throws Exception {
+        write("good", "content");
+        String hash = mapper_.getHash("good");
+        mapper_.close();
+
+        // a bad percent escape
+        Files.write(store_.resolve("index"), (hash + " bad%zzname\n").getBytes(), java.nio.file.StandardOpenOption.APPEND);
+
+        mapper_ = new ContentAddressedFileMapper(store_.toFile(), Mode.GET_AND_PUT);
+        assertEquals(1, mapper_.getNameCount());
+        assertEquals("content", read(mapper_.openInputStream("good")));
+    }
+
+    public void testAbortedUploadIsNotRecorded() throws Exception {
+        OutputStream os = mapper_.openOutputStream("partial");
+        os.write("data".getBytes());
+        ((IUploadStream) os).abort();
+        try {
+            mapper_.openInputStream("partial");
+            fail("aborted upload was recorded");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        assertEquals(0, countFiles(store_.resolve("tmp").toFile()));
+        assertEquals(0, countFiles(store_.resolve("blobs").toFile()));
+    }
+
+    public void testImportTree() throws Exception {
+        Path tree = Files.createTempDirectory("tftp-tree");
+        try {
+            Files.createDirectories(tree.resolve("a"));
+            Files.createDirectories(tree.resolve("b"));
+            Files.write(tree.resolve("a/kernel"), "same".getBytes());
+            Files.write(tree.resolve("b/kernel"), "same".getBytes());
+            assertEquals(2, mapper_.importTree(tree.toFile()));
+            assertEquals(mapper_.getHash("a/kernel"), mapper_.getHash("b/kernel"));
+            assertEquals(1, countFiles(store_.resolve("blobs").toFile()));
+        } finally {
+            delete(tree.toFile());
+        }
+    }
+
+    public void testNamesAreNormalized() throws Exception {
+        write("/boot\\vmlinuz", "kernel");
+        assertEquals("kernel", read(mapper_.openInputStream("boot/vmlinuz")));
+        assertEquals("kernel", read(mapper_.openInputStream("/boot/vmlinuz")));
+        assertEquals("kernel", read(mapper_.openInputStream("boot\\vmlinuz")));
+        assertEquals(1, mapper_.getNameCount());
+        assertNotNull(mapper_.getHash("//boot/vmlinuz"));
+    }
+}
@@ -0,0 +1,281 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IUploadStream;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+public class DefaultFileMapperTest extends TestCase {
+
+    private Path root_;
+    private Path outside_;
+    private DefaultFileMapper mapper_;
+
+    public void setUp() throws Exception {
+        root_ = Files.createTempDirectory("tftp-root");
+        outside_ = Files.createTempDirectory("tftp-outside");
+        Files.createDirectories(root_.resolve("boot"));
+        Files.write(root_.resolve("boot/kernel"), "inside".getBytes());
+        Files.write(outside_.resolve("kernel"), "outside".getBytes());
+        mapper_ = new DefaultFileMapper(root_.toFile(), root_.toFile(), Mode.GET_AND_PUT);
+    }
+
+    public void tearDown() throws Exception {
+        mapper_.close();
+        delete(root_.toFile());
+        delete(outside_.toFile());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null && !Files.isSymbolicLink(file.toPath())) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String read(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                os.write(buffer, 0, n);
+            }
+            return os.toString();
+        } finally {
+            is.close();
+        }
+    }
+
+    public void testRejectsPathsOutsideRoot() throws Exception {
+        try {
+            mapper_.openInputStream("../" + outside_.getFileName() + "/kernel");
+            fail("escaped the server root");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testCachedPathIsInvalidatedWhenDirectoryIsReplaced() throws Exception {
+        assertEquals("inside", read(mapper_.openInputStream("boot/kernel")));
+        assertEquals("inside", read(mapper_.openInputStream("boot/kernel")));
+
+        // swap the directory for a symlink pointing outside of the root - the cached path must not be used any more
+        delete(root_.resolve("boot").toFile());
+        Files.createSymbolicLink(root_.resolve("boot"), outside_);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                mapper_.openInputStream("boot/kernel").close();
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("outside of tftp server root"));
+                break;
+            }
+            assertTrue("cached path was not invalidated", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    public void testCachedFileReplacedBySymlinkIsNotFollowed() throws Exception {
+        assertEquals("inside", read(mapper_.openInputStream("boot/kernel")));
+
+        // the next open must refuse the link, before the watch service reports the change
+        Files.delete(root_.resolve("boot/kernel"));
+        Files.createSymbolicLink(root_.resolve("boot/kernel"), outside_.resolve("kernel"));
+        try {
+            mapper_.openInputStream("boot/kernel").close();
+            fail("symlink was followed");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("outside of tftp server root"));
+        }
+    }
+
+    public void testWriteCreatesDirectories() throws Exception {
+        OutputStream os = mapper_.openOutputStream("configs/host1/backup");
+        os.write("data".getBytes());
+        os.close();
+        os = mapper_.openOutputStream("configs/host1/backup2");
+        os.close();
+        assertEquals("data", read(mapper_.openInputStream("configs/host1/backup")));
+
+        delete(root_.resolve("configs").toFile());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                mapper_.openOutputStream("configs/host1/backup").close();
+                break;
+            } catch (FileNotFoundException e) {
+                assertTrue("known directory was not invalidated", System.currentTimeMillis() < deadline);
+                Thread.sleep(20);
+            }
+        }
+        assertTrue(Files.exists(root_.resolve("configs/host1/backup")));
+    }
+
+    public void testUploadIsPublishedOnClose() throws Exception {
+        OutputStream os = mapper_.openOutputStream("boot/kernel");
+        ((IUploadStream) os).preallocate(4096);
+        os.write("replaced".getBytes());
+        assertEquals("inside", read(mapper_.openInputStream("boot/kernel")));
+        os.close();
+        assertEquals("replaced", read(mapper_.openInputStream("boot/kernel")));
+        assertEquals(1, root_.resolve("boot").toFile().list().length);
+    }
+
+    public void testAbortedUploadLeavesNothing() throws Exception {
+        OutputStream os = mapper_.openOutputStream("boot/kernel");
+        os.write("partial".getBytes());
+        ((IUploadStream) os).abort();
+        os.close();
+        assertEquals("inside", read(mapper_.openInputStream("boot/kernel")));
+        assertEquals(1, root_.resolve("boot").toFile().list().length);
+    }
+
+    public void testInterruptedCommitStillPublishes() throws Exception {
+        mapper_.setGroupCommitWindow(500);
+        final OutputStream os = mapper_.openOutputStream("boot/kernel");
+        os.write("committed".getBytes());
+        final Exception[] error = new Exception[1];
+        final boolean[] interrupted = new boolean[1];
+        Thread closing = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    os.close();
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+                interrupted[0] = Thread.currentThread().isInterrupted();
+                // what an aborted transfer does next - must not undo the commit
+                ((IUploadStream) os).abort();
+            }
+        });
+        closing.start();
+        Thread.sleep(100);
+        closing.interrupt();
+        closing.join(5000);
+        assertNull(error[0]);
+        assertTrue(interrupted[0]);
+        assertEquals("committed", read(mapper_.openInputStream("boot/kernel")));
+        assertEquals(1, root_.resolve("boot").toFile().list().length);
+    }
+
+    public void testConcurrentUploadsAreCommittedTogether() throws Exception {
+        mapper_.setGroupCommitWindow(20);
+        Thread[] threads = new Thread[8];
+        final IOException[] errors = new IOException[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        OutputStream os = mapper_.openOutputStream("backups/device" + n);
+                        os.write(("config " + n).getBytes());
+                        os.close();
+                    } catch (IOException e) {
+                        errors[n] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertNull(errors[i]);
+            assertEquals("config " + i, read(mapper_.openInputStream("backups/device" + i)));
+        }
+        assertEquals(threads.length, root_.resolve("backups").toFile().list().length);
+    }
+
+    public void testWarmUpKeepsIndexForRequests() throws Exception {
+        mapper_.warmUp();
+        assertNotNull(mapper_.getIndex().getFile("boot/kernel"));
+        try {
+            mapper_.openInputStream("boot/missing");
+            fail("missing file was opened");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+
+        // an upload is found right away
+        OutputStream os = mapper_.openOutputStream("boot/initrd");
+        os.write("initrd".getBytes());
+        os.close();
+        assertEquals("initrd", read(mapper_.openInputStream("boot/initrd")));
+
+        // a file added by other means is found once the watch event arrived
+        Files.write(root_.resolve("boot/added"), "added".getBytes());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                assertEquals("added", read(mapper_.openInputStream("boot/added")));
+                break;
+            } catch (FileNotFoundException e) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    public void testWatchedFileTreeKnowsMissingNames() throws Exception {
+        Path root = root_.toFile().getCanonicalFile().toPath();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        WatchedFileTree tree = WatchedFileTree.scan(root, null, pool, 100);
+        try {
+            assertTrue(tree.isMissing(root.resolve("boot/missing")));
+            assertTrue(tree.isMissing(root.resolve("missing")));
+            assertFalse(tree.isMissing(root.resolve("boot/kernel")));
+            assertFalse(tree.isMissing(root.resolve("boot")));
+            assertFalse(tree.isMissing(root.resolve("unknown/missing")));
+            tree.forget(root.resolve("boot"));
+            assertFalse(tree.isMissing(root.resolve("boot/missing")));
+            assertTrue(tree.isMissing(root.resolve("missing")));
+        } finally {
+            tree.close();
+            pool.shutdown();
+        }
+
+        // directories beyond the limit are not watched, names in them are never known to be missing
+        pool = new ForkJoinPool(2);
+        tree = WatchedFileTree.scan(root, null, pool, 0);
+        try {
+            assertFalse(tree.isMissing(root.resolve("missing")));
+        } finally {
+            tree.close();
+            pool.shutdown();
+        }
+    }
+
+    public void testWarmUpIndexesTreeAndReusesSnapshot() throws Exception {
+        File snapshot = outside_.resolve("index.snapshot").toFile();
+        Files.createDirectories(root_.resolve("pxelinux.cfg"));
+        Files.write(root_.resolve("pxelinux.cfg/default"), "menu".getBytes());
+        mapper_.setIndexSnapshot(snapshot);
+        mapper_.setPreloadPatterns("pxelinux.cfg/*");
+        mapper_.warmUp();
+
+        FileTreeIndex index = FileTreeIndex.load(snapshot);
+        assertEquals(2, index.getFileCount());
+        assertEquals(6, index.getFile("boot/kernel").getSize());
+        for (String name : snapshot.getParentFile().list()) {
+            assertFalse(name, name.endsWith(".part"));
+        }
+
+        // a new directory and a new file in a known directory are found, unchanged directories come from the snapshot
+        Thread.sleep(10);
+        Files.createDirectories(root_.resolve("host1"));
+        Files.write(root_.resolve("host1/config"), "host".getBytes());
+        Files.write(root_.resolve("boot/initrd"), "initrd".getBytes());
+        mapper_.warmUp();
+        index = FileTreeIndex.load(snapshot);
+        assertEquals(4, index.getFileCount());
+        assertNotNull(index.getFile("host1/config"));
+        assertNotNull(index.getFile("boot/initrd"));
+    }
+}
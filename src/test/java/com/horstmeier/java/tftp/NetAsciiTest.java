@@ -0,0 +1,78 @@
+package com.horstmeier.java.tftp;
+
+import junit.framework.TestCase;
+import org.apache.commons.net.io.ToNetASCIIInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+public class NetAsciiTest extends TestCase {
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        int b;
+        while ((b = is.read()) >= 0) {
+            os.write(b);
+        }
+        return os.toByteArray();
+    }
+
+    private static byte[] randomText(int length) {
+        byte[] alphabet = "ab\r\n\0".getBytes();
+        Random random = new Random(7);
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        return text;
+    }
+
+    public void testEncodesLikeCommonsNet() throws Exception {
+        byte[] text = randomText(100000);
+        byte[] expected = readAll(new ToNetASCIIInputStream(new ByteArrayInputStream(text)));
+        assertEquals(new String(expected, "ISO-8859-1"), new String(readAll(new NetAsciiInputStream(new ByteArrayInputStream(text))), "ISO-8859-1"));
+
+        // block reads must give the same result, whatever the block boundaries are
+        InputStream is = new NetAsciiInputStream(new ByteArrayInputStream(text));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] block = new byte[512];
+        int n;
+        while ((n = is.read(block)) > 0) {
+            os.write(block, 0, n);
+        }
+        assertEquals(new String(expected, "ISO-8859-1"), new String(os.toByteArray(), "ISO-8859-1"));
+    }
+
+    public void testDecodeSplitsAtBlockBoundaries() throws Exception {
+        if (!NetAscii.DECODING_REQUIRED) {
+            return;
+        }
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        NetAsciiOutputStream os = new NetAsciiOutputStream(target);
+        os.write("line1\r".getBytes());
+        os.write("\nbare cr\r".getBytes());
+        os.write(new byte[]{0});
+        os.write("x\rtrailing\r".getBytes());
+        os.close();
+        String sep = System.lineSeparator();
+        assertEquals("line1" + sep + "bare cr\rx\rtrailing\r", target.toString("ISO-8859-1"));
+    }
+
+    public void testRoundTrip() throws Exception {
+        if (!NetAscii.DECODING_REQUIRED || !System.lineSeparator().equals("\n")) {
+            return;
+        }
+        byte[] text = "menu\nlabel linux\n  kernel vmlinuz\n\n".getBytes();
+        byte[] encoded = readAll(new NetAsciiInputStream(new ByteArrayInputStream(text)));
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        NetAsciiOutputStream os = new NetAsciiOutputStream(decoded);
+        for (int i = 0; i < encoded.length; i += 3) {
+            os.write(encoded, i, Math.min(3, encoded.length - i));
+        }
+        os.close();
+        assertEquals(new String(text), decoded.toString());
+    }
+}
@@ -0,0 +1,239 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import com.horstmeier.java.tftp.proxyserver.PeerCacheFileMapper;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PeerCacheFileMapperTest extends TestCase {
+
+    private static final List<String> MEMBERS = Arrays.asList("127.0.0.1:8181", "127.0.0.1:8182", "127.0.0.1:8183");
+
+    private static class CountingOrigin implements IFileNameMapper {
+        final AtomicInteger opens_ = new AtomicInteger();
+
+        @Override
+        public InputStream openInputStream(String fileName) throws IOException {
+            opens_.incrementAndGet();
+            if (fileName.startsWith("missing")) {
+                throw new FileNotFoundException(fileName);
+            }
+            return new ByteArrayInputStream(("content of " + fileName).getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public OutputStream openOutputStream(String fileName) throws IOException {
+            return null;
+        }
+
+        @Override
+        public boolean canRead() {
+            return true;
+        }
+
+        @Override
+        public boolean canWrite() {
+            return false;
+        }
+    }
+
+    private static String read(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = is.read(buffer)) > 0) {
+            os.write(buffer, 0, n);
+        }
+        is.close();
+        return os.toString("UTF-8");
+    }
+
+    public void testMembersShareOneOriginFetch() throws Exception {
+        CountingOrigin origin = new CountingOrigin();
+        PeerCacheFileMapper[] nodes = new PeerCacheFileMapper[MEMBERS.size()];
+        try {
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = new PeerCacheFileMapper(origin, MEMBERS.get(i), MEMBERS, 3600000);
+            }
+            String[] files = {"pxelinux.0", "images/vmlinuz", "images/initrd img", "\u00e4\u00f6\u00fc"};
+            for (String file : files) {
+                String owner = nodes[0].getOwner(file);
+                for (PeerCacheFileMapper node : nodes) {
+                    assertEquals(owner, node.getOwner(file));
+                    assertEquals("content of " + file, read(node.openInputStream(file)));
+                }
+            }
+            assertEquals(files.length, origin.opens_.get());
+            long peerFetches = 0;
+            for (PeerCacheFileMapper node : nodes) {
+                peerFetches += node.getPeerFetches();
+            }
+            assertEquals(files.length * (nodes.length - 1), peerFetches);
+
+            try {
+                nodes[0].openInputStream("missing ");
+                fail("missing file was served");
+            } catch (FileNotFoundException e) {
+                // expected, also if a peer owns it
+            }
+        } finally {
+            for (PeerCacheFileMapper node : nodes) {
+                if (node != null) {
+                    node.close();
+                }
+            }
+        }
+    }
+
+    public void testFailedPeerIsSkipped() throws Exception {
+        CountingOrigin origin = new CountingOrigin();
+        PeerCacheFileMapper first = new PeerCacheFileMapper(origin, MEMBERS.get(0), MEMBERS.subList(0, 2), 3600000);
+        PeerCacheFileMapper second = new PeerCacheFileMapper(origin, MEMBERS.get(1), MEMBERS.subList(0, 2), 3600000);
+        try {
+            // a file owned by the second member
+            String file = null;
+            for (int i = 0; file == null; i++) {
+                if (first.getOwner("file" + i).equals(MEMBERS.get(1))) {
+                    file = "file" + i;
+                }
+            }
+            second.close();
+            assertEquals("content of " + file, read(first.openInputStream(file)));
+            assertEquals(Arrays.asList(MEMBERS.get(0)), first.getHealthyMembers());
+            assertEquals(MEMBERS.get(0), first.getOwner(file));
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    /*
+     * An origin that delivers the file in parts, slower than the peer timeout in total.
+     */
+    private static class SlowOrigin extends CountingOrigin {
+        @Override
+        public InputStream openInputStream(final String fileName) throws IOException {
+            opens_.incrementAndGet();
+            return new InputStream() {
+                private int parts_ = 0;
+
+                @Override
+                public int read() throws IOException {
+                    throw new IOException("not used");
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (parts_ == 5) {
+                        return -1;
+                    }
+                    try {
+                        Thread.sleep(150);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    parts_++;
+                    byte[] part = (fileName + " part " + parts_ + "\n").getBytes(StandardCharsets.UTF_8);
+                    System.arraycopy(part, 0, b, off, part.length);
+                    return part.length;
+                }
+            };
+        }
+    }
+
+    public void testSlowOriginIsStreamedThroughTheOwner() throws Exception {
+        List<String> members = Arrays.asList("127.0.0.1:8185", "127.0.0.1:8186");
+        SlowOrigin origin = new SlowOrigin();
+        PeerCacheFileMapper first = new PeerCacheFileMapper(origin, members.get(0), members, 3600000);
+        PeerCacheFileMapper second = new PeerCacheFileMapper(origin, members.get(1), members, 3600000);
+        try {
+            first.setTimeoutMillis(100);
+            // shorter than the whole fetch, longer than a part
+            first.setBodyTimeoutMillis(500);
+            String file = null;
+            for (int i = 0; file == null; i++) {
+                if (first.getOwner("file" + i).equals(members.get(1))) {
+                    file = "file" + i;
+                }
+            }
+            StringBuilder expected = new StringBuilder();
+            for (int part = 1; part <= 5; part++) {
+                expected.append(file).append(" part ").append(part).append('\n');
+            }
+            assertEquals(expected.toString(), read(first.openInputStream(file)));
+            assertEquals(1, first.getPeerFetches());
+            assertEquals(members, first.getHealthyMembers());
+
+            // the owner cached it while passing it on
+            assertEquals(expected.toString(), read(second.openInputStream(file)));
+            assertEquals(1, origin.opens_.get());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    private static String expectedParts(String file) {
+        StringBuilder expected = new StringBuilder();
+        for (int part = 1; part <= 5; part++) {
+            expected.append(file).append(" part ").append(part).append('\n');
+        }
+        return expected.toString();
+    }
+
+    public void testConcurrentRequestsReadAlong() throws Exception {
+        List<String> members = Arrays.asList("127.0.0.1:8187");
+        SlowOrigin origin = new SlowOrigin();
+        PeerCacheFileMapper node = new PeerCacheFileMapper(origin, members.get(0), members, 3600000);
+        try {
+            node.setShareTimeoutMillis(400);
+
+            // the second request gets the parts while the first reads them, not after the first is done
+            final InputStream first = node.openInputStream("along");
+            final String[] firstContent = new String[1];
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        firstContent[0] = read(first);
+                    } catch (IOException e) {
+                        // checked below
+                    }
+                }
+            });
+            reader.start();
+            InputStream second = node.openInputStream("along");
+            byte[] buffer = new byte[1024];
+            int n = second.read(buffer);
+            assertTrue(n > 0);
+            assertTrue(reader.isAlive());
+            assertEquals(expectedParts("along"), new String(buffer, 0, n, StandardCharsets.UTF_8) + read(second));
+            reader.join(5000);
+            assertEquals(expectedParts("along"), firstContent[0]);
+            assertEquals(1, origin.opens_.get());
+            assertEquals(expectedParts("along"), read(node.openInputStream("along")));
+            assertEquals(1, origin.opens_.get());
+
+            // a first reader that stalls makes the second one read the origin itself, after the part it got already
+            InputStream stalled = node.openInputStream("stalled");
+            assertTrue(stalled.read(buffer) > 0);
+            long started = System.currentTimeMillis();
+            assertEquals(expectedParts("stalled"), read(node.openInputStream("stalled")));
+            assertTrue(System.currentTimeMillis() - started < 3000);
+            assertEquals(3, origin.opens_.get());
+            stalled.close();
+        } finally {
+            node.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.horstmeier.java.tftp;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+public class ReadAheadInputStreamTest extends TestCase {
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    /*
+     * Reads the stream in TFTP blocks, as the server does.
+     */
+    private static byte[] readBlocks(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] block = new byte[512];
+        int n;
+        do {
+            n = is.read(block);
+            if (n > 0) {
+                os.write(block, 0, n);
+            }
+        } while (n == 512);
+        return os.toByteArray();
+    }
+
+    public void testContentAndBlocksAreComplete() throws Exception {
+        Semaphore budget = new Semaphore(1024 * 1024);
+        for (int size : new int[]{0, 1, 511, 512, 4096, 100000, 1 << 20}) {
+            byte[] content = content(size);
+            // a source that returns short reads
+            InputStream source = new FilterInputStream(new ByteArrayInputStream(content)) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return super.read(b, off, Math.min(len, 100));
+                }
+            };
+            ReadAheadInputStream is = new ReadAheadInputStream(source, 16 * 512, budget);
+            assertTrue("size " + size, Arrays.equals(content, readBlocks(is)));
+            is.close();
+        }
+        assertEquals(1024 * 1024, budget.availablePermits());
+    }
+
+    public void testExhaustedBudgetReadsDirectly() throws Exception {
+        Semaphore budget = new Semaphore(0);
+        byte[] content = content(10000);
+        ReadAheadInputStream is = new ReadAheadInputStream(new ByteArrayInputStream(content), 4096, budget);
+        assertTrue(Arrays.equals(content, readBlocks(is)));
+        is.close();
+        assertEquals(0, budget.availablePermits());
+    }
+
+    public void testErrorIsReported() throws Exception {
+        Semaphore budget = new Semaphore(1024 * 1024);
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("disk error");
+            }
+        };
+        ReadAheadInputStream is = new ReadAheadInputStream(failing, 4096, budget);
+        try {
+            readBlocks(is);
+            fail("error was not reported");
+        } catch (IOException e) {
+            assertEquals("disk error", e.getMessage());
+        }
+        is.close();
+        assertEquals(1024 * 1024, budget.availablePermits());
+    }
+
+    public void testDataBeforeErrorIsServed() throws Exception {
+        Semaphore budget = new Semaphore(1024 * 1024);
+        final byte[] content = content(700);
+        InputStream failing = new InputStream() {
+            private int position_ = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (position_ == content.length) {
+                    throw new IOException("disk error");
+                }
+                return content[position_++] & 0xff;
+            }
+        };
+        ReadAheadInputStream is = new ReadAheadInputStream(failing, 4096, budget);
+        byte[] block = new byte[512];
+        assertEquals(512, is.read(block));
+        assertTrue(Arrays.equals(Arrays.copyOf(content, 512), block));
+        try {
+            is.read(block);
+            fail("error was not reported");
+        } catch (IOException e) {
+            assertEquals("disk error", e.getMessage());
+        }
+        is.close();
+        assertEquals(1024 * 1024, budget.availablePermits());
+    }
+
+    public void testUncheckedErrorIsReported() throws Exception {
+        Semaphore budget = new Semaphore(1024 * 1024);
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() {
+                throw new IllegalStateException("broken source");
+            }
+        };
+        ReadAheadInputStream is = new ReadAheadInputStream(failing, 4096, budget);
+        try {
+            readBlocks(is);
+            fail("error was not reported");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        is.close();
+        assertEquals(1024 * 1024, budget.availablePermits());
+    }
+
+    public void testCloseWhileFetching() throws Exception {
+        Semaphore budget = new Semaphore(1024 * 1024);
+        final boolean[] closed = new boolean[1];
+        InputStream slow = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    // noop
+                }
+                return 1;
+            }
+
+            @Override
+            public void close() {
+                synchronized (closed) {
+                    closed[0] = true;
+                }
+            }
+        };
+        ReadAheadInputStream is = new ReadAheadInputStream(slow, 4096, budget);
+        is.close();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (closed) {
+                if (closed[0]) {
+                    break;
+                }
+            }
+            Thread.sleep(10);
+        }
+        synchronized (closed) {
+            assertTrue(closed[0]);
+        }
+        deadline = System.currentTimeMillis() + 5000;
+        while (budget.availablePermits() != 1024 * 1024 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1024 * 1024, budget.availablePermits());
+    }
+}
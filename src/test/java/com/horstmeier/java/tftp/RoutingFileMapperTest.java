@@ -0,0 +1,146 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RoutingFileMapperTest extends TestCase {
+
+    /*
+     * Serves the files put into it, the content is the mapper's name and the requested name.
+     */
+    private static class NamedMapper implements IFileNameMapper {
+        private final String name_;
+        private final Map<String, Boolean> files_ = new HashMap<String, Boolean>();
+        private final boolean writable_;
+
+        NamedMapper(String name, boolean writable, String... files) {
+            name_ = name;
+            writable_ = writable;
+            for (String file : files) {
+                files_.put(file, Boolean.TRUE);
+            }
+        }
+
+        @Override
+        public InputStream openInputStream(String fileName) throws IOException {
+            if (!files_.containsKey(fileName)) {
+                throw new FileNotFoundException(fileName);
+            }
+            return new ByteArrayInputStream((name_ + ":" + fileName).getBytes());
+        }
+
+        @Override
+        public OutputStream openOutputStream(String fileName) throws IOException {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public boolean canRead() {
+            return true;
+        }
+
+        @Override
+        public boolean canWrite() {
+            return writable_;
+        }
+    }
+
+    private static String read(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        int c;
+        while ((c = is.read()) >= 0) {
+            os.write(c);
+        }
+        is.close();
+        return os.toString();
+    }
+
+    public void testLongestPrefixPatternAndDefault() throws Exception {
+        RoutingFileMapper router = new RoutingFileMapper();
+        router.addRoute("/boot/", true, new NamedMapper("boot", false, "kernel"));
+        router.addRoute("boot/efi/", new NamedMapper("efi", false, "boot/efi/grub.efi"));
+        router.addPatternRoute(".*\\.cfg", new NamedMapper("cfg", false, "menu.cfg"));
+        router.setDefaultRoute(new NamedMapper("default", true, "other"));
+
+        assertEquals("boot:kernel", read(router.openInputStream("/boot/kernel")));
+        assertEquals("boot:kernel", read(router.openInputStream("boot/kernel")));
+        assertEquals("efi:boot/efi/grub.efi", read(router.openInputStream("boot/efi/grub.efi")));
+        assertEquals("cfg:menu.cfg", read(router.openInputStream("menu.cfg")));
+        assertEquals("default:other", read(router.openInputStream("other")));
+        assertEquals("default:other", read(router.openInputStream("/other")));
+        try {
+            router.openInputStream("boot/missing");
+            fail("missing file was served");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+
+        assertTrue(router.canWrite());
+        assertNotNull(router.openOutputStream("upload"));
+        try {
+            router.openOutputStream("boot/upload");
+            fail("read only route accepted a write");
+        } catch (IOException e) {
+            // expected
+        }
+
+        List<RoutingFileMapper.RouteStatistics> statistics = router.getRouteStatistics();
+        assertEquals(4, statistics.size());
+        assertEquals("prefix:boot/", statistics.get(0).getName());
+        assertEquals(3, statistics.get(0).getRequests());
+        assertEquals(2, statistics.get(0).getServed()[0]);
+        assertEquals(1, statistics.get(0).getNotServed());
+        assertEquals(3, statistics.get(3).getRequests());
+    }
+
+    public void testFallbacksInOrder() throws Exception {
+        RoutingFileMapper router = new RoutingFileMapper();
+        router.addRoute("images/", new NamedMapper("cache", false, "images/a"),
+                new NamedMapper("proxy", false, "images/a", "images/b"));
+
+        assertEquals("cache:images/a", read(router.openInputStream("images/a")));
+        assertEquals("proxy:images/b", read(router.openInputStream("images/b")));
+        RoutingFileMapper.RouteStatistics statistics = router.getRouteStatistics().get(0);
+        assertEquals(1, statistics.getServed()[0]);
+        assertEquals(1, statistics.getServed()[1]);
+        assertEquals(0, statistics.getErrors());
+    }
+
+    public void testNamesAreNormalized() throws Exception {
+        RoutingFileMapper router = new RoutingFileMapper();
+        router.addRoute("boot/", true, new NamedMapper("boot", false, "efi/grub.efi"));
+        router.setDefaultRoute(new NamedMapper("default", true, "etc/passwd", "boot/../etc/passwd"));
+
+        assertEquals("boot:efi/grub.efi", read(router.openInputStream("boot/./efi//grub.efi")));
+        assertEquals("boot:efi/grub.efi", read(router.openInputStream("\\boot\\efi\\grub.efi")));
+        try {
+            router.openInputStream("boot/../etc/passwd");
+            fail("name with .. was routed");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        try {
+            router.openOutputStream("boot/../upload");
+            fail("name with .. was routed");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            router.addRoute("images/../boot/", new NamedMapper("images", false));
+            fail("prefix with .. was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, router.getRouteStatistics().get(1).getRequests());
+    }
+}
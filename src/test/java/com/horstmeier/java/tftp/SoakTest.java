@@ -0,0 +1,364 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.proxyserver.ProxyFileMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.apache.commons.net.tftp.TFTPClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs a mix of successful, failing, aborted and timed out transfers against a DefaultFileMapper and a
+ * ProxyFileMapper with a local HTTP server as origin, and checks that threads, file descriptors, heap and HTTP
+ * connections return to their level before the run.
+ *
+ * The test only runs if the system property tftp.soak.seconds is set to the length of the run, e.g.
+ * mvn test -Dtest=SoakTest -Dtftp.soak.seconds=600. The samples are taken once a second; a leak shows as a curve
+ * that keeps growing.
+ */
+public class SoakTest extends TestCase {
+
+    private static final int TFTP_PORT = 8099;
+    private static final int HTTP_PORT = 8184;
+    private static final int WORKERS = 4;
+
+    private static final String[] OPERATIONS = {
+            "local read", "proxy read", "missing file", "upload", "client timeout", "client abort"
+    };
+
+    private final AtomicLongArray succeeded_ = new AtomicLongArray(OPERATIONS.length);
+    private final AtomicLongArray failed_ = new AtomicLongArray(OPERATIONS.length);
+
+    private File root_;
+    private HttpServer origin_;
+    private DefaultFileMapper localMapper_;
+    private ProxyFileMapper proxyMapper_;
+    private TFTPBaseServer server_;
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        root_ = Files.createTempDirectory("tftp-soak").toFile();
+        File read = new File(root_, "read");
+        File write = new File(root_, "write");
+        read.mkdir();
+        write.mkdir();
+        Files.write(new File(read, "small.bin").toPath(), content(1000));
+        Files.write(new File(read, "large.bin").toPath(), content(4 * 1024 * 1024));
+
+        origin_ = HttpServer.create(new InetSocketAddress("127.0.0.1", HTTP_PORT), 0);
+        final byte[] medium = content(200 * 1024);
+        final byte[] large = content(4 * 1024 * 1024);
+        origin_.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                byte[] body = path.equals("/medium.bin") ? medium : path.equals("/large.bin") ? large : null;
+                try {
+                    if (body == null) {
+                        exchange.sendResponseHeaders(404, -1);
+                        return;
+                    }
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream os = exchange.getResponseBody();
+                    // the JDK server keeps a buffer as large as the largest write per connection
+                    for (int offset = 0; offset < body.length; offset += 8192) {
+                        os.write(body, offset, Math.min(8192, body.length - offset));
+                    }
+                    os.close();
+                } catch (IOException e) {
+                    // the client went away
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        origin_.start();
+
+        localMapper_ = new DefaultFileMapper(read, write, Mode.GET_AND_PUT);
+        proxyMapper_ = new ProxyFileMapper("http://127.0.0.1:" + HTTP_PORT + "/");
+        RoutingFileMapper router = new RoutingFileMapper();
+        router.addRoute("proxy/", true, proxyMapper_);
+        router.setDefaultRoute(localMapper_);
+        server_ = new TFTPBaseServer(router, TFTP_PORT);
+        server_.setSocketTimeout(200);
+        server_.setMaxTimeoutRetries(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (server_ != null) {
+            server_.shutdown();
+        }
+        if (proxyMapper_ != null) {
+            proxyMapper_.close();
+        }
+        if (localMapper_ != null) {
+            localMapper_.close();
+        }
+        if (origin_ != null) {
+            origin_.stop(0);
+        }
+        delete(root_);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    public void testResourcesStayFlat() throws Exception {
+        Long seconds = Long.getLong("tftp.soak.seconds");
+        if (seconds == null) {
+            return;
+        }
+
+        // let pools and caches reach their working size first
+        run(1000);
+        waitUntilIdle();
+        Sample baseline = sample();
+
+        List<Sample> curve = new ArrayList<Sample>();
+        long end = System.currentTimeMillis() + seconds * 1000;
+        while (System.currentTimeMillis() < end) {
+            run(Math.min(1000, Math.max(1, end - System.currentTimeMillis())));
+            curve.add(sample());
+        }
+        waitUntilIdle();
+        Sample after = sample();
+
+        StringBuilder report = new StringBuilder("Soak test, ").append(seconds).append(" s\n");
+        report.append("  before: ").append(baseline).append('\n');
+        for (Sample sample : curve) {
+            report.append("          ").append(sample).append('\n');
+        }
+        report.append("  after:  ").append(after).append('\n');
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            report.append("  ").append(OPERATIONS[i]).append(": ").append(succeeded_.get(i)).append(" ok, ")
+                    .append(failed_.get(i)).append(" failed\n");
+        }
+
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            assertTrue(OPERATIONS[i] + " never worked\n" + report, succeeded_.get(i) > 0);
+        }
+        assertEquals(report.toString(), 0, server_.getActiveTransfers().size());
+        assertEquals(report.toString(), 0, after.leasedConnections_);
+        assertTrue(report.toString(), after.threads_ <= baseline.threads_ + 16);
+        if (baseline.fileDescriptors_ >= 0) {
+            assertTrue(report.toString(), after.fileDescriptors_ <= baseline.fileDescriptors_ + 16);
+        }
+        assertTrue(report.toString(), after.heapBytes_ <= baseline.heapBytes_ + 64L * 1024 * 1024);
+
+        long[] threads = new long[curve.size()];
+        long[] fileDescriptors = new long[curve.size()];
+        long[] heap = new long[curve.size()];
+        for (int i = 0; i < curve.size(); i++) {
+            threads[i] = curve.get(i).threads_;
+            fileDescriptors[i] = curve.get(i).fileDescriptors_;
+            heap[i] = curve.get(i).heapBytes_;
+        }
+        assertNoGrowth("threads", threads, 4, report);
+        if (baseline.fileDescriptors_ >= 0) {
+            assertNoGrowth("file descriptors", fileDescriptors, 8, report);
+        }
+        assertNoGrowth("heap", heap, 16L * 1024 * 1024, report);
+    }
+
+    /*
+     * Fails if the curve rises with every sample, or if the last third of it stays above the first third. Changes
+     * up to the tolerance are noise.
+     */
+    private static void assertNoGrowth(String name, long[] curve, long tolerance, CharSequence report) {
+        if (curve.length < 3) {
+            return;
+        }
+        boolean rising = true;
+        for (int i = 1; i < curve.length && rising; i++) {
+            rising = curve[i] > curve[i - 1];
+        }
+        assertFalse(name + " grow with every sample\n" + report,
+                rising && curve[curve.length - 1] - curve[0] > tolerance);
+
+        int third = curve.length / 3;
+        long firstMax = Long.MIN_VALUE;
+        long lastMin = Long.MAX_VALUE;
+        for (int i = 0; i < third; i++) {
+            firstMax = Math.max(firstMax, curve[i]);
+            lastMin = Math.min(lastMin, curve[curve.length - 1 - i]);
+        }
+        assertTrue(name + " stay above their early level\n" + report, lastMin <= firstMax + tolerance);
+    }
+
+    /*
+     * Run the mix in all workers for the given time.
+     */
+    private void run(final long millis) throws InterruptedException {
+        Thread[] workers = new Thread[WORKERS];
+        for (int w = 0; w < workers.length; w++) {
+            final int worker = w;
+            workers[w] = new Thread(new Runnable() {
+                public void run() {
+                    long end = System.currentTimeMillis() + millis;
+                    for (int i = worker; System.currentTimeMillis() < end; i++) {
+                        int operation = i % OPERATIONS.length;
+                        boolean ok;
+                        try {
+                            ok = execute(operation, worker + "-" + i);
+                        } catch (IOException e) {
+                            ok = false;
+                        }
+                        if (ok) {
+                            succeeded_.incrementAndGet(operation);
+                        } else {
+                            failed_.incrementAndGet(operation);
+                        }
+                    }
+                }
+            }, "SoakWorker-" + w);
+            workers[w].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private boolean execute(int operation, String id) throws IOException {
+        switch (operation) {
+            case 0:
+                return receive("small.bin") == 1000;
+            case 1:
+                return receive("proxy/medium.bin") == 200 * 1024;
+            case 2:
+                // both must fail
+                return receive(id.hashCode() % 2 == 0 ? "missing.bin" : "proxy/missing.bin") < 0;
+            case 3: {
+                TFTPClient client = new TFTPClient();
+                client.open();
+                try {
+                    client.sendFile("upload-" + id + ".bin", TFTPClient.BINARY_MODE, new ByteArrayInputStream(content(10000)),
+                            "127.0.0.1", TFTP_PORT);
+                    return true;
+                } finally {
+                    client.close();
+                }
+            }
+            case 4:
+                // take the first block, then vanish - the server has to time out
+                return rawRead(id.hashCode() % 2 == 0 ? "large.bin" : "proxy/large.bin", false);
+            default:
+                // take the first block, then tell the server to stop
+                return rawRead(id.hashCode() % 2 == 0 ? "large.bin" : "proxy/large.bin", true);
+        }
+    }
+
+    /*
+     * The size of the file received, -1 if the transfer failed.
+     */
+    private static int receive(String fileName) throws IOException {
+        TFTPClient client = new TFTPClient();
+        client.setDefaultTimeout(2000);
+        client.open();
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            client.receiveFile(fileName, TFTPClient.BINARY_MODE, os, "127.0.0.1", TFTP_PORT);
+            return os.size();
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            client.close();
+        }
+    }
+
+    private static boolean rawRead(String fileName, boolean sendError) throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setSoTimeout(2000);
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            request.write(0);
+            request.write(1);
+            request.write(fileName.getBytes(StandardCharsets.US_ASCII));
+            request.write(0);
+            request.write("octet".getBytes(StandardCharsets.US_ASCII));
+            request.write(0);
+            byte[] rrq = request.toByteArray();
+            socket.send(new DatagramPacket(rrq, rrq.length, InetAddress.getByName("127.0.0.1"), TFTP_PORT));
+
+            byte[] buffer = new byte[1024];
+            DatagramPacket data = new DatagramPacket(buffer, buffer.length);
+            socket.receive(data);
+            if (data.getLength() < 4 || buffer[1] != 3) {
+                return false;
+            }
+            if (sendError) {
+                byte[] error = {0, 5, 0, 0, 'a', 'b', 'o', 'r', 't', 0};
+                socket.send(new DatagramPacket(error, error.length, data.getAddress(), data.getPort()));
+            }
+            return true;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void waitUntilIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((!server_.getActiveTransfers().isEmpty() || proxyMapper_.getConnectionManager().getTotalStats().getLeased() > 0)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    private Sample sample() {
+        System.gc();
+        Sample sample = new Sample();
+        sample.threads_ = ManagementFactory.getThreadMXBean().getThreadCount();
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        sample.fileDescriptors_ = os instanceof com.sun.management.UnixOperatingSystemMXBean
+                ? ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount() : -1;
+        sample.heapBytes_ = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        sample.leasedConnections_ = proxyMapper_.getConnectionManager().getTotalStats().getLeased();
+        sample.activeTransfers_ = server_.getActiveTransfers().size();
+        return sample;
+    }
+
+    private static class Sample {
+        int threads_;
+        long fileDescriptors_;
+        long heapBytes_;
+        int leasedConnections_;
+        int activeTransfers_;
+
+        @Override
+        public String toString() {
+            return "threads " + threads_ + ", fds " + fileDescriptors_ + ", heap " + heapBytes_ / 1024 + " KB, leased "
+                    + leasedConnections_ + ", active transfers " + activeTransfers_;
+        }
+    }
+}
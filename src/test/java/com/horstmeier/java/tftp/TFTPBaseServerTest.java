@@ -1,6 +1,8 @@
 package com.horstmeier.java.tftp;
 
 import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import com.horstmeier.java.tftp.interfaces.IPrefetchable;
+import com.horstmeier.java.tftp.metrics.TFTPMetricsMBean;
 import junit.framework.TestCase;
 import org.apache.commons.net.tftp.TFTPClient;
 import org.apache.log4j.ConsoleAppender;
@@ -8,15 +10,45 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 
 import java.io.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class TFTPBaseServerTest extends TestCase {
 
     class TestFileMapperRead implements IFileNameMapper {
 
+        private final String greeting_;
+
+        TestFileMapperRead() {
+            this("Hello World");
+        }
+
+        TestFileMapperRead(String greeting) {
+            greeting_ = greeting;
+        }
+
         @Override
         public InputStream openInputStream(String fileName) throws IOException {
             if (fileName.equals("$#")) {
-                return new ByteArrayInputStream("Hello World".getBytes());
+                return new ByteArrayInputStream(greeting_.getBytes());
+            }
+            if (fileName.equals("large")) {
+                return new InputStream() {
+                    private long remaining_ = 256L * 1024 * 1024;
+
+                    @Override
+                    public int read() throws IOException {
+                        return remaining_-- > 0 ? 0 : -1;
+                    }
+                };
             }
             throw new IOException("Illegal file name");
         }
@@ -56,4 +88,357 @@ public class TFTPBaseServerTest extends TestCase {
         assert os.toString().equals("Hello World");
         baseServer.shutdown();
     }
+
+    public void testMetrics() throws Exception
+    {
+        TFTPBaseServer baseServer = new TFTPBaseServer(new TestFileMapperRead(), 8090);
+        try {
+            TFTPClient client = new TFTPClient();
+            client.open();
+            client.receiveFile("$#", 1, new ByteArrayOutputStream(1024), "localhost", 8090);
+            try {
+                client.receiveFile("missing", 1, new ByteArrayOutputStream(1024), "localhost", 8090);
+                fail("missing file was transferred");
+            } catch (IOException e) {
+                // expected
+            }
+            client.close();
+
+            TFTPMetricsMBean metrics = baseServer.getMetrics();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (metrics.getActiveTransfers() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, metrics.getReadRequests());
+            assertEquals(1, metrics.getTransfersCompleted());
+            assertEquals(1, metrics.getTransfersFailed());
+            assertEquals("Hello World".length(), metrics.getBytesSent());
+            assertEquals(1, metrics.getMapperOpenFailures());
+            assertEquals(0, baseServer.getMetrics().getErrorPacketsSent(-1));
+            assertEquals(0, baseServer.getMetrics().getErrorPacketsSent(42));
+            assertTrue(metrics.dumpPrometheus().contains("tftp_transfers_completed_total 1"));
+        } finally {
+            baseServer.shutdown();
+        }
+    }
+
+    public void testMalformedPacketIsDropped() throws Exception
+    {
+        TFTPBaseServer baseServer = new TFTPBaseServer(new TestFileMapperRead(), 8102);
+        try {
+            DatagramSocket socket = new DatagramSocket();
+            byte[] garbage = {0, 99, 1};
+            socket.send(new DatagramPacket(garbage, garbage.length, InetAddress.getByName("localhost"), 8102));
+            socket.close();
+
+            TFTPClient client = new TFTPClient();
+            client.open();
+            ByteArrayOutputStream os = new ByteArrayOutputStream(1024);
+            client.receiveFile("$#", 1, os, "localhost", 8102);
+            client.close();
+            assertEquals("Hello World", os.toString());
+            assertTrue(baseServer.isRunning());
+            assertEquals(1, baseServer.getAdmissionController().getDropCount(AdmissionController.DropReason.MALFORMED));
+        } finally {
+            baseServer.shutdown();
+        }
+    }
+
+    public void testThrottleAndAbort() throws Exception
+    {
+        TFTPBaseServer baseServer = new TFTPBaseServer(new TestFileMapperRead(), 8091);
+        try {
+            final TFTPClient client = new TFTPClient();
+            client.setDefaultTimeout(500);
+            client.setMaxTimeouts(1);
+            client.open();
+            Thread download = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        client.receiveFile("large", 1, new ByteArrayOutputStream(), "localhost", 8091);
+                    } catch (IOException e) {
+                        // expected, the transfer is aborted
+                    }
+                }
+            });
+            download.start();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (baseServer.getActiveTransfers().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            TransferInfo info = baseServer.getActiveTransfers().get(0);
+            assertEquals("large", info.getFileName());
+            assertEquals(TransferInfo.Direction.READ, info.getDirection());
+            assertTrue(baseServer.throttleTransfer(info.getId(), 16384));
+
+            // the average since the start includes the unthrottled part, so measure the rate between two snapshots
+            Thread.sleep(200);
+            TransferInfo first = baseServer.getActiveTransfers().get(0);
+            Thread.sleep(1500);
+            info = baseServer.getActiveTransfers().get(0);
+            assertEquals(16384, info.getRateLimit());
+            long rate = (info.getBytes() - first.getBytes()) * 1000 / (info.getAgeMillis() - first.getAgeMillis());
+            assertTrue("rate " + rate, Math.abs(rate - 16384) <= 16384 / 4);
+
+            assertTrue(baseServer.abortTransfer(info.getId()));
+            assertFalse(baseServer.abortTransfer(info.getId() + 1));
+            deadline = System.currentTimeMillis() + 5000;
+            while (!baseServer.getActiveTransfers().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(baseServer.getActiveTransfers().isEmpty());
+            download.join(5000);
+            client.close();
+        } finally {
+            baseServer.shutdown();
+        }
+    }
+
+    public void testDrainAndHandOver() throws Exception
+    {
+        TFTPBaseServer first = new TFTPBaseServer(new TestFileMapperRead(), 8092);
+        TFTPBaseServer second = null;
+        try {
+            final TFTPClient slowClient = new TFTPClient();
+            slowClient.setDefaultTimeout(500);
+            slowClient.setMaxTimeouts(1);
+            slowClient.open();
+            Thread download = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        slowClient.receiveFile("large", 1, new ByteArrayOutputStream(), "localhost", 8092);
+                    } catch (IOException e) {
+                        // expected, the transfer is aborted by the drain
+                    }
+                }
+            });
+            download.start();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (first.getActiveTransfers().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            long slowId = first.getActiveTransfers().get(0).getId();
+            // slow enough to sleep far past the drain deadline between two blocks
+            first.throttleTransfer(slowId, 1);
+
+            second = new TFTPBaseServer(new TestFileMapperRead("Reloaded"), first);
+            assertFalse(first.isRunning());
+            assertTrue(second.isRunning());
+            assertEquals(1, first.getActiveTransfers().size());
+
+            TFTPClient client = new TFTPClient();
+            client.open();
+            ByteArrayOutputStream os = new ByteArrayOutputStream(1024);
+            client.receiveFile("$#", 1, os, "localhost", 8092);
+            assertEquals("Reloaded", os.toString());
+
+            List<TransferInfo> aborted = first.drain(200);
+            assertEquals(1, aborted.size());
+            assertEquals(slowId, aborted.get(0).getId());
+            deadline = System.currentTimeMillis() + 2000;
+            while (!first.getActiveTransfers().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(first.getActiveTransfers().isEmpty());
+            download.join(5000);
+
+            // the predecessor must not close the socket it handed over
+            os = new ByteArrayOutputStream(1024);
+            client.receiveFile("$#", 1, os, "localhost", 8092);
+            assertEquals("Reloaded", os.toString());
+            client.close();
+            slowClient.close();
+
+            assertTrue(second.drain(1000).isEmpty());
+        } finally {
+            first.shutdown();
+            if (second != null) {
+                second.shutdown();
+            }
+        }
+    }
+
+    public void testUpload() throws Exception
+    {
+        File root = Files.createTempDirectory("tftp-upload").toFile();
+        TFTPServer server = new TFTPServer(root, root, 8093, Mode.GET_AND_PUT);
+        try {
+            byte[] data = new byte[100 * 1024 + 17];
+            new Random(42).nextBytes(data);
+
+            TFTPClient client = new TFTPClient();
+            client.open();
+            client.sendFile("uploads/image.bin", TFTPClient.BINARY_MODE, new ByteArrayInputStream(data), "localhost", 8093);
+            client.close();
+
+            // the final ack is only sent once the file is written completely
+            File uploaded = new File(root, "uploads/image.bin");
+            assertTrue(Arrays.equals(data, Files.readAllBytes(uploaded.toPath())));
+            uploaded.delete();
+            uploaded.getParentFile().delete();
+        } finally {
+            server.shutdown();
+            root.delete();
+        }
+    }
+
+    public void testNetAsciiCacheAndTransferSize() throws Exception
+    {
+        File root = Files.createTempDirectory("tftp-netascii").toFile();
+        File menu = new File(root, "menu.cfg");
+        Files.write(menu.toPath(), "default linux\nlabel linux\n".getBytes());
+        TFTPServer server = new TFTPServer(root, root, 8094, Mode.GET_ONLY);
+        try {
+            for (int i = 0; i < 2; i++) {
+                TFTPClient client = new TFTPClient();
+                client.open();
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                client.receiveFile("menu.cfg", TFTPClient.ASCII_MODE, os, "localhost", 8094);
+                client.close();
+                assertEquals("default linux" + System.lineSeparator() + "label linux" + System.lineSeparator(), os.toString());
+            }
+            assertEquals(1, server.getContentCache().getMisses());
+            assertEquals(1, server.getContentCache().getHits());
+
+            // ask for the size - the server must announce the converted length in an OACK
+            DatagramSocket socket = new DatagramSocket();
+            socket.setSoTimeout(5000);
+            byte[] request = "\0\1menu.cfg\0netascii\0tsize\0000\0".getBytes("US-ASCII");
+            socket.send(new DatagramPacket(request, request.length, InetAddress.getLoopbackAddress(), 8094));
+            DatagramPacket answer = new DatagramPacket(new byte[600], 600);
+            socket.receive(answer);
+            // 2 bare LFs become CR LF, unless the platform uses CR LF already
+            int size = NetAscii.ENCODING_REQUIRED ? 28 : 26;
+            assertEquals("\0\6tsize\0" + size + "\0", new String(answer.getData(), 0, answer.getLength(), "US-ASCII"));
+
+            byte[] ack = {0, 4, 0, 0};
+            socket.send(new DatagramPacket(ack, ack.length, answer.getAddress(), answer.getPort()));
+            socket.receive(answer);
+            assertEquals(4 + size, answer.getLength());
+            assertEquals(3, answer.getData()[1]);
+            byte[] lastAck = {0, 4, 0, 1};
+            socket.send(new DatagramPacket(lastAck, lastAck.length, answer.getAddress(), answer.getPort()));
+            socket.close();
+        } finally {
+            server.shutdown();
+            menu.delete();
+            root.delete();
+        }
+    }
+
+    public void testTemplateWithRequestContext() throws Exception
+    {
+        TemplateFileMapper mapper = new TemplateFileMapper(null);
+        mapper.addTemplate("pxelinux\\.cfg/(.*)", "# ${1}\nappend ip=${client.ip}\n");
+        TFTPBaseServer server = new TFTPBaseServer(mapper, 8095);
+        try {
+            TFTPClient client = new TFTPClient();
+            client.open();
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            client.receiveFile("pxelinux.cfg/01-aa-bb-cc-dd-ee-ff", TFTPClient.BINARY_MODE, os, "127.0.0.1", 8095);
+            client.close();
+            assertEquals("# 01-aa-bb-cc-dd-ee-ff\nappend ip=127.0.0.1\n", os.toString());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testAbortCancelsAsyncOpen() throws Exception
+    {
+        final CountDownLatch opening = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        IFileNameMapper slowMapper = new TestFileMapperRead() {
+            @Override
+            public InputStream openInputStream(String fileName) throws IOException {
+                opening.countDown();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return new ByteArrayInputStream(new byte[0]);
+            }
+        };
+        TFTPBaseServer baseServer = new TFTPBaseServer(new AsyncFileMapperAdapter(slowMapper), 8096);
+        try {
+            final TFTPClient client = new TFTPClient();
+            client.setDefaultTimeout(500);
+            client.setMaxTimeouts(1);
+            client.open();
+            Thread download = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        client.receiveFile("slow", 1, new ByteArrayOutputStream(), "localhost", 8096);
+                    } catch (IOException e) {
+                        // expected, the transfer is aborted
+                    }
+                }
+            });
+            download.start();
+
+            assertTrue(opening.await(5, TimeUnit.SECONDS));
+            TransferInfo info = baseServer.getActiveTransfers().get(0);
+            assertTrue(baseServer.abortTransfer(info.getId()));
+            assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!baseServer.getActiveTransfers().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(baseServer.getActiveTransfers().isEmpty());
+            download.join(5000);
+            client.close();
+        } finally {
+            baseServer.shutdown();
+        }
+    }
+
+    public void testPrefetchPredictedFiles() throws Exception
+    {
+        final List<String> prefetched = new ArrayList<String>();
+        class PrefetchingMapper extends TestFileMapperRead implements IPrefetchable {
+            @Override
+            public InputStream openInputStream(String fileName) throws IOException {
+                return new ByteArrayInputStream(fileName.getBytes());
+            }
+
+            @Override
+            public boolean prefetch(String fileName) {
+                synchronized (prefetched) {
+                    // a name predicted again is pending already
+                    if (prefetched.contains(fileName)) {
+                        return false;
+                    }
+                    prefetched.add(fileName);
+                    return true;
+                }
+            }
+        }
+        TFTPBaseServer baseServer = new TFTPBaseServer(new PrefetchingMapper(), 8097);
+        try {
+            baseServer.getBootSequencePredictor().setMinCount(1);
+            TFTPClient client = new TFTPClient();
+            client.open();
+            // the third round repeats predictions whose files are prefetched already, they are no new hits
+            for (int round = 0; round < 3; round++) {
+                for (String name : new String[]{"pxelinux.0", "ldlinux.c32", "vmlinuz"}) {
+                    ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    client.receiveFile(name, TFTPClient.BINARY_MODE, os, "127.0.0.1", 8097);
+                    assertEquals(name, os.toString());
+                }
+            }
+            client.close();
+            synchronized (prefetched) {
+                assertTrue(prefetched.contains("ldlinux.c32"));
+                assertTrue(prefetched.contains("vmlinuz"));
+                assertEquals(prefetched.size(), baseServer.getMetrics().getPrefetches());
+            }
+            // every prefetched file was requested once after its prefetch
+            assertEquals(baseServer.getMetrics().getPrefetches(), baseServer.getMetrics().getPrefetchHits());
+            assertEquals(1.0, baseServer.getMetrics().getPrefetchHitRate());
+        } finally {
+            baseServer.shutdown();
+        }
+    }
 }
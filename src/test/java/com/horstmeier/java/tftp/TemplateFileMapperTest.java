@@ -0,0 +1,73 @@
+package com.horstmeier.java.tftp;
+
+import com.horstmeier.java.tftp.interfaces.IContentInfo;
+import com.horstmeier.java.tftp.interfaces.RequestContext;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Collections;
+
+public class TemplateFileMapperTest extends TestCase {
+
+    private static String read(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                os.write(buffer, 0, n);
+            }
+            return os.toString("UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+    private static RequestContext context(String ip, String fileName) throws IOException {
+        return new RequestContext(1, new InetSocketAddress(InetAddress.getByName(ip), 2000), fileName, "octet", true,
+                Collections.<String, String>emptyMap());
+    }
+
+    public void testRendersWithCapturesAndClient() throws Exception {
+        TemplateFileMapper mapper = new TemplateFileMapper(null);
+        mapper.addTemplate("pxelinux\\.cfg/01-(?<mac>[0-9a-f-]+)", "host ${mac} at ${client.ip} (${client.ip.hex}) asked for ${filename}, cost $5");
+
+        String name = "pxelinux.cfg/01-aa-bb-cc-dd-ee-ff";
+        InputStream is = mapper.openInputStream(name, context("192.168.0.1", name));
+        String expected = "host aa-bb-cc-dd-ee-ff at 192.168.0.1 (C0A80001) asked for " + name + ", cost $5";
+        assertEquals(expected.length(), ((IContentInfo) is).getContentLength());
+        assertEquals(expected, read(is));
+
+        read(mapper.openInputStream(name, context("192.168.0.1", name)));
+        assertEquals(1, mapper.getCache().getHits());
+        assertEquals("host aa-bb-cc-dd-ee-ff at 192.168.0.2 (C0A80002) asked for " + name + ", cost $5",
+                read(mapper.openInputStream(name, context("192.168.0.2", name))));
+        assertEquals(2, mapper.getCache().getEntryCount());
+
+        try {
+            mapper.openInputStream("other");
+            fail("name without template was served");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    public void testTemplateFileIsReloaded() throws Exception {
+        File template = File.createTempFile("tftp-template", ".ipxe");
+        try {
+            Files.write(template.toPath(), "#!ipxe\nchain ${1}\n".getBytes());
+            TemplateFileMapper mapper = new TemplateFileMapper(null);
+            mapper.addTemplate("boot-(.*)\\.ipxe", template);
+            assertEquals("#!ipxe\nchain linux\n", read(mapper.openInputStream("boot-linux.ipxe")));
+
+            Files.write(template.toPath(), "#!ipxe\nsanboot ${1}\n".getBytes());
+            template.setLastModified(template.lastModified() + 2000);
+            assertEquals("#!ipxe\nsanboot linux\n", read(mapper.openInputStream("boot-linux.ipxe")));
+        } finally {
+            template.delete();
+        }
+    }
+}
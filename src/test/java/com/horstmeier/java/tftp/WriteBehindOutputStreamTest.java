@@ -0,0 +1,76 @@
+package com.horstmeier.java.tftp;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class WriteBehindOutputStreamTest extends TestCase {
+
+    /*
+     * A target whose first write blocks until it is released. Records whether it was closed during a write.
+     */
+    private static class SlowTarget extends OutputStream {
+        final CountDownLatch writing_ = new CountDownLatch(1);
+        final CountDownLatch release_ = new CountDownLatch(1);
+        volatile boolean inWrite_ = false;
+        volatile boolean closedDuringWrite_ = false;
+        volatile boolean closed_ = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            inWrite_ = true;
+            writing_.countDown();
+            try {
+                release_.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                inWrite_ = false;
+            }
+        }
+
+        @Override
+        public void close() {
+            closedDuringWrite_ |= inWrite_;
+            closed_ = true;
+        }
+    }
+
+    public void testInterruptedAbortWaitsForTheWriter() throws Exception {
+        final SlowTarget target = new SlowTarget();
+        final WriteBehindOutputStream os = new WriteBehindOutputStream(target, 4, "test");
+        os.write(new byte[100]);
+        assertTrue(target.writing_.await(5, TimeUnit.SECONDS));
+
+        final boolean[] interruptedAfterAbort = new boolean[1];
+        Thread aborting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                os.abort();
+                interruptedAfterAbort[0] = Thread.currentThread().isInterrupted();
+            }
+        });
+        aborting.start();
+        Thread.sleep(50);
+        aborting.interrupt();
+        Thread.sleep(50);
+        // still waiting for the writer
+        assertTrue(aborting.isAlive());
+        assertFalse(target.closed_);
+
+        target.release_.countDown();
+        aborting.join(5000);
+        assertFalse(aborting.isAlive());
+        assertTrue(target.closed_);
+        assertFalse(target.closedDuringWrite_);
+        assertTrue(interruptedAfterAbort[0]);
+    }
+}
@@ -0,0 +1,99 @@
+package com.horstmeier.java.tftp.jfr;
+
+import com.horstmeier.java.tftp.TFTPBaseServer;
+import com.horstmeier.java.tftp.interfaces.IFileNameMapper;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.TestCase;
+import org.apache.commons.net.tftp.TFTPClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TransferEventTest extends TestCase {
+
+    public void testReadEmitsTransferAndMapperOpenEvents() throws Exception {
+        Recording recording = new Recording();
+        TFTPBaseServer server = null;
+        File dump = File.createTempFile("tftp-events", ".jfr");
+        List<RecordedEvent> opens = new ArrayList<RecordedEvent>();
+        List<RecordedEvent> transfers = new ArrayList<RecordedEvent>();
+        try {
+            recording.enable("com.horstmeier.tftp.Transfer");
+            recording.enable("com.horstmeier.tftp.MapperOpen");
+            recording.start();
+
+            server = new TFTPBaseServer(new IFileNameMapper() {
+                @Override
+                public InputStream openInputStream(String fileName) throws IOException {
+                    return new ByteArrayInputStream(new byte[1000]);
+                }
+
+                @Override
+                public OutputStream openOutputStream(String fileName) throws IOException {
+                    throw new IOException("Illegal operation");
+                }
+
+                @Override
+                public boolean canRead() {
+                    return true;
+                }
+
+                @Override
+                public boolean canWrite() {
+                    return false;
+                }
+            }, 8103);
+            TFTPClient client = new TFTPClient();
+            client.open();
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            client.receiveFile("boot/image", TFTPClient.BINARY_MODE, os, "127.0.0.1", 8103);
+            client.close();
+            assertEquals(1000, os.size());
+
+            // the transfer event is committed after the last ACK, so the server may still be busy with it
+            long deadline = System.currentTimeMillis() + 10000;
+            while (transfers.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+                recording.dump(dump.toPath());
+                opens.clear();
+                for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+                    if (event.getEventType().getName().equals("com.horstmeier.tftp.Transfer")) {
+                        transfers.add(event);
+                    } else if (event.getEventType().getName().equals("com.horstmeier.tftp.MapperOpen")) {
+                        opens.add(event);
+                    }
+                }
+            }
+        } finally {
+            if (server != null) {
+                server.shutdown();
+            }
+            recording.close();
+            dump.delete();
+        }
+
+        assertEquals(1, transfers.size());
+        RecordedEvent transfer = transfers.get(0);
+        assertEquals("boot/image", transfer.getString("file"));
+        assertTrue(transfer.getString("client").startsWith("127.0.0.1:"));
+        assertEquals("read", transfer.getString("direction"));
+        assertEquals(1000, transfer.getLong("bytes"));
+        // 512 + 488 bytes
+        assertEquals(2, transfer.getLong("blocks"));
+        assertEquals(0, transfer.getLong("retransmits"));
+        assertTrue(transfer.getBoolean("success"));
+        assertEquals(1, opens.size());
+        RecordedEvent open = opens.get(0);
+        assertEquals("boot/image", open.getString("file"));
+        assertFalse(open.getBoolean("write"));
+        assertTrue(open.getBoolean("success"));
+    }
+}